@@ -0,0 +1,110 @@
+/*
+ * The Fascinator - Plugin - Storage - Fedora 3
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.fedora;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.googlecode.fascinator.api.storage.DigitalObject;
+import com.googlecode.fascinator.api.storage.Payload;
+
+/**
+ * Many logical callers at once, each fetching a payload through the
+ * asynchronous API, on platform threads (one per pooled client) or on
+ * virtual threads (one per caller). The 'calls' counter gives calls per
+ * second, to compare how each mode scales with the number of callers.
+ * Every combination of parameters runs in its own fork, since the thread
+ * mode is JVM-wide; 'virtual' falls back to platform threads before Java 21.
+ *
+ * @author Greg Pendlebury
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CallerBenchmark {
+    /** Calls in flight at once */
+    @Param({ "10", "100", "1000", "10000" })
+    public int callers;
+
+    /** 'platform' or 'virtual' threads */
+    @Param({ "platform", "virtual" })
+    public String threads;
+
+    private Fedora36Storage storage;
+
+    /**
+     * Calls completed, reported by JMH as a rate.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Calls {
+        public long calls;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            calls = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        storage = Fedora36Benchmarks.storage(", \"asyncQueueSize\": "
+                + callers + ", \"virtualThreads\": "
+                + "virtual".equals(threads));
+        FedoraStandIn.shared().reset();
+        DigitalObject object = storage.createObject("benchObject");
+        object.createStoredPayload("payload.bin",
+                Fedora36Benchmarks.in(Fedora36Benchmarks.content(1024)));
+        System.out.println("Virtual threads: " + Fedora36.isVirtualThreads());
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        storage.shutdown();
+    }
+
+    @Benchmark
+    public void getPayload(Calls counter) throws Exception {
+        List<CompletableFuture<Payload>> futures = new ArrayList<CompletableFuture<Payload>>(
+                callers);
+        DigitalObject object = storage.getObject("benchObject");
+        for (int i = 0; i < callers; i++) {
+            futures.add(((Fedora36DigitalObject) object)
+                    .getPayloadAsync("payload.bin"));
+        }
+        for (CompletableFuture<Payload> future : futures) {
+            future.get();
+        }
+        counter.calls += callers;
+    }
+}
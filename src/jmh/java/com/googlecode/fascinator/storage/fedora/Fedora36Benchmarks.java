@@ -0,0 +1,107 @@
+/*
+ * The Fascinator - Plugin - Storage - Fedora 3
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.fedora;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs every benchmark once for each thread count, writing the JSON results
+ * of each run to its own file so releases can be compared. Controlled by
+ * system properties, which the 'benchmark' Maven profile sets:
+ * <ul>
+ * <li>bench.threads: comma separated thread counts, eg. '1,4,16'</li>
+ * <li>bench.include: regex of benchmarks to run</li>
+ * <li>bench.output: directory for the JSON results</li>
+ * <li>bench.poolSize: Fedora clients in the pool, default 16</li>
+ * <li>bench.rateLimit: requests per second, default 100000 so the limiter
+ * does not hide the cost of the plugin itself</li>
+ * </ul>
+ *
+ * @author Greg Pendlebury
+ */
+public class Fedora36Benchmarks {
+    public static void main(String[] args) throws Exception {
+        String include = System.getProperty("bench.include",
+                "com.googlecode.fascinator.storage.fedora.*Benchmark");
+        File output = new File(System.getProperty("bench.output",
+                "target/jmh"));
+        output.mkdirs();
+
+        for (String threads : System.getProperty("bench.threads", "1,4,16")
+                .split(",")) {
+            int count = Integer.parseInt(threads.trim());
+            File result = new File(output, "fedora36-threads-" + count
+                    + ".json");
+            Options options = new OptionsBuilder().include(include)
+                    .threads(count).forks(1).warmupIterations(3)
+                    .measurementIterations(5)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(result.getPath()).build();
+            new Runner(options).run();
+            System.out.println("Results for " + count + " thread(s): "
+                    + result.getPath());
+        }
+    }
+
+    /**
+     * Start the shared stand-in and connect a storage instance to it.
+     */
+    static Fedora36Storage storage() throws Exception {
+        return storage("");
+    }
+
+    /**
+     * As {@link #storage()}, with extra 'storage.fedora36' settings.
+     *
+     * @param extra JSON fields to add, each starting with a comma
+     */
+    static Fedora36Storage storage(String extra) throws Exception {
+        String config = FedoraStandIn.shared().getConfig();
+        String tuning = extra + ", \"poolSize\": "
+                + System.getProperty("bench.poolSize", "16")
+                + ", \"rateLimit\": "
+                + System.getProperty("bench.rateLimit", "100000") + "}}}";
+        config = config.substring(0, config.lastIndexOf("}}}")) + tuning;
+
+        Fedora36Storage storage = new Fedora36Storage();
+        storage.init(config);
+        return storage;
+    }
+
+    /**
+     * Random content of the given size, so MIME sniffing has real work.
+     */
+    static byte[] content(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    static InputStream in(byte[] data) {
+        return new ByteArrayInputStream(data);
+    }
+}
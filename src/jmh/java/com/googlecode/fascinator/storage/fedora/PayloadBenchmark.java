@@ -0,0 +1,130 @@
+/*
+ * The Fascinator - Plugin - Storage - Fedora 3
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.fedora;
+
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.googlecode.fascinator.api.storage.DigitalObject;
+import com.googlecode.fascinator.api.storage.Payload;
+
+/**
+ * Payload level operations: createStoredPayload, updatePayload, getPayload,
+ * reading the whole of Payload.open(), size() and lastModified(). Each is run
+ * for every combination of payload size and number of datastreams already
+ * in the object.
+ *
+ * @author Greg Pendlebury
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PayloadBenchmark {
+    /** Bytes in each payload */
+    @Param({ "1024", "65536", "1048576" })
+    public int payloadSize;
+
+    /** Datastreams already in the object */
+    @Param({ "1", "10", "50" })
+    public int datastreams;
+
+    private Fedora36Storage storage;
+
+    private DigitalObject object;
+
+    private Payload payload;
+
+    private byte[] data;
+
+    private AtomicLong sequence = new AtomicLong();
+
+    @Setup
+    public void setup() throws Exception {
+        storage = Fedora36Benchmarks.storage();
+        FedoraStandIn.shared().reset();
+        data = Fedora36Benchmarks.content(payloadSize);
+        object = storage.createObject("benchObject");
+        for (int i = 0; i < datastreams; i++) {
+            object.createStoredPayload("payload" + i + ".bin",
+                    Fedora36Benchmarks.in(data));
+        }
+        payload = object.getPayload("payload0.bin");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        storage.shutdown();
+    }
+
+    @Benchmark
+    public Payload createStoredPayload() throws Exception {
+        return object.createStoredPayload(
+                "new" + sequence.incrementAndGet() + ".bin",
+                Fedora36Benchmarks.in(data));
+    }
+
+    @Benchmark
+    public Payload updatePayload() throws Exception {
+        return object.updatePayload("payload0.bin",
+                Fedora36Benchmarks.in(data));
+    }
+
+    @Benchmark
+    public Payload getPayload() throws Exception {
+        return object.getPayload("payload0.bin");
+    }
+
+    @Benchmark
+    public long open() throws Exception {
+        InputStream in = payload.open();
+        byte[] buffer = new byte[8192];
+        long total = 0;
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                total += read;
+            }
+        } finally {
+            in.close();
+            payload.close();
+        }
+        return total;
+    }
+
+    @Benchmark
+    public Long size() {
+        return payload.size();
+    }
+
+    @Benchmark
+    public Long lastModified() {
+        return payload.lastModified();
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * The Fascinator - Plugin - Storage - Fedora 3
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.fedora;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.googlecode.fascinator.api.storage.DigitalObject;
+
+/**
+ * Object level operations: createObject, getObject and getObjectIdList.
+ * getObject is sensitive to the number of datastreams in the object, and
+ * getObjectIdList to the number of objects in storage.
+ *
+ * @author Greg Pendlebury
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class StorageBenchmark {
+    /** Datastreams in the object read by getObject */
+    @Param({ "1", "10", "50" })
+    public int datastreams;
+
+    /** Objects in storage while listing */
+    @Param({ "100", "2000" })
+    public int objects;
+
+    private Fedora36Storage storage;
+
+    private AtomicLong sequence = new AtomicLong();
+
+    @Setup
+    public void setup() throws Exception {
+        storage = Fedora36Benchmarks.storage();
+        FedoraStandIn.shared().reset();
+        DigitalObject object = storage.createObject("benchObject");
+        byte[] data = Fedora36Benchmarks.content(1024);
+        for (int i = 0; i < datastreams; i++) {
+            object.createStoredPayload("payload" + i + ".bin",
+                    Fedora36Benchmarks.in(data));
+        }
+        for (int i = 1; i < objects; i++) {
+            storage.createObject("listObject" + i);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        storage.shutdown();
+    }
+
+    @Benchmark
+    public DigitalObject createObject() throws Exception {
+        return storage.createObject("newObject" + sequence.incrementAndGet());
+    }
+
+    @Benchmark
+    public void getObject(Blackhole hole) throws Exception {
+        DigitalObject object = storage.getObject("benchObject");
+        hole.consume(object.getPayloadIdList());
+    }
+
+    @Benchmark
+    public int getObjectIdList() {
+        return storage.getObjectIdList().size();
+    }
+}
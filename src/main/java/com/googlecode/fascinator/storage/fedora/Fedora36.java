@@ -24,20 +24,42 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
 import java.net.MalformedURLException;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
 
 import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.io.input.CountingInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import com.googlecode.fascinator.api.storage.StorageException;
 import com.googlecode.fascinator.common.BasicHttpClient;
 import com.googlecode.fascinator.common.JsonSimpleConfig;
@@ -47,6 +69,7 @@ import com.yourmediashelf.fedora.client.FedoraCredentials;
 import com.yourmediashelf.fedora.client.request.FedoraRequest;
 import com.yourmediashelf.fedora.client.request.GetObjectXML;
 import com.yourmediashelf.fedora.client.response.FedoraResponse;
+import com.yourmediashelf.fedora.generated.management.DatastreamProfile;
 
 /**
  * A private utility class to wrap Fedora connectivity and save repeated
@@ -66,7 +89,80 @@ public class Fedora36 {
 	/** Test PID to retrieve from the server **/
 	private static final String FEDORA_TEST_PID = "fedora-system:FedoraObject-3.0";
 
-	private static RateLimiter requestRateLimiter;
+	/** Default number of pooled Fedora clients **/
+	private static final int DEFAULT_POOL_SIZE = 4;
+
+	/** Default wait for a pooled Fedora client, in seconds **/
+	private static final int DEFAULT_POOL_TIMEOUT = 10;
+
+	/** Default requests per second **/
+	private static final int DEFAULT_RATE_LIMIT = 15;
+
+	/** Default target latency for the adaptive rate limit, in ms **/
+	private static final int DEFAULT_TARGET_LATENCY = 1000;
+
+	/** Default number of requests in each adaptive rate limit window **/
+	private static final int DEFAULT_RATE_WINDOW = 100;
+
+	/** Operation name streaming uploads are recorded under **/
+	private static final String UPLOAD_OPERATION = "Upload";
+
+	/** Default life of a cached manifest, in seconds **/
+	private static final int DEFAULT_MANIFEST_CACHE_TTL = 60;
+
+	/** Default number of asynchronous calls allowed to queue **/
+	private static final int DEFAULT_ASYNC_QUEUE_SIZE = 1000;
+
+	/** Transport using the JDK HttpClient **/
+	private static final String JDK_TRANSPORT = "jdk";
+
+	/** Default number of threads completing JDK HttpClient requests **/
+	private static final int DEFAULT_HTTP_THREADS = 2;
+
+	/** Fedora - Request rate limit */
+	private static Fedora36RateLimiter requestRateLimiter;
+
+	/** Fedora - Request statistics */
+	private static Fedora36RequestStats requestStats = new Fedora36RequestStats();
+
+	/** Periodic logging of the request statistics */
+	private static ScheduledExecutorService statisticsLogger;
+
+	/** Periodic logging interval, in seconds. 0 if disabled */
+	private static int statisticsLogInterval;
+
+	/** Are virtual threads configured? */
+	private static boolean virtualThreads;
+
+	/** Creates virtual thread executors. NULL if not configured/available */
+	private static Method virtualThreadFactory;
+
+	/** Runs asynchronous calls */
+	private static ExecutorService asyncExecutor;
+
+	/** Limits queued asynchronous calls on virtual threads. NULL otherwise */
+	private static Semaphore asyncPermits;
+
+	/** Asynchronous calls allowed to queue */
+	private static int asyncQueueSize;
+
+	/** JDK HttpClient transport. NULL if FedoraClient handles everything */
+	private static Fedora36HttpTransport httpTransport;
+
+	/** The configured transport, 'jdk' or 'fedora-client' */
+	private static String httpTransportName;
+
+	/** Threads completing JDK HttpClient requests */
+	private static int httpThreads;
+
+	/** Cached datastream lists, keyed by Fedora PID. NULL if disabled */
+	private static Cache<String, List<DatastreamProfile>> manifestCache;
+
+	/** Most manifests cached. 0 if disabled */
+	private static int manifestCacheSize;
+
+	/** Life of a cached manifest, in seconds */
+	private static int manifestCacheTtl;
 
 	/** Logger */
 	private static Logger log = LoggerFactory.getLogger(Fedora36.class);
@@ -77,8 +173,24 @@ public class Fedora36 {
 	/** Fedora - Client */
 	private static FedoraClient fedoraClient;
 
-	private static LinkedBlockingDeque<FedoraClient> ncFedoraClientCollection = new LinkedBlockingDeque<FedoraClient>(
-			1);
+	/** Fedora - Pooled clients */
+	private static Fedora36ClientPool clientPool;
+
+	/** Local OID indexes, by canonical directory */
+	private static Map<File, Fedora36ObjectIndex> objectIndexes = new HashMap<File, Fedora36ObjectIndex>();
+
+	/** Storage instances using each local OID index, by directory */
+	private static Map<File, Integer> objectIndexUsers = new HashMap<File, Integer>();
+
+	/** Guards the OID indexes, held while their files are opened */
+	private static Lock objectIndexLock = new ReentrantLock();
+
+	/** Fedora - Number of pooled clients */
+	private static int fedoraPoolSize;
+
+	/** Fedora - Wait for a pooled client, in seconds */
+	private static int fedoraPoolTimeout;
+
 	/** Fedora - API-A */
 	// private static FedoraAPIA accessApi;
 
@@ -103,6 +215,12 @@ public class Fedora36 {
 	/** Fedora - Connection timeout */
 	private static int fedoraTimeout;
 
+	/** Fedora - Stream uploads instead of using temp files? */
+	private static boolean streamingUpload;
+
+	/** Fedora - Largest content sent inline instead of uploaded, in bytes */
+	private static int inlineThreshold;
+
 	/** Fedora - Server version */
 	private static String fedoraVersion;
 
@@ -149,17 +267,28 @@ public class Fedora36 {
 	}
 
 	/**
-	 * Constructor
+	 * Constructor. The connection, and the client pool with it, is only made
+	 * by the first call; every later call just re-reads the tunable settings
+	 * via {@link #configure()}.
 	 *
 	 * @throws StorageException
 	 *             if any errors occur
 	 */
 	private static void init() throws StorageException {
-		// Don't instantiate twice
-		if (fedoraClient != null) {
-			return;
+		// Don't connect twice
+		if (fedoraClient == null) {
+			connect();
 		}
+		configure();
+	}
 
+	/**
+	 * Read the connection settings and connect to Fedora.
+	 *
+	 * @throws StorageException
+	 *             if the settings are invalid or the connection fails
+	 */
+	private static void connect() throws StorageException {
 		// Grab all our information from config
 		fedoraUrl = systemConfig.getString(DEFAULT_URL, "storage", "fedora36",
 				"url");
@@ -171,14 +300,19 @@ public class Fedora36 {
 				"fedora36", "namespace");
 		fedoraTimeout = systemConfig.getInteger(15, "storage", "fedora36",
 				"timeout");
-		double rateLimit = systemConfig.getInteger(15, "storage", "fedora36",
-				"rateLimit");
-		requestRateLimiter = RateLimiter.create(rateLimit);
+		fedoraPoolSize = systemConfig.getInteger(DEFAULT_POOL_SIZE,
+				"storage", "fedora36", "poolSize");
+		fedoraPoolTimeout = systemConfig.getInteger(DEFAULT_POOL_TIMEOUT,
+				"storage", "fedora36", "poolTimeout");
 		if (fedoraUrl == null || fedoraNamespace == null
 				|| fedoraUsername == null || fedoraPassword == null) {
 			throw new StorageException("Fedora Storage:"
 					+ " Valid Fedora configuration is mising!");
 		}
+		if (fedoraPoolSize < 1) {
+			throw new StorageException("Fedora Storage:"
+					+ " 'poolSize' must be at least 1!");
+		}
 
 		// Sort out our base URL and HTTP client
 		if (!fedoraUrl.endsWith("/")) {
@@ -192,6 +326,325 @@ public class Fedora36 {
 		fedoraConnect();
 	}
 
+	/**
+	 * (Re)read the settings that are not tied to the connection: uploads,
+	 * rate limiting, the manifest cache, threads and the HTTP transport. Each
+	 * new storage instance applies its own, and since they are shared, the
+	 * most recent wins for every instance. A shared component is only
+	 * rebuilt if its settings have changed, so instances configured alike
+	 * keep the rate the limiter has learnt, the cached manifests, and the
+	 * executor and transport that calls are already using.
+	 *
+	 * @throws StorageException
+	 *             if the settings are invalid
+	 */
+	private static void configure() throws StorageException {
+		streamingUpload = systemConfig.getBoolean(false, "storage",
+				"fedora36", "streamingUpload");
+		inlineThreshold = systemConfig.getInteger(0, "storage", "fedora36",
+				"inlineThreshold");
+
+		Fedora36RateLimiter limiter = buildRateLimiter();
+		boolean newLimiter = !limiter.hasSettingsOf(requestRateLimiter);
+		if (newLimiter) {
+			requestRateLimiter = limiter;
+			if (limiter.isAdaptive()) {
+				log.info("FEDORA adaptive rate limit: start {}/s,"
+						+ " range {}-{}/s", new Object[] { limiter.getRate(),
+						limiter.getMinRate(), limiter.getMaxRate() });
+			}
+		}
+
+		int cacheSize = systemConfig.getInteger(0, "storage", "fedora36",
+				"manifestCacheSize");
+		int cacheTtl = systemConfig.getInteger(DEFAULT_MANIFEST_CACHE_TTL,
+				"storage", "fedora36", "manifestCacheTtl");
+		if (cacheSize != manifestCacheSize || cacheTtl != manifestCacheTtl) {
+			manifestCacheSize = cacheSize;
+			manifestCacheTtl = cacheTtl;
+			manifestCache = buildManifestCache();
+		}
+
+		boolean virtual = systemConfig.getBoolean(false, "storage",
+				"fedora36", "virtualThreads");
+		int queueSize = systemConfig.getInteger(DEFAULT_ASYNC_QUEUE_SIZE,
+				"storage", "fedora36", "asyncQueueSize");
+		if (asyncExecutor == null || virtual != virtualThreads
+				|| queueSize != asyncQueueSize) {
+			virtualThreads = virtual;
+			asyncQueueSize = queueSize;
+			virtualThreadFactory = virtual ? findVirtualThreadFactory()
+					: null;
+			ExecutorService oldExecutor = asyncExecutor;
+			asyncExecutor = buildAsyncExecutor(queueSize);
+			if (oldExecutor != null) {
+				// Let anything already queued finish
+				oldExecutor.shutdown();
+			}
+		}
+
+		String transport = systemConfig.getString("fedora-client", "storage",
+				"fedora36", "httpTransport");
+		int threads = systemConfig.getInteger(DEFAULT_HTTP_THREADS,
+				"storage", "fedora36", "httpThreads");
+		// The transport holds the rate limiter, so follows it
+		if (newLimiter || !transport.equals(httpTransportName)
+				|| threads != httpThreads) {
+			httpTransportName = transport;
+			httpThreads = threads;
+			if (httpTransport != null) {
+				httpTransport.close();
+				httpTransport = null;
+			}
+			if (JDK_TRANSPORT.equals(transport)) {
+				httpTransport = new Fedora36HttpTransport(fedoraUrl,
+						fedoraUsername, fedoraPassword, fedoraTimeout,
+						threads, clientPool.getSize(), requestRateLimiter,
+						requestStats);
+				log.info("FEDORA transport: JDK HttpClient");
+			}
+		}
+
+		int logInterval = systemConfig.getInteger(0, "storage", "fedora36",
+				"statisticsLogInterval");
+		if (logInterval != statisticsLogInterval) {
+			statisticsLogInterval = logInterval;
+			if (statisticsLogger != null) {
+				statisticsLogger.shutdownNow();
+				statisticsLogger = null;
+			}
+			if (logInterval > 0) {
+				scheduleStatisticsLog(logInterval);
+			}
+		}
+	}
+
+	/**
+	 * Build the executor behind the asynchronous API. There is one platform
+	 * thread for each pooled client, since any more would only wait for a
+	 * client, and calls beyond those queue up to a limit and are then
+	 * refused. With virtual threads every call gets its own thread, within
+	 * the same limit, but only one per pooled client runs at a time; the rest
+	 * queue on their own threads, so none of them times out waiting for a
+	 * client.
+	 *
+	 * @param queueSize
+	 *            calls allowed to wait for a thread
+	 * @return ExecutorService The executor
+	 */
+	private static ExecutorService buildAsyncExecutor(int queueSize) {
+		asyncPermits = null;
+		ExecutorService executor = newVirtualThreadExecutor();
+		if (executor != null) {
+			asyncPermits = new Semaphore(fedoraPoolSize
+					+ Math.max(1, queueSize));
+			return new Fedora36GatedExecutor(executor, fedoraPoolSize);
+		}
+		return new ThreadPoolExecutor(fedoraPoolSize, fedoraPoolSize, 60,
+				TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1,
+						queueSize)), new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "fedora36-async-"
+								+ count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * Run a call in the background. The future completes with whatever the
+	 * call returns or throws (usually a StorageException). If too many calls
+	 * are already queued it fails straight away, rather than queueing
+	 * without limit.
+	 *
+	 * @param call
+	 *            The call to make
+	 * @return CompletableFuture<T> The result of the call
+	 */
+	static <T> CompletableFuture<T> async(final Callable<T> call) {
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		final Semaphore permits = asyncPermits;
+		if (permits != null && !permits.tryAcquire()) {
+			future.completeExceptionally(new StorageException(
+					"Too many asynchronous Fedora calls queued"));
+			return future;
+		}
+		try {
+			asyncExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						future.complete(call.call());
+					} catch (Throwable ex) {
+						future.completeExceptionally(ex);
+					} finally {
+						if (permits != null) {
+							permits.release();
+						}
+					}
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			if (permits != null) {
+				permits.release();
+			}
+			future.completeExceptionally(new StorageException(
+					"Too many asynchronous Fedora calls queued", ex));
+		}
+		return future;
+	}
+
+	/**
+	 * An executor for a batch of blocking Fedora calls, running at most a
+	 * fixed number at once. Each call gets a virtual thread if they are
+	 * configured, otherwise the batch shares that many platform threads.
+	 * Either way the calls beyond the limit queue without a deadline. The
+	 * caller must shut it down.
+	 *
+	 * @param threads
+	 *            calls to run at once
+	 * @return ExecutorService The executor
+	 */
+	static ExecutorService newExecutor(int threads) {
+		ExecutorService executor = newVirtualThreadExecutor();
+		if (executor != null) {
+			return new Fedora36GatedExecutor(executor, threads);
+		}
+		return Executors.newFixedThreadPool(threads);
+	}
+
+	/**
+	 * Find the factory for virtual thread executors. The plugin compiles
+	 * for Java 11, so it can only be looked up at runtime.
+	 *
+	 * @return Method The factory, or NULL if this JVM has no virtual threads
+	 *         (before Java 21)
+	 */
+	private static Method findVirtualThreadFactory() {
+		try {
+			return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (NoSuchMethodException ex) {
+			log.warn("Virtual threads are not available in Java {},"
+					+ " using platform threads",
+					System.getProperty("java.version"));
+			return null;
+		}
+	}
+
+	/**
+	 * Create a thread-per-task executor of virtual threads, if configured.
+	 *
+	 * @return ExecutorService The executor, or NULL to use platform threads
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		if (virtualThreadFactory == null) {
+			return null;
+		}
+		try {
+			return (ExecutorService) virtualThreadFactory.invoke(null);
+		} catch (Exception ex) {
+			log.error("Error creating virtual threads: ", ex);
+			return null;
+		}
+	}
+
+	/**
+	 * @return boolean True if Fedora calls are run on virtual threads
+	 */
+	static boolean isVirtualThreads() {
+		return virtualThreadFactory != null;
+	}
+
+	/**
+	 * Log the request statistics on a schedule, from a daemon thread so it
+	 * never holds up shutdown.
+	 *
+	 * @param interval
+	 *            seconds between each log entry
+	 */
+	private static void scheduleStatisticsLog(int interval) {
+		statisticsLogger = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable,
+								"fedora36-statistics");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		statisticsLogger.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				log.info("{}", requestStats);
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+		log.info("FEDORA request statistics logged every {}s", interval);
+	}
+
+	/**
+	 * Build the request rate limiter from config. Fixed unless
+	 * 'adaptiveRateLimit' is set, in which case 'rateLimit' is only the
+	 * starting rate.
+	 *
+	 * @return Fedora36RateLimiter The rate limiter
+	 * @throws StorageException
+	 *             if the configuration is invalid
+	 */
+	private static Fedora36RateLimiter buildRateLimiter()
+			throws StorageException {
+		double rateLimit = systemConfig.getInteger(DEFAULT_RATE_LIMIT,
+				"storage", "fedora36", "rateLimit");
+		boolean adaptive = systemConfig.getBoolean(false, "storage",
+				"fedora36", "adaptiveRateLimit");
+		try {
+			if (!adaptive) {
+				return new Fedora36RateLimiter(rateLimit);
+			}
+			double minRate = systemConfig.getDouble(1.0, "storage",
+					"fedora36", "rateLimitMin");
+			double maxRate = systemConfig.getDouble(rateLimit * 10,
+					"storage", "fedora36", "rateLimitMax");
+			double step = systemConfig.getDouble(1.0, "storage", "fedora36",
+					"rateLimitStep");
+			double backoff = systemConfig.getDouble(0.5, "storage",
+					"fedora36", "rateLimitBackoff");
+			int targetLatency = systemConfig.getInteger(
+					DEFAULT_TARGET_LATENCY, "storage", "fedora36",
+					"rateLimitTargetLatency");
+			int windowSize = systemConfig.getInteger(DEFAULT_RATE_WINDOW,
+					"storage", "fedora36", "rateLimitWindow");
+			return new Fedora36RateLimiter(rateLimit, true, minRate,
+					maxRate, step, backoff, targetLatency, windowSize);
+		} catch (IllegalArgumentException ex) {
+			throw new StorageException("Fedora Storage:"
+					+ " Invalid rate limit configuration!", ex);
+		}
+	}
+
+	/**
+	 * Build the manifest cache from the configured size and life. Disabled
+	 * unless 'manifestCacheSize' is set.
+	 *
+	 * @return Cache<String, List<DatastreamProfile>> The cache, or NULL if
+	 *         disabled
+	 */
+	private static Cache<String, List<DatastreamProfile>> buildManifestCache() {
+		if (manifestCacheSize <= 0) {
+			return null;
+		}
+		log.info("FEDORA manifest cache: {} objects for {}s",
+				manifestCacheSize, manifestCacheTtl);
+		return CacheBuilder.newBuilder().maximumSize(manifestCacheSize)
+				.expireAfterWrite(manifestCacheTtl, TimeUnit.SECONDS)
+				.recordStats()
+				.<String, List<DatastreamProfile>> build();
+	}
+
 	/**
 	 * Establish a connection to Fedora's management API (API-M) to confirm
 	 * credentials, then return the instantiated fedora client used to connect.
@@ -205,6 +658,7 @@ public class Fedora36 {
 			return fedoraClient;
 		}
 
+		List<FedoraClient> clients = new ArrayList<FedoraClient>();
 		try {
 			// Connect to the server
 			FedoraCredentials credentials = new FedoraCredentials(fedoraUrl,
@@ -237,6 +691,13 @@ public class Fedora36 {
 				throw new StorageException("Error; could not retrieve "
 						+ FEDORA_TEST_PID);
 			}
+
+			// The checked client is the first of the pool, the rest share
+			// its credentials but keep their own connections
+			clients.add(fedoraClient);
+			for (int i = 1; i < fedoraPoolSize; i++) {
+				clients.add(new FedoraClient(credentials));
+			}
 		} catch (MalformedURLException ex) {
 			throw new StorageException("Fedora Storage:"
 					+ " Server URL is Invalid (?) : ", ex);
@@ -248,7 +709,9 @@ public class Fedora36 {
 					+ " Error accesing management API! : ", ex);
 		}
 
-		ncFedoraClientCollection.addFirst(fedoraClient);
+		clientPool = new Fedora36ClientPool(clients,
+				fedoraPoolTimeout * 1000L);
+		log.info("FEDORA client pool: {} clients", fedoraPoolSize);
 		return fedoraClient;
 	}
 
@@ -273,30 +736,250 @@ public class Fedora36 {
 	}
 
 	/**
-	 * Package-private 'getter' method for the base Fedora Client.
+	 * Package-private method to borrow a Fedora Client from the pool. Every
+	 * client borrowed must be handed back via
+	 * {@link #releaseNCClient(FedoraClient)}.
 	 *
-	 * @return FedoraClient The Fedora Client Object
+	 * @return FedoraClient A Fedora Client Object for the caller's exclusive
+	 *         use
 	 * @throws StorageException
-	 *             if any errors occur
-	 * @throws InterruptedException
+	 *             if the connection fails, or no client becomes available
+	 *             before the pool times out
 	 */
 	static FedoraClient getNCClient() throws StorageException {
 		fedoraConnect();
-
+		long start = System.nanoTime();
+		requestRateLimiter.acquire();
+		long permitted = System.nanoTime();
+		requestStats.recordPermitWait(permitted - start);
 		try {
-			requestRateLimiter.acquire();
-			return ncFedoraClientCollection.pollFirst(10L, TimeUnit.SECONDS);
-		} catch (InterruptedException e) {
-			throw new StorageException(e);
+			return clientPool.borrow();
+		} finally {
+			requestStats.recordPoolWait(System.nanoTime() - permitted);
 		}
+	}
 
+	/**
+	 * Return a Fedora Client to the pool. NULL values and clients that are not
+	 * currently borrowed are ignored, so this is safe to call from 'finally'
+	 * blocks.
+	 *
+	 * @param client
+	 *            The Fedora Client to return
+	 */
+	static void releaseNCClient(FedoraClient client) {
+		if (clientPool != null) {
+			clientPool.release(client);
+		}
+	}
+
+	/**
+	 * Package-private 'getter' for the request rate limiter.
+	 *
+	 * @return Fedora36RateLimiter The rate limiter, NULL before init
+	 */
+	static Fedora36RateLimiter getRateLimiter() {
+		return requestRateLimiter;
+	}
+
+	/**
+	 * Package-private 'getter' for the request statistics.
+	 *
+	 * @return Fedora36RequestStats The statistics of every request sent
+	 */
+	static Fedora36RequestStats getRequestStats() {
+		return requestStats;
 	}
 
-	public static void releaseNCClient() {
-		if (ncFedoraClientCollection.isEmpty()) {
-			ncFedoraClientCollection.offer(fedoraClient);
+	/**
+	 * Look for an object's datastream list in the manifest cache.
+	 *
+	 * @param fedoraPid
+	 *            The fedora PID of the object
+	 * @return List<DatastreamProfile> The datastreams, or NULL if not cached
+	 */
+	static List<DatastreamProfile> getCachedManifest(String fedoraPid) {
+		if (manifestCache == null) {
+			return null;
 		}
+		return manifestCache.getIfPresent(fedoraPid);
+	}
 
+	/**
+	 * Put an object's datastream list into the manifest cache.
+	 *
+	 * @param fedoraPid
+	 *            The fedora PID of the object
+	 * @param datastreams
+	 *            The datastreams Fedora returned
+	 */
+	static void cacheManifest(String fedoraPid,
+			List<DatastreamProfile> datastreams) {
+		if (manifestCache != null && datastreams != null) {
+			manifestCache.put(fedoraPid, Collections
+					.unmodifiableList(new ArrayList<DatastreamProfile>(
+							datastreams)));
+		}
+	}
+
+	/**
+	 * Forget a cached datastream list. Must be called whenever this plugin
+	 * changes an object's datastreams or removes the object.
+	 *
+	 * @param fedoraPid
+	 *            The fedora PID of the object
+	 */
+	static void invalidateManifest(String fedoraPid) {
+		if (manifestCache != null) {
+			manifestCache.invalidate(fedoraPid);
+		}
+	}
+
+	/**
+	 * Package-private 'getter' for the manifest cache statistics.
+	 *
+	 * @return CacheStats Hit and miss counts, or NULL if the cache is
+	 *         disabled
+	 */
+	static CacheStats getManifestCacheStats() {
+		return manifestCache == null ? null : manifestCache.stats();
+	}
+
+	/**
+	 * Package-private 'getter' for the client pool, mainly for its
+	 * statistics.
+	 *
+	 * @return Fedora36ClientPool The client pool, NULL before connecting
+	 */
+	static Fedora36ClientPool getClientPool() {
+		return clientPool;
+	}
+
+	/**
+	 * Open the local OID index held in a directory. Every storage instance
+	 * naming the same directory shares one index, so each sees the others'
+	 * changes and only one writes its log. Every index opened must be handed
+	 * back via {@link #closeObjectIndex(Fedora36ObjectIndex)}; the files are
+	 * closed once no instance is using them.
+	 *
+	 * @param directory
+	 *            The directory holding the index files
+	 * @param compactAfter
+	 *            Log entries to allow before compacting, if the index is not
+	 *            already open
+	 * @return Fedora36ObjectIndex The shared index
+	 * @throws IOException
+	 *             if the index could not be read
+	 */
+	static Fedora36ObjectIndex openObjectIndex(File directory, int compactAfter)
+			throws IOException {
+		File key = directory.getCanonicalFile();
+		objectIndexLock.lock();
+		try {
+			Fedora36ObjectIndex index = objectIndexes.get(key);
+			if (index == null) {
+				index = new Fedora36ObjectIndex(key, compactAfter);
+				objectIndexes.put(key, index);
+				objectIndexUsers.put(key, 0);
+			}
+			objectIndexUsers.put(key, objectIndexUsers.get(key) + 1);
+			return index;
+		} finally {
+			objectIndexLock.unlock();
+		}
+	}
+
+	/**
+	 * Hand back a local OID index, closing it if no other storage instance
+	 * is using it. Indexes that are not open are ignored.
+	 *
+	 * @param index
+	 *            The index from {@link #openObjectIndex(File, int)}
+	 */
+	static void closeObjectIndex(Fedora36ObjectIndex index) {
+		File key = index.getDirectory();
+		objectIndexLock.lock();
+		try {
+			Integer users = objectIndexUsers.get(key);
+			if (users == null || objectIndexes.get(key) != index) {
+				return;
+			}
+			if (users > 1) {
+				objectIndexUsers.put(key, users - 1);
+				return;
+			}
+			objectIndexUsers.remove(key);
+			objectIndexes.remove(key);
+			index.close();
+		} finally {
+			objectIndexLock.unlock();
+		}
+	}
+
+	/**
+	 * Should payload content be streamed to Fedora, rather than cached in a
+	 * temp file first?
+	 *
+	 * @return boolean True if streaming uploads are configured
+	 */
+	static boolean isStreamingUpload() {
+		return streamingUpload;
+	}
+
+	/**
+	 * Content up to this size is sent with the add or modify request itself,
+	 * saving the Upload round trip.
+	 *
+	 * @return int The threshold in bytes, 0 if content is never inlined
+	 */
+	static int getInlineThreshold() {
+		return inlineThreshold;
+	}
+
+	/**
+	 * Stream content to Fedora's upload endpoint in a chunked request. The
+	 * Fedora client can only upload Files, so this goes through the
+	 * Fascinator HTTP client, but still holds a pooled client for the
+	 * length of the request, is rate limited and is recorded in the request
+	 * statistics as an 'Upload'.
+	 *
+	 * @param upload
+	 *            The content to upload
+	 * @return String The temporary URL Fedora will need to access it
+	 * @throws StorageException
+	 *             if the upload failed
+	 */
+	static String streamUpload(Fedora36StreamingUpload upload)
+			throws StorageException {
+		// Not used, but keeps uploads within the pool's limit
+		FedoraClient fedoraClient = getNCClient();
+
+		PostMethod post = new PostMethod(fedoraUrl + "upload");
+		post.setRequestEntity(upload);
+		post.setContentChunked(true);
+		long start = System.nanoTime();
+		try {
+			int status = http.executeMethod(post);
+			long nanos = System.nanoTime() - start;
+			requestRateLimiter.recordResponse(nanos, status);
+			boolean accepted = status == 201 || status == 202;
+			requestStats.record(UPLOAD_OPERATION, nanos,
+					upload.getBytesWritten(), !accepted);
+			if (!accepted) {
+				throw new StorageException("Error; Fedora rejected upload: HTTP "
+						+ status);
+			}
+			return post.getResponseBodyAsString().trim();
+		} catch (IOException ex) {
+			long nanos = System.nanoTime() - start;
+			requestRateLimiter.recordFailure(nanos, ex);
+			requestStats.record(UPLOAD_OPERATION, nanos,
+					upload.getBytesWritten(), true);
+			throw new StorageException("Error; sending upload to Fedora", ex);
+		} finally {
+			post.releaseConnection();
+			releaseNCClient(fedoraClient);
+		}
 	}
 
 	/**
@@ -322,16 +1005,245 @@ public class Fedora36 {
 	static InputStream getStream(String fedoraPid, String dsId)
 			throws IOException {
 		try {
-			FedoraResponse r = executeFedoraRequest(getNCClient(),
-					FedoraClient.getDatastreamDissemination(fedoraPid, dsId));
-			return r.getEntityInputStream();
+			if (httpTransport != null) {
+				return await(getStreamAsync(fedoraPid, dsId));
+			}
+			return getStream(FedoraClient.getDatastreamDissemination(
+					fedoraPid, dsId));
 		} catch (Exception e) {
 			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Get InputStream of a Datastream without waiting for Fedora to answer.
+	 * With the JDK HttpClient transport no thread is held while waiting,
+	 * otherwise the request is made from an asynchronous call thread.
+	 *
+	 * @param fedoraPid
+	 *            The fedora PID containing the datastream
+	 * @param dsId
+	 *            The datastream's ID
+	 * @return CompletableFuture<InputStream> An input stream for the
+	 *         datastream, which the caller must close
+	 */
+	static CompletableFuture<InputStream> getStreamAsync(
+			final String fedoraPid, final String dsId) {
+		if (httpTransport == null) {
+			return async(new Callable<InputStream>() {
+				@Override
+				public InputStream call() throws IOException {
+					return getStream(fedoraPid, dsId);
+				}
+			});
+		}
+		return httpTransport.getDatastreamContent(fedoraPid, dsId)
+				.thenCompose(
+						new Function<Flow.Publisher<List<ByteBuffer>>, CompletableFuture<InputStream>>() {
+							@Override
+							public CompletableFuture<InputStream> apply(
+									Flow.Publisher<List<ByteBuffer>> body) {
+								return Fedora36HttpTransport
+										.toInputStream(body);
+							}
+						}).thenApply(new Function<InputStream, InputStream>() {
+					@Override
+					public InputStream apply(InputStream in) {
+						return countReceived("GetDatastreamDissemination", in);
+					}
+				});
+	}
+
+	/**
+	 * Search the resource index with a SPARQL tuple query, streaming back
+	 * the results.
+	 *
+	 * @param query
+	 *            The SPARQL query
+	 * @param format
+	 *            The result format, eg. 'CSV' or 'count'
+	 * @return InputStream The results, which the caller must close
+	 * @throws FedoraClientException
+	 *             if Fedora refused the query
+	 * @throws StorageException
+	 *             if Fedora could not be reached
+	 */
+	static InputStream riSearch(String query, String format)
+			throws FedoraClientException, StorageException {
+		if (httpTransport == null) {
+			return getStream(FedoraClient.riSearch(query).type("tuples")
+					.lang("sparql").format(format));
+		}
+		InputStream in = await(httpTransport.riSearch(query, format)
+				.thenCompose(
+						new Function<Flow.Publisher<List<ByteBuffer>>, CompletableFuture<InputStream>>() {
+							@Override
+							public CompletableFuture<InputStream> apply(
+									Flow.Publisher<List<ByteBuffer>> body) {
+								return Fedora36HttpTransport
+										.toInputStream(body);
+							}
+						}));
+		return countReceived("RiSearch", in);
+	}
+
+	/**
+	 * The JDK HttpClient transport, if it is configured.
+	 *
+	 * @return Fedora36HttpTransport The transport, or NULL if all requests
+	 *         go through FedoraClient
+	 */
+	static Fedora36HttpTransport getHttpTransport() {
+		return httpTransport;
+	}
+
+	/**
+	 * Wait for a transport request to finish, turning its failure back into
+	 * the exception the FedoraClient equivalent would have thrown.
+	 *
+	 * @param future
+	 *            The request
+	 * @return T The result
+	 * @throws FedoraClientException
+	 *             if Fedora returned an error
+	 * @throws StorageException
+	 *             for any other failure
+	 */
+	static <T> T await(CompletableFuture<T> future)
+			throws FedoraClientException, StorageException {
+		try {
+			return future.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new StorageException("Interrupted waiting for Fedora", ex);
+		} catch (ExecutionException ex) {
+			Throwable cause = Fedora36HttpTransport.unwrap(ex.getCause());
+			if (cause instanceof FedoraClientException) {
+				throw (FedoraClientException) cause;
+			}
+			if (cause instanceof StorageException) {
+				throw (StorageException) cause;
+			}
+			throw new StorageException("Error accessing Fedora", cause);
+		}
+	}
+
+	/**
+	 * Execute a request against Fedora and stream back the response body.
+	 * The pooled client stays borrowed while the body is read through its
+	 * connection, until the stream runs out or is closed, whichever is first.
+	 *
+	 * @param request
+	 *            The request to send
+	 * @return InputStream The response body, which the caller must close
+	 * @throws FedoraClientException
+	 *             if Fedora refused the request
+	 * @throws StorageException
+	 *             if no client was available to send it
+	 */
+	static InputStream getStream(FedoraRequest<?> request)
+			throws FedoraClientException, StorageException {
+		FedoraClient fedoraClient = getNCClient();
+		boolean streaming = false;
+		try {
+			FedoraResponse r = executeFedoraRequest(fedoraClient, request, 0);
+			InputStream in = countReceived(operationName(request),
+					r.getEntityInputStream(), fedoraClient);
+			streaming = true;
+			return in;
 		} finally {
-			releaseNCClient();
+			if (!streaming) {
+				releaseNCClient(fedoraClient);
+			}
 		}
 	}
 
+	/**
+	 * Count the bytes of a response body. The body is read long after the
+	 * request returns, so the bytes are counted as they go past and
+	 * recorded when the stream runs out or is closed, whichever is first. A
+	 * stream closed early only records the bytes actually read.
+	 *
+	 * @param operation
+	 *            The name the request was recorded under
+	 * @param in
+	 *            The response body
+	 * @return InputStream The response body, which the caller must close
+	 */
+	static InputStream countReceived(String operation, InputStream in) {
+		return countReceived(operation, in, null);
+	}
+
+	/**
+	 * Count the bytes of a response body, as per
+	 * {@link #countReceived(String, InputStream)}, then hand back the client
+	 * it is being read through as soon as the stream runs out or is closed.
+	 * Callers that read to the end but never close still return the client.
+	 *
+	 * @param operation
+	 *            The name the request was recorded under
+	 * @param in
+	 *            The response body
+	 * @param fedoraClient
+	 *            The borrowed client to release when done, or NULL
+	 * @return InputStream The response body, which the caller must close
+	 */
+	private static InputStream countReceived(final String operation,
+			InputStream in, final FedoraClient fedoraClient) {
+		return new CountingInputStream(in) {
+			private boolean recorded;
+
+			private boolean released;
+
+			@Override
+			public int read() throws IOException {
+				int b = super.read();
+				if (b == -1) {
+					finish();
+				}
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b) throws IOException {
+				int read = super.read(b);
+				if (read == -1) {
+					finish();
+				}
+				return read;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int read = super.read(b, off, len);
+				if (read == -1) {
+					finish();
+				}
+				return read;
+			}
+
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					finish();
+				}
+			}
+
+			private void finish() {
+				if (!recorded) {
+					recorded = true;
+					requestStats.recordReceived(operation, getByteCount());
+				}
+				if (fedoraClient != null && !released) {
+					released = true;
+					releaseNCClient(fedoraClient);
+				}
+			}
+		};
+	}
+
 	/**
 	 * Release an open HTTP connection that may be held for this combination of
 	 * PID and DSID.
@@ -447,11 +1359,115 @@ public class Fedora36 {
 		}
 	}
 
+	/**
+	 * Execute a request against Fedora. Every Fedora call in the plugin comes
+	 * through here: a rate limit permit and a pooled client are acquired,
+	 * the request is sent and timed, and the client is handed back.
+	 *
+	 * @param fedoraRequest
+	 *            The request to execute
+	 * @return FedoraResponse The response from Fedora
+	 * @throws FedoraClientException
+	 *             if Fedora returned an error
+	 * @throws StorageException
+	 *             if no client became available
+	 */
+	static FedoraResponse execute(FedoraRequest<?> fedoraRequest)
+			throws FedoraClientException, StorageException {
+		return execute(fedoraRequest, 0);
+	}
+
+	/**
+	 * Execute a request against Fedora, as per
+	 * {@link #execute(FedoraRequest)}, recording the size of the content
+	 * being sent.
+	 *
+	 * @param fedoraRequest
+	 *            The request to execute
+	 * @param bytesSent
+	 *            The size of the content sent with the request
+	 * @return FedoraResponse The response from Fedora
+	 * @throws FedoraClientException
+	 *             if Fedora returned an error
+	 * @throws StorageException
+	 *             if no client became available
+	 */
+	static FedoraResponse execute(FedoraRequest<?> fedoraRequest,
+			long bytesSent) throws FedoraClientException, StorageException {
+		FedoraClient fedoraClient = getNCClient();
+		try {
+			return executeFedoraRequest(fedoraClient, fedoraRequest,
+					bytesSent);
+		} finally {
+			releaseNCClient(fedoraClient);
+		}
+	}
+
+	/**
+	 * Execute a request against Fedora, feeding its latency and outcome back
+	 * to the rate limiter and the request statistics.
+	 *
+	 * @param fedoraClient
+	 *            A borrowed Fedora Client to execute with
+	 * @param fedoraRequest
+	 *            The request to execute
+	 * @param bytesSent
+	 *            The size of the content sent with the request
+	 * @return FedoraResponse The response from Fedora
+	 * @throws FedoraClientException
+	 *             if Fedora returned an error
+	 */
 	private static FedoraResponse executeFedoraRequest(
-			FedoraClient fedoraClient, FedoraRequest<?> fedoraRequest)
-			throws FedoraClientException {
-		return fedoraRequest.execute(fedoraClient);
+			FedoraClient fedoraClient, FedoraRequest<?> fedoraRequest,
+			long bytesSent) throws FedoraClientException {
+		String operation = operationName(fedoraRequest);
+		long start = System.nanoTime();
+		try {
+			FedoraResponse response = fedoraRequest.execute(fedoraClient);
+			long nanos = System.nanoTime() - start;
+			requestRateLimiter.recordResponse(nanos, response.getStatus());
+			requestStats.record(operation, nanos, bytesSent, false);
+			return response;
+		} catch (FedoraClientException ex) {
+			long nanos = System.nanoTime() - start;
+			requestRateLimiter.recordFailure(nanos, ex);
+			requestStats.record(operation, nanos, bytesSent, true);
+			throw ex;
+		} catch (RuntimeException ex) {
+			// Jersey wraps connection problems (eg. timeouts) in these
+			long nanos = System.nanoTime() - start;
+			requestRateLimiter.recordFailure(nanos, ex);
+			requestStats.record(operation, nanos, bytesSent, true);
+			throw ex;
+		}
+	}
+
+	/**
+	 * Does an error mean Fedora refused to ingest an object because its PID
+	 * is already in use? Fedora 3 reports this as a 500 carrying an
+	 * ObjectExistsException, some proxies and later versions as a 409.
+	 *
+	 * @param ex
+	 *            The error from Fedora
+	 * @return boolean True if the object already exists
+	 */
+	static boolean isObjectExists(FedoraClientException ex) {
+		if (ex.getStatus() == 409) {
+			return true;
+		}
+		String message = ex.getMessage();
+		return message != null && message.contains("ObjectExistsException");
+	}
 
+	/**
+	 * The name statistics are kept under for a request, ie. its type.
+	 *
+	 * @param fedoraRequest
+	 *            The request
+	 * @return String The operation name, eg. 'Ingest'
+	 */
+	private static String operationName(FedoraRequest<?> fedoraRequest) {
+		return fedoraRequest.getClass().getSimpleName();
 	}
 
 }
@@ -0,0 +1,114 @@
+/*
+ * The Fascinator - Fedora Commons 3.x storage plugin
+ * Copyright (C) 2009-2011 University of Southern Queensland
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.fedora;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.googlecode.fascinator.api.storage.DigitalObject;
+import com.googlecode.fascinator.api.storage.StorageException;
+
+/**
+ * The outcome of a batch operation, such as
+ * {@link Fedora36Storage#createObjects(java.util.Collection)}. Every OID in
+ * the batch ends up in exactly one of the two maps.
+ *
+ * @author Greg Pendlebury
+ */
+public class Fedora36BatchResult {
+    /** Objects that succeeded, by OID */
+    private Map<String, DigitalObject> objects = new LinkedHashMap<String, DigitalObject>();
+
+    /** Objects that failed, by OID */
+    private Map<String, StorageException> failures = new LinkedHashMap<String, StorageException>();
+
+    /** Time the batch took, in milliseconds */
+    private long elapsed;
+
+    /**
+     * Record an object that succeeded.
+     *
+     * @param oid the Object ID
+     * @param object the object
+     */
+    synchronized void addObject(String oid, DigitalObject object) {
+        objects.put(oid, object);
+    }
+
+    /**
+     * Record an object that failed.
+     *
+     * @param oid the Object ID
+     * @param failure the reason
+     */
+    synchronized void addFailure(String oid, StorageException failure) {
+        failures.put(oid, failure);
+    }
+
+    /**
+     * @param elapsed the time the batch took, in milliseconds
+     */
+    synchronized void setElapsed(long elapsed) {
+        this.elapsed = elapsed;
+    }
+
+    /**
+     * @return Map<String, DigitalObject> The objects that succeeded, by OID
+     */
+    public synchronized Map<String, DigitalObject> getObjects() {
+        return Collections.unmodifiableMap(objects);
+    }
+
+    /**
+     * @return Map<String, StorageException> The reason each failed object
+     *         failed, by OID
+     */
+    public synchronized Map<String, StorageException> getFailures() {
+        return Collections.unmodifiableMap(failures);
+    }
+
+    /**
+     * @return long The time the batch took, in milliseconds
+     */
+    public synchronized long getElapsed() {
+        return elapsed;
+    }
+
+    /**
+     * @return double Objects processed per second
+     */
+    public synchronized double getThroughput() {
+        long total = objects.size() + failures.size();
+        return elapsed == 0 ? total : total * 1000.0 / elapsed;
+    }
+
+    /**
+     * A one line summary, suitable for logging.
+     *
+     * @return String The summary
+     */
+    @Override
+    public synchronized String toString() {
+        return "Fedora batch: " + objects.size() + " succeeded, "
+                + failures.size() + " failed in " + elapsed + "ms ("
+                + Math.round(getThroughput()) + "/s)";
+    }
+}
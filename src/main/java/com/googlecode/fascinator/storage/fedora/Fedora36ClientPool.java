@@ -0,0 +1,308 @@
+/*
+ * The Fascinator - Fedora Commons 3.x storage plugin
+ * Copyright (C) 2009-2011 University of Southern Queensland
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.fedora;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.googlecode.fascinator.api.storage.StorageException;
+import com.yourmediashelf.fedora.client.FedoraClient;
+
+/**
+ * A fixed size pool of Fedora Clients shared by every thread using the
+ * plugin. Each client is tracked from the moment it is borrowed until it is
+ * released, so releasing a client that was never borrowed (or releasing the
+ * same client twice) cannot grow the pool or hand one client to two threads.
+ * A client kept longer than the borrow timeout is logged, with the thread
+ * that borrowed it, the next time a borrower has to wait.
+ *
+ * @author Greg Pendlebury
+ */
+public class Fedora36ClientPool {
+    /** Logger */
+    private static Logger log = LoggerFactory
+            .getLogger(Fedora36ClientPool.class);
+
+    /** Clients waiting to be borrowed */
+    private LinkedBlockingQueue<FedoraClient> idleClients;
+
+    /** Clients currently on loan */
+    private Map<FedoraClient, Loan> borrowedClients;
+
+    /** Total number of clients in the pool */
+    private int size;
+
+    /** How long a caller will wait for a client, in milliseconds */
+    private long timeout;
+
+    /** Successful borrows */
+    private AtomicLong borrowCount = new AtomicLong();
+
+    /** Borrows that found no idle client and had to wait */
+    private AtomicLong waitCount = new AtomicLong();
+
+    /** Borrows that gave up waiting */
+    private AtomicLong timeoutCount = new AtomicLong();
+
+    /** Releases of clients that were not on loan */
+    private AtomicLong strayReleaseCount = new AtomicLong();
+
+    /** Total time spent waiting for a client, in nanoseconds */
+    private AtomicLong totalWaitNanos = new AtomicLong();
+
+    /** Longest single wait for a client, in nanoseconds */
+    private AtomicLong maxWaitNanos = new AtomicLong();
+
+    /** Highest number of clients on loan at any one time */
+    private AtomicLong peakActive = new AtomicLong();
+
+    /** Loans found to have lasted longer than the timeout */
+    private AtomicLong overdueCount = new AtomicLong();
+
+    /**
+     * When, and by whom, a client was borrowed.
+     */
+    private static class Loan {
+        /** Borrowed at, from System.nanoTime() */
+        private final long start = System.nanoTime();
+
+        /** The borrowing thread */
+        private final String thread = Thread.currentThread().getName();
+
+        /** Has this loan been logged as overdue? */
+        private volatile boolean overdue;
+    }
+
+    /**
+     * Constructor
+     *
+     * @param clients the Fedora Clients to pool, at least one is required
+     * @param timeout how long to wait for an idle client, in milliseconds
+     */
+    public Fedora36ClientPool(Collection<FedoraClient> clients, long timeout) {
+        if (clients == null || clients.isEmpty()) {
+            throw new IllegalArgumentException(
+                    "A client pool requires at least one client");
+        }
+        this.size = clients.size();
+        this.timeout = timeout;
+        idleClients = new LinkedBlockingQueue<FedoraClient>(clients);
+        borrowedClients = new ConcurrentHashMap<FedoraClient, Loan>();
+    }
+
+    /**
+     * Borrow a client from the pool, waiting up to the configured timeout for
+     * one to become available. The client must be handed back via
+     * {@link #release(FedoraClient)}.
+     *
+     * @return FedoraClient a client for the exclusive use of the caller
+     * @throws StorageException if no client became available in time, or the
+     *             calling thread was interrupted while waiting
+     */
+    public FedoraClient borrow() throws StorageException {
+        FedoraClient client = idleClients.poll();
+        if (client == null) {
+            waitCount.incrementAndGet();
+            checkOverdue();
+            long start = System.nanoTime();
+            try {
+                client = idleClients.poll(timeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new StorageException("Fedora Storage: Interrupted"
+                        + " while waiting for a Fedora client", ex);
+            } finally {
+                recordWait(System.nanoTime() - start);
+            }
+            if (client == null) {
+                timeoutCount.incrementAndGet();
+                checkOverdue();
+                throw new StorageException("Fedora Storage: No Fedora client"
+                        + " became available within " + timeout + "ms ("
+                        + size + " clients, all in use)");
+            }
+        }
+
+        borrowedClients.put(client, new Loan());
+        borrowCount.incrementAndGet();
+        long active = borrowedClients.size();
+        long peak = peakActive.get();
+        while (active > peak && !peakActive.compareAndSet(peak, active)) {
+            peak = peakActive.get();
+        }
+        return client;
+    }
+
+    /**
+     * Return a borrowed client to the pool. NULL values are ignored, as are
+     * clients that are not currently on loan, so it is always safe to call
+     * this from a 'finally' block.
+     *
+     * @param client the client to return
+     * @return boolean True if the client was returned to the pool, False if
+     *         it was ignored
+     */
+    public boolean release(FedoraClient client) {
+        if (client == null) {
+            return false;
+        }
+        if (borrowedClients.remove(client) == null) {
+            strayReleaseCount.incrementAndGet();
+            log.debug("Ignoring release of a Fedora client not on loan");
+            return false;
+        }
+        idleClients.offer(client);
+        return true;
+    }
+
+    /**
+     * Log any client that has been on loan for longer than the timeout,
+     * once per loan. These are most likely response streams that were
+     * never read to the end or closed, and the pool will not get them back.
+     */
+    private void checkOverdue() {
+        long now = System.nanoTime();
+        for (Loan loan : borrowedClients.values()) {
+            long held = TimeUnit.NANOSECONDS.toMillis(now - loan.start);
+            if (held > timeout && !loan.overdue) {
+                loan.overdue = true;
+                overdueCount.incrementAndGet();
+                log.warn("A Fedora client has been on loan to '{}' for {}ms,"
+                        + " longer than the {}ms timeout; was a stream left"
+                        + " open?", new Object[] { loan.thread, held, timeout });
+            }
+        }
+    }
+
+    /**
+     * Record the time a single borrow spent waiting.
+     *
+     * @param nanos the wait in nanoseconds
+     */
+    private void recordWait(long nanos) {
+        totalWaitNanos.addAndGet(nanos);
+        long max = maxWaitNanos.get();
+        while (nanos > max && !maxWaitNanos.compareAndSet(max, nanos)) {
+            max = maxWaitNanos.get();
+        }
+    }
+
+    /**
+     * @return int The total number of clients in the pool
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return int The number of clients currently on loan
+     */
+    public int getActiveCount() {
+        return borrowedClients.size();
+    }
+
+    /**
+     * @return int The number of clients currently idle
+     */
+    public int getIdleCount() {
+        return idleClients.size();
+    }
+
+    /**
+     * @return long The highest number of clients on loan at any one time
+     */
+    public long getPeakActiveCount() {
+        return peakActive.get();
+    }
+
+    /**
+     * @return long The number of successful borrows
+     */
+    public long getBorrowCount() {
+        return borrowCount.get();
+    }
+
+    /**
+     * @return long The number of borrows that had to wait for a client
+     */
+    public long getWaitCount() {
+        return waitCount.get();
+    }
+
+    /**
+     * @return long The number of borrows that timed out
+     */
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    /**
+     * @return long The number of ignored releases
+     */
+    public long getStrayReleaseCount() {
+        return strayReleaseCount.get();
+    }
+
+    /**
+     * @return long The number of loans found to have lasted longer than the
+     *         timeout
+     */
+    public long getOverdueCount() {
+        return overdueCount.get();
+    }
+
+    /**
+     * @return long The total time borrowers have spent waiting, in
+     *         milliseconds
+     */
+    public long getTotalWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get());
+    }
+
+    /**
+     * @return long The longest single wait for a client, in milliseconds
+     */
+    public long getMaxWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+    }
+
+    /**
+     * A one line summary of the pool's statistics, suitable for logging.
+     *
+     * @return String The summary
+     */
+    @Override
+    public String toString() {
+        return "Fedora client pool: size=" + size + ", active="
+                + getActiveCount() + ", peakActive=" + getPeakActiveCount()
+                + ", borrows=" + getBorrowCount() + ", waits="
+                + getWaitCount() + ", timeouts=" + getTimeoutCount()
+                + ", totalWaitMs=" + getTotalWaitMillis() + ", maxWaitMs="
+                + getMaxWaitMillis() + ", strayReleases="
+                + getStrayReleaseCount() + ", overdue=" + getOverdueCount();
+    }
+}
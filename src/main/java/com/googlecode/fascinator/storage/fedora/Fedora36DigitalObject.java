@@ -19,24 +19,37 @@
  */
 package com.googlecode.fascinator.storage.fedora;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang.StringEscapeUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.poi.util.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.util.WeakReferenceMonitor.ReleaseListener;
 
+import com.google.common.util.concurrent.Striped;
 import com.googlecode.fascinator.api.storage.Payload;
 import com.googlecode.fascinator.api.storage.PayloadType;
 import com.googlecode.fascinator.api.storage.StorageException;
@@ -45,13 +58,12 @@ import com.googlecode.fascinator.common.storage.impl.GenericDigitalObject;
 import com.yourmediashelf.fedora.client.FedoraClient;
 import com.yourmediashelf.fedora.client.FedoraClientException;
 import com.yourmediashelf.fedora.client.request.AddDatastream;
-import com.yourmediashelf.fedora.client.request.FedoraRequest;
 import com.yourmediashelf.fedora.client.request.GetDatastream;
 import com.yourmediashelf.fedora.client.request.GetDatastreams;
 import com.yourmediashelf.fedora.client.request.ModifyDatastream;
 import com.yourmediashelf.fedora.client.request.PurgeDatastream;
 import com.yourmediashelf.fedora.client.request.Upload;
-import com.yourmediashelf.fedora.client.response.FedoraResponse;
+import com.yourmediashelf.fedora.client.response.DatastreamProfileResponse;
 import com.yourmediashelf.fedora.client.response.GetDatastreamResponse;
 import com.yourmediashelf.fedora.client.response.GetDatastreamsResponse;
 import com.yourmediashelf.fedora.client.response.UploadResponse;
@@ -79,6 +91,46 @@ public class Fedora36DigitalObject extends GenericDigitalObject {
 	/** Internal Fedora PID */
 	private String fedoraPid;
 
+	/** Locks guarding payload writes, striped by PID and payload ID */
+	private static final Striped<Lock> PAYLOAD_LOCKS = Striped.lock(256);
+
+	/** Payloads in this object, safe to read while others are written */
+	private final ConcurrentMap<String, Payload> manifest = new ConcurrentHashMap<String, Payload>();
+
+	/** Has the manifest been read from Fedora yet? */
+	private volatile boolean manifestLoaded;
+
+	/**
+	 * Guards reading the manifest from Fedora. Held across the request, so
+	 * it is not a monitor, which would pin a virtual thread.
+	 */
+	private final Lock manifestLock = new ReentrantLock();
+
+	/** Guards choosing the source payload */
+	private final Object sourceLock = new Object();
+
+	/**
+	 * Content ready to attach to a datastream, either uploaded to Fedora or
+	 * small enough to send inline.
+	 */
+	private static class UploadedContent {
+		/** The MIME type detected */
+		private String contentType;
+
+		/** The temporary URL Fedora will need to access it */
+		private String location;
+
+		/** The content itself, if it is to be sent inline */
+		private byte[] data;
+
+		/**
+		 * @return long The bytes sent inline with the datastream request
+		 */
+		private long inlineSize() {
+			return data == null ? 0 : data.length;
+		}
+	}
+
 	/**
 	 * Constructor
 	 *
@@ -92,27 +144,73 @@ public class Fedora36DigitalObject extends GenericDigitalObject {
 		// log.debug("Construct Fedora3DigitalObject oid={} fid={}", oid,
 		// fedoraPid);
 		this.fedoraPid = fedoraPid;
-		buildManifest();
+	}
+
+	/**
+	 * Get the manifest of payloads in this object. It is only read from
+	 * Fedora the first time it is needed, since many callers only want a
+	 * single payload they already know the ID of. It may be read while
+	 * payloads are being written.
+	 *
+	 * @return Map<String, Payload> The manifest
+	 */
+	@Override
+	public Map<String, Payload> getManifest() {
+		if (!manifestLoaded) {
+			manifestLock.lock();
+			try {
+				if (!manifestLoaded) {
+					manifestLoaded = buildManifest();
+				}
+			} finally {
+				manifestLock.unlock();
+			}
+		}
+		return manifest;
+	}
+
+	/**
+	 * Get the IDs of every payload in this object, reading the manifest from
+	 * Fedora if required.
+	 *
+	 * @return Set<String> The payload IDs
+	 */
+	@Override
+	public Set<String> getPayloadIdList() {
+		return getManifest().keySet();
+	}
+
+	/**
+	 * Get the ID of the source payload, reading the manifest from Fedora if
+	 * required.
+	 *
+	 * @return String The source payload ID, possibly NULL
+	 */
+	@Override
+	public String getSourceId() {
+		getManifest();
+		return super.getSourceId();
 	}
 
 	/**
 	 * Build a metadata manifest for this object
 	 *
+	 * @return boolean True if the manifest was read from Fedora, False if it
+	 *         should be tried again next time
 	 */
-	private void buildManifest() {
+	private boolean buildManifest() {
 		// log.debug("buildManifest({})", getId());
-		// Get a (presumably) empty manifest from our superclass
-		Map<String, Payload> manifest = getManifest();
 		try {
-
-			FedoraClient fedoraClient = Fedora36.getNCClient();
-			GetDatastreams getDataStreams = FedoraClient
-					.getDatastreams(fedoraPid);
-			GetDatastreamsResponse response = (GetDatastreamsResponse) executeFedoraRequest(
-					fedoraClient, getDataStreams);
-
-			List<DatastreamProfile> dsProfiles = response
-					.getDatastreamProfiles();
+			List<DatastreamProfile> dsProfiles = Fedora36
+					.getCachedManifest(fedoraPid);
+			if (dsProfiles == null) {
+				GetDatastreams getDataStreams = FedoraClient
+						.getDatastreams(fedoraPid);
+				GetDatastreamsResponse response = (GetDatastreamsResponse) Fedora36
+						.execute(getDataStreams);
+				dsProfiles = response.getDatastreamProfiles();
+				Fedora36.cacheManifest(fedoraPid, dsProfiles);
+			}
 			for (DatastreamProfile datastreamProfile : dsProfiles) {
 				String dsId = datastreamProfile.getDsID();
 				if (!"DC".equals(dsId)) {
@@ -136,11 +234,11 @@ public class Fedora36DigitalObject extends GenericDigitalObject {
 					manifest.put(pid, payload);
 				}
 			}
+			return true;
 
 		} catch (Exception e) {
 			log.error("Error accessing Fedora: ", e);
-		} finally {
-			Fedora36.releaseNCClient();
+			return false;
 		}
 	}
 
@@ -157,15 +255,37 @@ public class Fedora36DigitalObject extends GenericDigitalObject {
 	 *             if any errors occur
 	 */
 	@Override
-	public synchronized Payload createStoredPayload(String pid, InputStream in)
+	public Payload createStoredPayload(String pid, InputStream in)
 			throws StorageException {
 		// log.debug("createStoredPayload({},{})", getId(), pid);
 		if (pid == null || in == null) {
 			throw new StorageException("Error; Null parameter recieved");
 		}
 		pid = escapeSpaces(pid);
+		Lock lock = lockPayload(pid);
+		try {
+			return createStoredPayload(pid, in, getManifest());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Create a stored payload, while holding its lock.
+	 *
+	 * @param pid
+	 *            the Payload ID to use, already escaped
+	 * @param in
+	 *            an InputStream containing the data to store
+	 * @param manifest
+	 *            the manifest
+	 * @return Payload the Payload Object
+	 * @throws StorageException
+	 *             if any errors occur
+	 */
+	private Payload createStoredPayload(String pid, InputStream in,
+			Map<String, Payload> manifest) throws StorageException {
 		// Sanity check on duplicates
-		Map<String, Payload> manifest = getManifest();
 		if (manifest.containsKey(pid)) {
 			throw new StorageException("pID '" + pid
 					+ "' already exists in manifest.");
@@ -176,53 +296,102 @@ public class Fedora36DigitalObject extends GenericDigitalObject {
 			String dsId = getDatastreamId(pid);
 			// We will default to ENRICHMENT
 			PayloadType type = PayloadType.Enrichment;
-			if (getSourceId() == null && !"TF-OBJ-META".equals(pid)) {
-				// ... except on the first payload
-				setSourceId(pid);
-				type = PayloadType.Source;
+			synchronized (sourceLock) {
+				if (getSourceId() == null && !"TF-OBJ-META".equals(pid)) {
+					// ... except on the first payload
+					setSourceId(pid);
+					type = PayloadType.Source;
+				}
 			}
 
-			// Cache our data to a temp file
-			File tempFile = createTempFile(pid, in);
-			if (tempFile == null) {
-				throw new StorageException("pID '" + pid
-						+ "' failed to cache temp file.");
-			}
-			// Grab the MIME type before we delete it
-			String contentType = MimeTypeUtil.getMimeType(tempFile);
-			// Upload the file to Fedora
-			String tempUrl = uploadData(tempFile);
-			if (tempUrl == null) {
-				throw new StorageException("pID '" + pid
-						+ "' failed to upload to Fedora.");
-			}
+			// Upload the data to Fedora, unless it is small enough to inline
+			UploadedContent content = uploadContent(pid, in);
+			String contentType = content.contentType;
 
-			// Now create the datastream and point it at our temp URL
+			// Now create the datastream and point it at our content
 			String[] altIds = new String[] { type.toString(), pid };
-			FedoraClient fedoraClient = Fedora36.getNCClient();
 			AddDatastream addDataStream = FedoraClient
 					.addDatastream(fedoraPid, dsId)
 					.altIDs(Arrays.asList(altIds)).mimeType(contentType)
-					.versionable(false).dsLabel(pid).dsLocation(tempUrl)
-					.controlGroup("M").dsState("A").logMessage(ADD_LOG_MESSAGE);
-			executeFedoraRequest(fedoraClient, addDataStream);
-			Fedora36.releaseNCClient();
-			// Tidy up and return
-			manifest.put(pid, null); // A fudge for now, or the next line fails
-			Payload payload = getPayload(pid);
-			manifest.put(pid, payload); // Now for real
+					.versionable(false).dsLabel(pid).controlGroup("M")
+					.dsState("A").logMessage(ADD_LOG_MESSAGE);
+			if (content.data != null) {
+				addDataStream.content(new ByteArrayInputStream(content.data));
+			} else {
+				addDataStream.dsLocation(content.location);
+			}
+			DatastreamProfile datastream = ((DatastreamProfileResponse) Fedora36
+					.execute(addDataStream, content.inlineSize()))
+					.getDatastreamProfile();
+			Fedora36.invalidateManifest(fedoraPid);
+			// Fedora describes the new datastream in its response
+			Payload payload = new Fedora36Payload(datastream, pid, fedoraPid);
+			manifest.put(pid, payload);
 			return payload;
 		} catch (FedoraClientException ioe) {
 			log.error("Error in Fedora query: ", ioe);
 			throw new StorageException(ioe);
-		} finally {
-			Fedora36.releaseNCClient();
 		}
 	}
 
-	private FedoraResponse executeFedoraRequest(FedoraClient fedoraClient,
-			FedoraRequest<?> fedoraRequest) throws FedoraClientException {
-		return fedoraRequest.execute(fedoraClient);
+	/**
+	 * Prepare FOXML datastreams holding the first payloads of a new object,
+	 * so they can be ingested along with the object itself. Content small
+	 * enough to inline is embedded as base64, anything else is uploaded and
+	 * referenced. As in {@link #createStoredPayload(String, InputStream)},
+	 * the first payload other than 'TF-OBJ-META' becomes the source.
+	 *
+	 * @param payloads
+	 *            the content of each payload by Payload ID, in the order
+	 *            they should be created
+	 * @return String The FOXML datastream elements
+	 * @throws StorageException
+	 *             if any content could not be read or uploaded
+	 */
+	String prepareDatastreams(Map<String, InputStream> payloads)
+			throws StorageException {
+		StringBuilder foxml = new StringBuilder();
+		Set<String> pids = new HashSet<String>();
+		boolean sourceFound = false;
+		for (Map.Entry<String, InputStream> entry : payloads.entrySet()) {
+			if (entry.getKey() == null || entry.getValue() == null) {
+				throw new StorageException("Error; Null parameter recieved");
+			}
+			String pid = escapeSpaces(entry.getKey());
+			if (!pids.add(pid)) {
+				throw new StorageException("pID '" + pid
+						+ "' already exists in manifest.");
+			}
+			PayloadType type = PayloadType.Enrichment;
+			if (!sourceFound && !"TF-OBJ-META".equals(pid)) {
+				sourceFound = true;
+				type = PayloadType.Source;
+			}
+
+			UploadedContent content = uploadContent(pid, entry.getValue());
+			String dsId = getDatastreamId(pid);
+			String label = StringEscapeUtils.escapeXml(pid);
+			foxml.append("<foxml:datastream ID=\"").append(dsId)
+					.append("\" STATE=\"A\" CONTROL_GROUP=\"M\"")
+					.append(" VERSIONABLE=\"false\">")
+					.append("<foxml:datastreamVersion ID=\"")
+					.append(dsId).append(".0\" LABEL=\"").append(label)
+					.append("\" MIMETYPE=\"")
+					.append(StringEscapeUtils.escapeXml(content.contentType))
+					.append("\" ALT_IDS=\"").append(type).append(" ")
+					.append(label).append("\">");
+			if (content.data != null) {
+				foxml.append("<foxml:binaryContent>")
+						.append(Base64.encodeBase64String(content.data))
+						.append("</foxml:binaryContent>");
+			} else {
+				foxml.append("<foxml:contentLocation TYPE=\"URL\" REF=\"")
+						.append(StringEscapeUtils.escapeXml(content.location))
+						.append("\"/>");
+			}
+			foxml.append("</foxml:datastreamVersion></foxml:datastream>");
+		}
+		return foxml.toString();
 	}
 
 	/**
@@ -249,7 +418,7 @@ public class Fedora36DigitalObject extends GenericDigitalObject {
 	 *             if any errors occur
 	 */
 	@Override
-	public synchronized Payload createLinkedPayload(String pid, String linkPath)
+	public Payload createLinkedPayload(String pid, String linkPath)
 			throws StorageException {
 		log.warn("This storage plugin does not support linked payloads..."
 				+ " converting to stored.");
@@ -274,15 +443,16 @@ public class Fedora36DigitalObject extends GenericDigitalObject {
 	 *             if any errors occur
 	 */
 	@Override
-	public synchronized Payload getPayload(String pid) throws StorageException {
+	public Payload getPayload(String pid) throws StorageException {
 		// log.debug("getPayload({},{})", getId(), pid);
 		if (pid == null) {
 			throw new StorageException("Error; Null PID recieved");
 		}
 		pid = escapeSpaces(pid);
-		// Confirm we actually have this payload first
-		Map<String, Payload> manifest = getManifest();
-		if (!manifest.containsKey(pid)) {
+		// Confirm we actually have this payload first... if we already know.
+		// Otherwise go straight to its datastream rather than listing every
+		// datastream in the object.
+		if (manifestLoaded && !getManifest().containsKey(pid)) {
 			throw new StorageException("pID '" + pid + "': was not found");
 
 		}
@@ -292,22 +462,24 @@ public class Fedora36DigitalObject extends GenericDigitalObject {
 			// Datastream datastream =
 			// Fedora3.getApiM().getDatastream(fedoraPid,
 			// dsId, null);
-			FedoraClient fedoraClient = Fedora36.getNCClient();
 			GetDatastream getDataStream = FedoraClient.getDatastream(fedoraPid,
 					dsId);
-			DatastreamProfile datastream = ((GetDatastreamResponse) executeFedoraRequest(
-					fedoraClient, getDataStream)).getDatastreamProfile();
-			Fedora36.releaseNCClient();
+			DatastreamProfile datastream = ((GetDatastreamResponse) Fedora36
+					.execute(getDataStream)).getDatastreamProfile();
 			if (datastream == null) {
 				throw new StorageException("pID '" + pid + "' does not exist.");
 			} else {
 				return new Fedora36Payload(datastream, pid, fedoraPid);
 			}
+		} catch (FedoraClientException ex) {
+			if (ex.getStatus() == 404) {
+				throw new StorageException("pID '" + pid + "': was not found");
+			}
+			log.error("Error accessing Fedora: ", ex);
+			throw new StorageException(ex);
 		} catch (Exception ioe) {
 			log.error("Error accessing Fedora: ", ioe);
 			throw new StorageException(ioe);
-		} finally {
-			Fedora36.releaseNCClient();
 		}
 	}
 
@@ -320,30 +492,34 @@ public class Fedora36DigitalObject extends GenericDigitalObject {
 	 *             if any errors occur
 	 */
 	@Override
-	public synchronized void removePayload(String pid) throws StorageException {
+	public void removePayload(String pid) throws StorageException {
 		// log.debug("removePayload({},{})", getId(), pid);
 		if (pid == null) {
 			throw new StorageException("Error; Null PID recieved");
 		}
 		pid = escapeSpaces(pid);
-		// Confirm we actually have this payload first
-		Map<String, Payload> manifest = getManifest();
-		if (!manifest.containsKey(pid)) {
-			throw new StorageException("pID '" + pid + "': was not found");
+		Lock lock = lockPayload(pid);
+		try {
+			// Confirm we actually have this payload first
+			Map<String, Payload> manifest = getManifest();
+			if (!manifest.containsKey(pid)) {
+				throw new StorageException("pID '" + pid + "': was not found");
 
-		}
+			}
 
-		String dsId = getDatastreamId(pid);
-		try {
-			FedoraClient fedoraClient = Fedora36.getNCClient();
-			PurgeDatastream purgeDatastream = FedoraClient.purgeDatastream(
-					fedoraPid, dsId).logMessage(DELETE_LOG_MESSAGE);
-			executeFedoraRequest(fedoraClient, purgeDatastream);
-			manifest.remove(pid);
-		} catch (Exception ex) {
-			log.error("Error in Fedora query: ", ex);
+			String dsId = getDatastreamId(pid);
+			try {
+				PurgeDatastream purgeDatastream = FedoraClient
+						.purgeDatastream(fedoraPid, dsId).logMessage(
+								DELETE_LOG_MESSAGE);
+				Fedora36.execute(purgeDatastream);
+				Fedora36.invalidateManifest(fedoraPid);
+				manifest.remove(pid);
+			} catch (Exception ex) {
+				log.error("Error in Fedora query: ", ex);
+			}
 		} finally {
-			Fedora36.releaseNCClient();
+			lock.unlock();
 		}
 	}
 
@@ -359,7 +535,7 @@ public class Fedora36DigitalObject extends GenericDigitalObject {
 	 *             if any errors occur
 	 */
 	@Override
-	public synchronized Payload updatePayload(String pid, InputStream in)
+	public Payload updatePayload(String pid, InputStream in)
 			throws StorageException {
 		// log.debug("updatePayload({},{})", getId(), pid);
 		if (pid == null || in == null) {
@@ -367,8 +543,89 @@ public class Fedora36DigitalObject extends GenericDigitalObject {
 		}
 
 		pid = escapeSpaces(pid);
+		Lock lock = lockPayload(pid);
+		try {
+			return updatePayload(pid, in, getManifest());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Create a new stored payload in the background. The stream is read on
+	 * another thread, so the caller must leave it open.
+	 *
+	 * @param pid
+	 *            the Payload ID to use
+	 * @param in
+	 *            an InputStream containing the data to store
+	 * @return CompletableFuture<Payload> The new Payload, or the
+	 *         StorageException that prevented it
+	 */
+	public CompletableFuture<Payload> createStoredPayloadAsync(
+			final String pid, final InputStream in) {
+		return Fedora36.async(new Callable<Payload>() {
+			@Override
+			public Payload call() throws StorageException {
+				return createStoredPayload(pid, in);
+			}
+		});
+	}
+
+	/**
+	 * Retrieve a payload in the background.
+	 *
+	 * @param pid
+	 *            the Payload ID to retrieve
+	 * @return CompletableFuture<Payload> The Payload, or the
+	 *         StorageException that prevented it
+	 */
+	public CompletableFuture<Payload> getPayloadAsync(final String pid) {
+		return Fedora36.async(new Callable<Payload>() {
+			@Override
+			public Payload call() throws StorageException {
+				return getPayload(pid);
+			}
+		});
+	}
+
+	/**
+	 * Update a stored payload in the background. The stream is read on
+	 * another thread, so the caller must leave it open.
+	 *
+	 * @param pid
+	 *            the Payload ID to use
+	 * @param in
+	 *            an InputStream containing the data to store
+	 * @return CompletableFuture<Payload> The updated Payload, or the
+	 *         StorageException that prevented it
+	 */
+	public CompletableFuture<Payload> updatePayloadAsync(final String pid,
+			final InputStream in) {
+		return Fedora36.async(new Callable<Payload>() {
+			@Override
+			public Payload call() throws StorageException {
+				return updatePayload(pid, in);
+			}
+		});
+	}
+
+	/**
+	 * Update a stored payload, while holding its lock.
+	 *
+	 * @param pid
+	 *            the Payload ID to use, already escaped
+	 * @param in
+	 *            an InputStream containing the data to store
+	 * @param manifest
+	 *            the manifest
+	 * @return Payload the updated Payload Object
+	 * @throws StorageException
+	 *             if any errors occur
+	 */
+	private Payload updatePayload(String pid, InputStream in,
+			Map<String, Payload> manifest) throws StorageException {
 		// Double-check it actually exists before we try to modify it
-		Map<String, Payload> manifest = getManifest();
 		if (!manifest.containsKey(pid)) {
 			throw new StorageException("pID '" + pid + "': was not found");
 		}
@@ -378,45 +635,135 @@ public class Fedora36DigitalObject extends GenericDigitalObject {
 			// Translate to a Fedora DSID... and make sure it exists
 			String dsId = getDatastreamId(pid);
 
-			// Cache our data to a temp file
-			File tempFile = createTempFile(pid, in);
-			if (tempFile == null) {
-				throw new StorageException("pID '" + pid
-						+ "' failed to cache temp file.");
-			}
-			// Grab the MIME type before we delete it
-			String contentType = MimeTypeUtil.getMimeType(tempFile);
-			// Upload the file to Fedora
-			String tempUrl = uploadData(tempFile);
-			if (tempUrl == null) {
-				throw new StorageException("pID '" + pid
-						+ "' failed to upload to Fedora.");
-			}
+			// Upload the data to Fedora, unless it is small enough to inline
+			UploadedContent content = uploadContent(pid, in);
+			String contentType = content.contentType;
 
-			// Now create the datastream and point it at our temp URL
+			// Now update the datastream and point it at our content
 			String[] altIds = new String[] { payload.getType().toString(), pid };
 			String dsLabel = payload.getLabel();
 
-			FedoraClient fedoraClient = Fedora36.getNCClient();
 			ModifyDatastream modifyDatastream = FedoraClient
 					.modifyDatastream(fedoraPid, dsId)
 					.altIDs(Arrays.asList(altIds)).dsLabel(dsLabel)
-					.mimeType(contentType).dsLocation(tempUrl)
-					.logMessage(UPDATE_LOG_MESSAGE).versionable(false);
-			executeFedoraRequest(fedoraClient, modifyDatastream);
+					.mimeType(contentType).logMessage(UPDATE_LOG_MESSAGE)
+					.versionable(false);
+			if (content.data != null) {
+				modifyDatastream
+						.content(new ByteArrayInputStream(content.data));
+			} else {
+				modifyDatastream.dsLocation(content.location);
+			}
+			DatastreamProfile datastream = ((DatastreamProfileResponse) Fedora36
+					.execute(modifyDatastream, content.inlineSize()))
+					.getDatastreamProfile();
+			Fedora36.invalidateManifest(fedoraPid);
 
-			Fedora36.releaseNCClient();
 			// Remember to update our manifest
-			payload = getPayload(pid);
+			payload = new Fedora36Payload(datastream, pid, fedoraPid);
 			manifest.put(pid, payload);
 			return payload;
 		} catch (Exception ioe) {
 			throw new StorageException(ioe);
-		} finally {
-			Fedora36.releaseNCClient();
 		}
 	}
 
+	/**
+	 * Detect the MIME type of some content and upload it to Fedora. Content
+	 * no larger than the configured inline threshold is kept in memory to be
+	 * sent with the datastream request instead. Anything else is either
+	 * cached to a temp file first, or if configured, streamed straight to
+	 * Fedora with only its start held in memory.
+	 *
+	 * @param pid
+	 *            the local Fascinator Payload ID
+	 * @param in
+	 *            an InputStream containing the data to upload
+	 * @return UploadedContent The MIME type and temporary URL of the content
+	 * @throws StorageException
+	 *             if the content could not be uploaded
+	 */
+	private UploadedContent uploadContent(String pid, InputStream in)
+			throws StorageException {
+		UploadedContent content = new UploadedContent();
+		int threshold = Fedora36.getInlineThreshold();
+		if (threshold > 0) {
+			// Read one byte more than the threshold, to know if we're over
+			byte[] buffer = new byte[threshold + 1];
+			int length = 0;
+			try {
+				int read = 0;
+				while (length < buffer.length
+						&& (read = in.read(buffer, length, buffer.length
+								- length)) != -1) {
+					length += read;
+				}
+				if (length <= threshold) {
+					Fedora36.close(in);
+					content.data = Arrays.copyOf(buffer, length);
+					content.contentType = Fedora36StreamingUpload.sniff(pid,
+							content.data, length);
+					return content;
+				}
+			} catch (IOException ex) {
+				Fedora36.close(in);
+				throw new StorageException("pID '" + pid
+						+ "' failed to read content.", ex);
+			}
+			// Too big, put back what we read and upload as normal
+			in = new SequenceInputStream(new ByteArrayInputStream(buffer, 0,
+					length), in);
+		}
+
+		if (Fedora36.isStreamingUpload()) {
+			Fedora36StreamingUpload upload;
+			try {
+				upload = new Fedora36StreamingUpload(pid, in);
+			} catch (IOException ex) {
+				Fedora36.close(in);
+				throw new StorageException("pID '" + pid
+						+ "' failed to read content.", ex);
+			}
+			content.contentType = upload.getMimeType();
+			content.location = Fedora36.streamUpload(upload);
+			return content;
+		}
+
+		// Cache our data to a temp file
+		File tempFile = createTempFile(pid, in);
+		if (tempFile == null) {
+			throw new StorageException("pID '" + pid
+					+ "' failed to cache temp file.");
+		}
+		// Grab the MIME type before we delete it
+		content.contentType = MimeTypeUtil.getMimeType(tempFile);
+		// Upload the file to Fedora
+		content.location = uploadData(tempFile);
+		if (content.location == null) {
+			throw new StorageException("pID '" + pid
+					+ "' failed to upload to Fedora.");
+		}
+		return content;
+	}
+
+	/**
+	 * Lock a payload against being written by another thread. Locks are
+	 * striped by PID and payload ID, so writes to different payloads rarely
+	 * wait on each other, and reads never do. The wait is recorded in the
+	 * request statistics.
+	 *
+	 * @param pid
+	 *            the Payload ID to lock, already escaped
+	 * @return Lock The lock now held, which the caller must unlock
+	 */
+	private Lock lockPayload(String pid) {
+		Lock lock = PAYLOAD_LOCKS.get(fedoraPid + "/" + pid);
+		long start = System.nanoTime();
+		lock.lock();
+		Fedora36.getRequestStats().recordLockWait(System.nanoTime() - start);
+		return lock;
+	}
+
 	/**
 	 * Translate a Fascinator PID into a hashed datastream ID for Fedora. Should
 	 * prevent any issues related to special characters being used in IDs
@@ -480,20 +827,17 @@ public class Fedora36DigitalObject extends GenericDigitalObject {
 	 *            an InputStream containing the data to upload
 	 * @return String The temporary URL in Fedora, or NULL if a failure occurs
 	 */
-	private synchronized String uploadData(File file) {
+	private String uploadData(File file) {
 		try {
-			FedoraClient fedoraClient = Fedora36.getNCClient();
 			Upload upload = FedoraClient.upload(file);
-			UploadResponse response = (UploadResponse) executeFedoraRequest(
-					fedoraClient, upload);
-			Fedora36.releaseNCClient();
+			UploadResponse response = (UploadResponse) Fedora36.execute(
+					upload, file.length());
 			return response.getUploadLocation();
 		} catch (Exception ex) {
 			log.error("Error sending file to Fedora: ", ex);
 			return null;
 		} finally {
 			// Don't forget to remove our temp file
-			Fedora36.releaseNCClient();
 			file.delete();
 		}
 	}
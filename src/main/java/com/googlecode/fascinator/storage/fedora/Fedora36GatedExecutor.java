@@ -0,0 +1,104 @@
+/*
+ * The Fascinator - Fedora Commons 3.x storage plugin
+ * Copyright (C) 2009-2011 University of Southern Queensland
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.fedora;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs tasks on a thread-per-task executor (ie. virtual threads), but lets
+ * only a fixed number of them run at once. The rest wait on their own
+ * threads, with no deadline, until one finishes. Without this every task
+ * would go straight to the client pool, and any left waiting longer than the
+ * pool timeout would fail instead of queueing as they would on a fixed pool
+ * of platform threads.
+ *
+ * @author Greg Pendlebury
+ */
+public class Fedora36GatedExecutor extends AbstractExecutorService {
+    /** Executor starting a thread for each task */
+    private ExecutorService executor;
+
+    /** Permits to run, one per task allowed at once */
+    private Semaphore permits;
+
+    /**
+     * Constructor
+     *
+     * @param executor the executor starting a thread for each task
+     * @param limit the number of tasks allowed to run at once
+     */
+    public Fedora36GatedExecutor(ExecutorService executor, int limit) {
+        this.executor = executor;
+        permits = new Semaphore(Math.max(1, limit), true);
+    }
+
+    /**
+     * Start a thread for the task, which waits its turn before running it.
+     * The wait can't be interrupted, so that every task is eventually run
+     * and completes whatever future it belongs to; a task interrupted while
+     * waiting runs with its interrupt flag set, and so fails fast.
+     *
+     * @param command the task
+     */
+    @Override
+    public void execute(final Runnable command) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                permits.acquireUninterruptibly();
+                try {
+                    command.run();
+                } finally {
+                    permits.release();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        return executor.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return executor.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return executor.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+}
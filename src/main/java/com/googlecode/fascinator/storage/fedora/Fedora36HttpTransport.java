@@ -0,0 +1,574 @@
+/*
+ * The Fascinator - Fedora Commons 3.x storage plugin
+ * Copyright (C) 2009-2011 University of Southern Queensland
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.fedora;
+
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import com.googlecode.fascinator.api.storage.StorageException;
+import com.yourmediashelf.fedora.client.FedoraClient;
+import com.yourmediashelf.fedora.client.FedoraClientException;
+
+/**
+ * An alternative to the Jersey based FedoraClient for the REST calls whose
+ * responses the plugin does not need to unmarshal: object status checks,
+ * ingest, purge, datastream content and resource index searches. Requests
+ * are sent asynchronously with the JDK HttpClient, so a handful of threads
+ * can keep many of them in flight, and response bodies are handed back as
+ * Flow.Publishers to be consumed as they arrive rather than buffered.
+ *
+ * Datastream uploads, changes, listings and profiles are not covered; their
+ * responses are unmarshalled, so they always go through the FedoraClient.
+ *
+ * Every request takes a rate limit permit and borrows a client from the
+ * pool, just as a FedoraClient request would, so the pool's size caps both
+ * kinds of request together and the wait statistics see them all. The
+ * borrowed client is not used, only held, from the moment the request is
+ * sent until its response body has been read. Waiting for the permit and
+ * the client happens on threads of its own, never the caller's, and never
+ * the threads completing requests, which are the ones handing clients back.
+ * There is one per pooled client, which is as many as can be sent at once.
+ *
+ * @author Greg Pendlebury
+ */
+class Fedora36HttpTransport {
+    /** Operation names, matching the FedoraClient request classes */
+    private static final String OBJECT_PROFILE_OPERATION = "GetObjectProfile";
+    private static final String INGEST_OPERATION = "Ingest";
+    private static final String PURGE_OPERATION = "PurgeObject";
+    private static final String CONTENT_OPERATION = "GetDatastreamDissemination";
+    private static final String RISEARCH_OPERATION = "RiSearch";
+
+    /** Fedora base URL, ending in '/' */
+    private String baseUrl;
+
+    /** Preemptive basic authentication header */
+    private String authorization;
+
+    /** Time allowed to connect, and for response headers to arrive */
+    private Duration timeout;
+
+    /** Rate limit to respect */
+    private Fedora36RateLimiter limiter;
+
+    /** Statistics to record requests in */
+    private Fedora36RequestStats stats;
+
+    /** Threads the client completes requests on */
+    private ExecutorService executor;
+
+    /** Threads waiting on rate limit permits and pooled clients */
+    private ExecutorService waiter;
+
+    /** The client itself */
+    private HttpClient client;
+
+    /**
+     * Constructor
+     *
+     * @param baseUrl the Fedora base URL
+     * @param username Fedora username
+     * @param password Fedora password
+     * @param timeout seconds allowed to connect, and for headers to arrive
+     * @param threads threads to complete requests on
+     * @param poolSize the number of pooled clients
+     * @param limiter rate limit to respect
+     * @param stats statistics to record requests in
+     */
+    Fedora36HttpTransport(String baseUrl, String username, String password,
+            int timeout, int threads, int poolSize,
+            Fedora36RateLimiter limiter, Fedora36RequestStats stats) {
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+        authorization = "Basic "
+                + Base64.getEncoder().encodeToString(
+                        (username + ":" + password)
+                                .getBytes(StandardCharsets.UTF_8));
+        this.timeout = Duration.ofSeconds(Math.max(1, timeout));
+        this.limiter = limiter;
+        this.stats = stats;
+        executor = newDaemonPool(threads, "fedora36-http-");
+        waiter = newDaemonPool(poolSize, "fedora36-http-wait-");
+        client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(this.timeout).executor(executor).build();
+    }
+
+    /**
+     * Does an object exist? Only the status of an object profile request is
+     * looked at.
+     *
+     * @param fedoraPid the Fedora PID to look for
+     * @return CompletableFuture<Boolean> True if it exists, False if not
+     */
+    CompletableFuture<Boolean> objectExists(String fedoraPid) {
+        return send(OBJECT_PROFILE_OPERATION,
+                get("objects/" + encode(fedoraPid) + "?format=xml"), 0, 200)
+                .handle(new BiFunction<Flow.Publisher<List<ByteBuffer>>, Throwable, Boolean>() {
+                    @Override
+                    public Boolean apply(Flow.Publisher<List<ByteBuffer>> body,
+                            Throwable error) {
+                        if (error == null) {
+                            discard(body);
+                            return true;
+                        }
+                        Throwable cause = unwrap(error);
+                        if (cause instanceof FedoraClientException
+                                && ((FedoraClientException) cause)
+                                        .getStatus() == 404) {
+                            return false;
+                        }
+                        throw new CompletionException(cause);
+                    }
+                });
+    }
+
+    /**
+     * Ingest an object. The PID is taken from the FOXML.
+     *
+     * @param foxml the FOXML document
+     * @param format the FOXML format URI
+     * @param logMessage the audit log message
+     * @return CompletableFuture<String> The PID Fedora used
+     */
+    CompletableFuture<String> ingest(byte[] foxml, String format,
+            String logMessage) {
+        HttpRequest.Builder request = request("objects/new?format="
+                + encode(format) + "&logMessage=" + encode(logMessage))
+                .header("Content-Type", "text/xml; charset=UTF-8")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(foxml));
+        return send(INGEST_OPERATION, request, foxml.length, 201)
+                .thenCompose(
+                        new Function<Flow.Publisher<List<ByteBuffer>>, CompletableFuture<String>>() {
+                            @Override
+                            public CompletableFuture<String> apply(
+                                    Flow.Publisher<List<ByteBuffer>> body) {
+                                return readString(body);
+                            }
+                        }).thenApply(new Function<String, String>() {
+                    @Override
+                    public String apply(String pid) {
+                        return pid.trim();
+                    }
+                });
+    }
+
+    /**
+     * Purge an object.
+     *
+     * @param fedoraPid the Fedora PID to purge
+     * @param logMessage the audit log message
+     * @return CompletableFuture<Void> Completes once the object is gone
+     */
+    CompletableFuture<Void> purgeObject(String fedoraPid, String logMessage) {
+        HttpRequest.Builder request = request(
+                "objects/" + encode(fedoraPid) + "?logMessage="
+                        + encode(logMessage)).DELETE();
+        return send(PURGE_OPERATION, request, 0, 200).thenApply(
+                new Function<Flow.Publisher<List<ByteBuffer>>, Void>() {
+                    @Override
+                    public Void apply(Flow.Publisher<List<ByteBuffer>> body) {
+                        discard(body);
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * The content of a datastream.
+     *
+     * @param fedoraPid the Fedora PID containing the datastream
+     * @param dsId the datastream's ID
+     * @return CompletableFuture<Flow.Publisher<List<ByteBuffer>>> The
+     *         content, which must be subscribed to
+     */
+    CompletableFuture<Flow.Publisher<List<ByteBuffer>>> getDatastreamContent(
+            String fedoraPid, String dsId) {
+        return send(CONTENT_OPERATION, get("objects/" + encode(fedoraPid)
+                + "/datastreams/" + encode(dsId) + "/content"), 0, 200);
+    }
+
+    /**
+     * A SPARQL tuple query of the resource index.
+     *
+     * @param query the SPARQL query
+     * @param format the result format, eg. 'CSV' or 'count'
+     * @return CompletableFuture<Flow.Publisher<List<ByteBuffer>>> The
+     *         results, which must be subscribed to
+     */
+    CompletableFuture<Flow.Publisher<List<ByteBuffer>>> riSearch(
+            String query, String format) {
+        return send(RISEARCH_OPERATION, get("risearch?type=tuples&lang=sparql"
+                + "&format=" + encode(format) + "&query=" + encode(query)),
+                0, 200);
+    }
+
+    /**
+     * Stop taking requests. Those already sent still complete, and hand
+     * their clients back, before the threads go.
+     */
+    void close() {
+        waiter.shutdown();
+        executor.shutdown();
+    }
+
+    /**
+     * A fixed pool of daemon threads.
+     *
+     * @param threads how many threads
+     * @param prefix the thread names, less a counter
+     * @return ExecutorService The pool
+     */
+    private static ExecutorService newDaemonPool(int threads,
+            final String prefix) {
+        return Executors.newFixedThreadPool(Math.max(1, threads),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, prefix
+                                + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Read a response body as an InputStream. Bytes are pulled from the
+     * connection as the stream is read, not buffered up front.
+     *
+     * @param body the response body
+     * @return CompletableFuture<InputStream> The stream, which the caller
+     *         must close
+     */
+    static CompletableFuture<InputStream> toInputStream(
+            Flow.Publisher<List<ByteBuffer>> body) {
+        HttpResponse.BodySubscriber<InputStream> subscriber = HttpResponse.BodySubscribers
+                .ofInputStream();
+        body.subscribe(subscriber);
+        return subscriber.getBody().toCompletableFuture();
+    }
+
+    /**
+     * Read a whole response body as text. Only for small bodies.
+     *
+     * @param body the response body
+     * @return CompletableFuture<String> The text
+     */
+    static CompletableFuture<String> readString(
+            Flow.Publisher<List<ByteBuffer>> body) {
+        HttpResponse.BodySubscriber<String> subscriber = HttpResponse.BodySubscribers
+                .ofString(StandardCharsets.UTF_8);
+        body.subscribe(subscriber);
+        return subscriber.getBody().toCompletableFuture();
+    }
+
+    /**
+     * Throw away a response body, freeing the connection.
+     *
+     * @param body the response body
+     */
+    static void discard(Flow.Publisher<List<ByteBuffer>> body) {
+        body.subscribe(HttpResponse.BodySubscribers.discarding());
+    }
+
+    /**
+     * The error behind a failed future.
+     *
+     * @param error the error the future failed with
+     * @return Throwable The underlying error
+     */
+    static Throwable unwrap(Throwable error) {
+        while (error instanceof CompletionException
+                && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+
+    /**
+     * Send a request once a rate limit permit and a pooled client are
+     * available, recording it against the rate limiter and statistics. A
+     * response with any status other than the one expected fails with a
+     * FedoraClientException carrying Fedora's explanation, and connection
+     * problems fail with a StorageException. The client goes back to the
+     * pool once the response body has been read or cancelled.
+     *
+     * @param operation the name to record the request under
+     * @param request the request, less authentication and timeout
+     * @param bytesSent the size of the content being sent
+     * @param expected the status of a successful response
+     * @return CompletableFuture<Flow.Publisher<List<ByteBuffer>>> The
+     *         response body, which must be subscribed to
+     */
+    private CompletableFuture<Flow.Publisher<List<ByteBuffer>>> send(
+            final String operation, final HttpRequest.Builder request,
+            final long bytesSent, final int expected) {
+        // Waiting for the permit and client blocks, so keep it off the caller
+        final CompletableFuture<FedoraClient> borrowed = new CompletableFuture<FedoraClient>();
+        try {
+            waiter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        borrowed.complete(Fedora36.getNCClient());
+                    } catch (Throwable ex) {
+                        borrowed.completeExceptionally(ex);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            borrowed.completeExceptionally(new StorageException(
+                    "The Fedora HTTP transport is closed", ex));
+        }
+        return borrowed.thenCompose(
+                new Function<FedoraClient, CompletableFuture<Flow.Publisher<List<ByteBuffer>>>>() {
+                    @Override
+                    public CompletableFuture<Flow.Publisher<List<ByteBuffer>>> apply(
+                            FedoraClient fedoraClient) {
+                        return send(operation, request, bytesSent, expected,
+                                fedoraClient);
+                    }
+                });
+    }
+
+    /**
+     * Send a request while holding a pooled client, as per
+     * {@link #send(String, HttpRequest.Builder, long, int)}.
+     *
+     * @param operation the name to record the request under
+     * @param request the request, less authentication and timeout
+     * @param bytesSent the size of the content being sent
+     * @param expected the status of a successful response
+     * @param fedoraClient the client borrowed for the request
+     * @return CompletableFuture<Flow.Publisher<List<ByteBuffer>>> The
+     *         response body, which must be subscribed to
+     */
+    private CompletableFuture<Flow.Publisher<List<ByteBuffer>>> send(
+            final String operation, HttpRequest.Builder request,
+            final long bytesSent, final int expected,
+            FedoraClient fedoraClient) {
+        final Runnable release = new Release(fedoraClient);
+        final CompletableFuture<Flow.Publisher<List<ByteBuffer>>> result = new CompletableFuture<Flow.Publisher<List<ByteBuffer>>>();
+        final long sent = System.nanoTime();
+        CompletableFuture<HttpResponse<Flow.Publisher<List<ByteBuffer>>>> pending;
+        try {
+            pending = client.sendAsync(
+                    request.header("Authorization", authorization)
+                            .timeout(timeout).build(),
+                    HttpResponse.BodyHandlers.ofPublisher());
+        } catch (RuntimeException ex) {
+            release.run();
+            throw ex;
+        }
+        pending.whenComplete(
+                new BiConsumer<HttpResponse<Flow.Publisher<List<ByteBuffer>>>, Throwable>() {
+                    @Override
+                    public void accept(
+                            HttpResponse<Flow.Publisher<List<ByteBuffer>>> response,
+                            Throwable error) {
+                        long nanos = System.nanoTime() - sent;
+                        if (error != null) {
+                            Throwable cause = unwrap(error);
+                            limiter.recordFailure(nanos, cause);
+                            stats.record(operation, nanos, bytesSent, true);
+                            release.run();
+                            result.completeExceptionally(new StorageException(
+                                    "Error accessing Fedora", cause));
+                            return;
+                        }
+                        final int status = response.statusCode();
+                        limiter.recordResponse(nanos, status);
+                        stats.record(operation, nanos, bytesSent,
+                                status != expected);
+                        Flow.Publisher<List<ByteBuffer>> body = new ReleasingPublisher(
+                                response.body(), release);
+                        if (status == expected) {
+                            result.complete(body);
+                            return;
+                        }
+                        // Read Fedora's explanation before failing
+                        readString(body).whenComplete(
+                                new BiConsumer<String, Throwable>() {
+                                    @Override
+                                    public void accept(String message,
+                                            Throwable ignored) {
+                                        String explanation = "HTTP " + status;
+                                        if (message != null) {
+                                            explanation += ": "
+                                                    + message.trim();
+                                        }
+                                        result.completeExceptionally(new FedoraClientException(
+                                                status, explanation));
+                                    }
+                                });
+                    }
+                });
+        return result;
+    }
+
+    /**
+     * Start a request to a path under the base URL.
+     *
+     * @param path the path and query, already encoded
+     * @return HttpRequest.Builder The request
+     */
+    private HttpRequest.Builder request(String path) {
+        return HttpRequest.newBuilder(URI.create(baseUrl + path));
+    }
+
+    /**
+     * Start a GET request to a path under the base URL.
+     *
+     * @param path the path and query, already encoded
+     * @return HttpRequest.Builder The request
+     */
+    private HttpRequest.Builder get(String path) {
+        return request(path).GET();
+    }
+
+    /**
+     * Encode a path segment or query parameter value.
+     *
+     * @param value the value
+     * @return String The encoded value
+     */
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException ex) {
+            // UTF-8 is always supported
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Hands a borrowed client back to the pool, once only.
+     */
+    private static class Release implements Runnable {
+        /** The borrowed client */
+        private FedoraClient fedoraClient;
+
+        /** Has it gone back yet? */
+        private AtomicBoolean released = new AtomicBoolean();
+
+        /**
+         * Constructor
+         *
+         * @param fedoraClient the borrowed client
+         */
+        private Release(FedoraClient fedoraClient) {
+            this.fedoraClient = fedoraClient;
+        }
+
+        @Override
+        public void run() {
+            if (released.compareAndSet(false, true)) {
+                Fedora36.releaseNCClient(fedoraClient);
+            }
+        }
+    }
+
+    /**
+     * A response body that runs an action once it has been read to the end,
+     * failed or been cancelled.
+     */
+    private static class ReleasingPublisher implements
+            Flow.Publisher<List<ByteBuffer>> {
+        /** The response body */
+        private Flow.Publisher<List<ByteBuffer>> body;
+
+        /** What to run once the body is finished with */
+        private Runnable release;
+
+        /**
+         * Constructor
+         *
+         * @param body the response body
+         * @param release what to run once the body is finished with
+         */
+        private ReleasingPublisher(Flow.Publisher<List<ByteBuffer>> body,
+                Runnable release) {
+            this.body = body;
+            this.release = release;
+        }
+
+        @Override
+        public void subscribe(
+                final Flow.Subscriber<? super List<ByteBuffer>> subscriber) {
+            body.subscribe(new Flow.Subscriber<List<ByteBuffer>>() {
+                @Override
+                public void onSubscribe(final Flow.Subscription subscription) {
+                    subscriber.onSubscribe(new Flow.Subscription() {
+                        @Override
+                        public void request(long n) {
+                            subscription.request(n);
+                        }
+
+                        @Override
+                        public void cancel() {
+                            subscription.cancel();
+                            release.run();
+                        }
+                    });
+                }
+
+                @Override
+                public void onNext(List<ByteBuffer> item) {
+                    subscriber.onNext(item);
+                }
+
+                @Override
+                public void onError(Throwable error) {
+                    release.run();
+                    subscriber.onError(error);
+                }
+
+                @Override
+                public void onComplete() {
+                    release.run();
+                    subscriber.onComplete();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * The Fascinator - Fedora Commons 3.x storage plugin
+ * Copyright (C) 2009-2011 University of Southern Queensland
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.fedora;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free latency histogram in the style of HdrHistogram. Values are
+ * recorded in microseconds into log-linear buckets: every power of two is
+ * split into 32 linear sub-buckets, so any percentile read back is within
+ * about 3% of the true value, whether it is 50us or 50s, in a fixed 15KB.
+ *
+ * @author Greg Pendlebury
+ */
+public class Fedora36LatencyHistogram {
+    /** Bits of linear precision inside each power of two */
+    private static final int SUB_BUCKET_BITS = 5;
+
+    /** Linear sub-buckets inside each power of two */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** Enough buckets for any positive long */
+    private static final int BUCKETS = SUB_BUCKETS * (64 - SUB_BUCKET_BITS);
+
+    /** Number of values in each bucket */
+    private AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /** Number of values recorded */
+    private AtomicLong count = new AtomicLong();
+
+    /** Sum of values recorded, in microseconds */
+    private AtomicLong total = new AtomicLong();
+
+    /** Largest value recorded, in microseconds */
+    private AtomicLong max = new AtomicLong();
+
+    /**
+     * Record one latency.
+     *
+     * @param nanos the latency in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        counts.incrementAndGet(bucket(micros));
+        count.incrementAndGet();
+        total.addAndGet(micros);
+        long current = max.get();
+        while (micros > current && !max.compareAndSet(current, micros)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Find the bucket a value belongs in.
+     *
+     * @param micros the value in microseconds
+     * @return int The bucket index
+     */
+    private static int bucket(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(micros);
+        int shift = magnitude - SUB_BUCKET_BITS;
+        int subBucket = (int) (micros >>> shift) - SUB_BUCKETS;
+        return SUB_BUCKETS * (shift + 1) + subBucket;
+    }
+
+    /**
+     * The largest value that falls into a bucket.
+     *
+     * @param bucket the bucket index
+     * @return long The value in microseconds
+     */
+    private static long highestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long subBucket = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * @return long The number of values recorded
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return long The largest value recorded, in microseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return long The mean of the values recorded, in microseconds
+     */
+    public long getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : total.get() / n;
+    }
+
+    /**
+     * @return long The sum of the values recorded, in microseconds
+     */
+    public long getTotal() {
+        return total.get();
+    }
+
+    /**
+     * Read a percentile back. Values are recorded without locking, so the
+     * answer is only approximate while requests are in flight.
+     *
+     * @param percentile the percentile wanted, eg. 99.9
+     * @return long The value at that percentile, in microseconds, or 0 if
+     *         nothing has been recorded
+     */
+    public long getPercentile(double percentile) {
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            n += counts.get(i);
+        }
+        if (n == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(n * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * A one line summary, suitable for logging. All times in milliseconds.
+     *
+     * @return String The summary
+     */
+    @Override
+    public String toString() {
+        return "count=" + getCount() + ", meanMs=" + millis(getMean())
+                + ", p50Ms=" + millis(getPercentile(50)) + ", p95Ms="
+                + millis(getPercentile(95)) + ", p99Ms="
+                + millis(getPercentile(99)) + ", maxMs=" + millis(getMax());
+    }
+
+    /**
+     * Microseconds to milliseconds, to one decimal place.
+     *
+     * @param micros the value in microseconds
+     * @return String The value in milliseconds
+     */
+    private static String millis(long micros) {
+        return String.valueOf(Math.round(micros / 100.0) / 10.0);
+    }
+}
@@ -0,0 +1,522 @@
+/*
+ * The Fascinator - Fedora Commons 3.x storage plugin
+ * Copyright (C) 2009-2011 University of Southern Queensland
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.fedora;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import com.googlecode.fascinator.api.storage.StorageException;
+import com.yourmediashelf.fedora.client.FedoraClient;
+import com.yourmediashelf.fedora.client.request.FindObjects;
+import com.yourmediashelf.fedora.client.response.FindObjectsResponse;
+
+/**
+ * Walks the OIDs in storage one FindObjects page at a time. The next page is
+ * only requested once the current one has been used up, so no more than a
+ * page of OIDs is ever held in memory and the first arrives as soon as Fedora
+ * answers the first search.
+ *
+ * With read-ahead, a background thread keeps requesting pages while the
+ * caller works through the current one, up to the configured number of pages
+ * ahead. Fedora's session tokens chain the pages, so they are still fetched
+ * one after another, but never while Fedora sits idle waiting on the caller.
+ *
+ * The search can also be split into partitions by PID prefix (eg. 'uuid:0'
+ * to 'uuid:f'), each walked by its own cursor on its own thread, with pages
+ * handed to the caller in whatever order they arrive. Each cursor only keeps
+ * PIDs starting with its own prefix, so partitions never repeat each other's
+ * OIDs.
+ *
+ * Instead of FindObjects, the OIDs can come from a resource index (risearch)
+ * query answered as CSV. The answer is a single response, parsed a page of
+ * rows at a time as the caller reaches them.
+ *
+ * Fedora can fail partway through; {@link #hasNext()} and {@link #next()}
+ * then throw a RuntimeException, caused by a StorageException, and the OIDs
+ * already returned stand. Close the iterator to stop early.
+ *
+ * @author Greg Pendlebury
+ */
+public class Fedora36ObjectIdIterator implements Iterator<String>, Closeable {
+    /**
+     * One source of OIDs, read a page at a time.
+     */
+    private abstract static class Cursor {
+        /**
+         * Read the next page.
+         *
+         * @return List<String> The OIDs in the page, or NULL if there are no
+         *         more pages
+         * @throws RuntimeException if the page could not be read
+         */
+        abstract List<String> fetchPage();
+
+        /**
+         * Let go of anything held open. Fedora expires search sessions by
+         * itself, so by default there is nothing to do.
+         */
+        void close() {
+        }
+    }
+
+    /**
+     * One FindObjects search for the PIDs starting with a prefix, walked a
+     * page at a time.
+     */
+    private static class FindObjectsCursor extends Cursor {
+        /** PID prefix */
+        private String prefix;
+
+        /** Results per page */
+        private int pageSize;
+
+        /** Has the first page been requested? */
+        private boolean started;
+
+        /** Session token for the next page, NULL once there are no more */
+        private String token;
+
+        /**
+         * Constructor
+         *
+         * @param prefix the PID prefix to search for
+         * @param pageSize the most results to request per page
+         */
+        private FindObjectsCursor(String prefix, int pageSize) {
+            this.prefix = prefix;
+            this.pageSize = pageSize;
+        }
+
+        @Override
+        List<String> fetchPage() {
+            FindObjects findObjects;
+            if (!started) {
+                started = true;
+                // A query on the PID field alone, 'terms' would also match
+                // labels and the other indexed fields
+                findObjects = FedoraClient.findObjects()
+                        .query("pid~" + prefix + "*").maxResults(pageSize);
+            } else if (token != null) {
+                findObjects = FedoraClient.findObjects().sessionToken(token);
+            } else {
+                return null;
+            }
+
+            try {
+                FindObjectsResponse response = (FindObjectsResponse) Fedora36
+                        .execute(findObjects);
+                if (response.getStatus() != 200) {
+                    token = null;
+                    return null;
+                }
+                List<String> oids = new ArrayList<String>();
+                for (String pid : response.getPids()) {
+                    if (!pid.startsWith(prefix)) {
+                        continue;
+                    }
+                    oids.add(response.getObjectField(pid, "label").get(0));
+                }
+                token = response.hasNext() ? response.getToken() : null;
+                return oids;
+            } catch (Exception ex) {
+                token = null;
+                throw new RuntimeException(new StorageException(
+                        "Error during Fedora search", ex));
+            }
+        }
+    }
+
+    /**
+     * One resource index query, with the OID in the first column of each
+     * row. The query is sent with the first page, and the rest are read from
+     * the same response.
+     */
+    private static class RiSearchCursor extends Cursor {
+        /** SPARQL query */
+        private String query;
+
+        /** Rows per page */
+        private int pageSize;
+
+        /** The response, once the query is sent */
+        private BufferedReader response;
+
+        /** Has the response run out? */
+        private boolean done;
+
+        /**
+         * Constructor
+         *
+         * @param query the SPARQL query
+         * @param pageSize the most rows to read per page
+         */
+        private RiSearchCursor(String query, int pageSize) {
+            this.query = query;
+            this.pageSize = pageSize;
+        }
+
+        @Override
+        List<String> fetchPage() {
+            if (done) {
+                return null;
+            }
+            try {
+                if (response == null) {
+                    response = new BufferedReader(new InputStreamReader(
+                            Fedora36.riSearch(query, "CSV"), "UTF-8"));
+                    // Skip the column names
+                    readCsvRow(response);
+                }
+                List<String> oids = new ArrayList<String>();
+                List<String> row;
+                while (oids.size() < pageSize
+                        && (row = readCsvRow(response)) != null) {
+                    // Ignoring blank lines
+                    if (row.get(0).length() > 0) {
+                        oids.add(row.get(0));
+                    }
+                }
+                if (oids.size() < pageSize) {
+                    close();
+                }
+                return oids.isEmpty() ? null : oids;
+            } catch (Exception ex) {
+                close();
+                throw new RuntimeException(new StorageException(
+                        "Error during Fedora resource index search", ex));
+            }
+        }
+
+        @Override
+        void close() {
+            done = true;
+            if (response != null) {
+                Fedora36.close(response);
+            }
+        }
+    }
+
+    /** One cursor per partition */
+    private List<Cursor> cursors = new ArrayList<Cursor>();
+
+    /** The cursor being walked, when not reading ahead */
+    private int current;
+
+    /** The OIDs in the current page not yet returned */
+    private Queue<String> page = new LinkedList<String>();
+
+    /** Has the iterator been closed, or run out? */
+    private boolean finished;
+
+    /** Pages fetched ahead of the caller, NULL if not reading ahead */
+    private BlockingQueue<List<String>> pages;
+
+    /** Marks the end of one cursor's pages fetched ahead */
+    private final List<String> lastPage = new ArrayList<String>();
+
+    /** Cursors still reading ahead */
+    private int running;
+
+    /** Why reading ahead stopped early, if it did */
+    private volatile RuntimeException failure;
+
+    /** The threads reading ahead, one per cursor */
+    private List<Thread> readers;
+
+    /**
+     * Constructor for the static factories, which add their own cursors.
+     */
+    private Fedora36ObjectIdIterator() {
+    }
+
+    /**
+     * Constructor. Nothing is sent to Fedora until the first OID is wanted.
+     *
+     * @param prefix the PID prefix to search for, eg. 'uuid:'
+     * @param pageSize the most results to request per page
+     * @param readAhead the most pages to fetch ahead of the caller, 0 to only
+     *            fetch a page when it is needed
+     */
+    Fedora36ObjectIdIterator(String prefix, int pageSize, int readAhead) {
+        this(Collections.singletonList(prefix), pageSize, readAhead);
+    }
+
+    /**
+     * Constructor for a partitioned search. Nothing is sent to Fedora until
+     * the first OID is wanted. With more than one partition the cursors
+     * always read ahead, since that is how they run side by side.
+     *
+     * @param partitions the PID prefix of each partition, none of which
+     *            should start with another
+     * @param pageSize the most results to request per page
+     * @param readAhead the most pages to fetch ahead of the caller for each
+     *            partition, 0 to only fetch a page when it is needed
+     */
+    Fedora36ObjectIdIterator(List<String> partitions, int pageSize,
+            int readAhead) {
+        for (String prefix : partitions) {
+            cursors.add(new FindObjectsCursor(prefix, pageSize));
+        }
+        setReadAhead(readAhead);
+    }
+
+    /**
+     * Constructor for a resource index query. Nothing is sent to Fedora
+     * until the first OID is wanted.
+     *
+     * @param query a SPARQL query with the OIDs in its first column
+     * @param pageSize the most rows to parse at a time
+     * @param readAhead the most pages to parse ahead of the caller, 0 to only
+     *            parse a page when it is needed
+     * @return Fedora36ObjectIdIterator The iterator
+     */
+    static Fedora36ObjectIdIterator riSearch(String query, int pageSize,
+            int readAhead) {
+        Fedora36ObjectIdIterator iterator = new Fedora36ObjectIdIterator();
+        iterator.cursors.add(new RiSearchCursor(query, pageSize));
+        iterator.setReadAhead(readAhead);
+        return iterator;
+    }
+
+    /**
+     * Decide how the cursors will be read, before the first page is wanted.
+     *
+     * @param readAhead the most pages to fetch ahead of the caller for each
+     *            cursor
+     */
+    private void setReadAhead(int readAhead) {
+        pages = null;
+        if (readAhead > 0 || cursors.size() > 1) {
+            pages = new ArrayBlockingQueue<List<String>>(Math.max(1,
+                    readAhead) * cursors.size());
+        }
+    }
+
+    /**
+     * Is there another OID? May fetch the next page from Fedora.
+     *
+     * @return boolean True if there is another OID
+     * @throws RuntimeException if a page could not be fetched
+     */
+    @Override
+    public boolean hasNext() {
+        while (page.isEmpty() && !finished) {
+            if (pages == null) {
+                fetch();
+            } else {
+                take();
+            }
+        }
+        return !page.isEmpty();
+    }
+
+    /**
+     * The next OID. May fetch the next page from Fedora.
+     *
+     * @return String The OID
+     * @throws NoSuchElementException if there are no more OIDs
+     * @throws RuntimeException if a page could not be fetched
+     */
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return page.remove();
+    }
+
+    /**
+     * Not supported, use {@link Fedora36Storage#removeObject(String)}.
+     */
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Stop iterating. The rest of the current page is dropped and no more
+     * are requested; Fedora expires the search sessions by itself.
+     */
+    @Override
+    public void close() {
+        finished = true;
+        page.clear();
+        if (readers != null) {
+            // They close their own cursors
+            for (Thread reader : readers) {
+                reader.interrupt();
+            }
+        } else {
+            for (Cursor cursor : cursors) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Fetch the next page from Fedora, on the caller's thread.
+     */
+    private void fetch() {
+        while (current < cursors.size()) {
+            List<String> oids;
+            try {
+                oids = cursors.get(current).fetchPage();
+            } catch (RuntimeException ex) {
+                close();
+                throw ex;
+            }
+            if (oids == null) {
+                current++;
+            } else {
+                page.addAll(oids);
+                return;
+            }
+        }
+        finished = true;
+    }
+
+    /**
+     * Wait for the next page fetched ahead, starting the readers if this is
+     * the first.
+     */
+    private void take() {
+        if (readers == null) {
+            readers = new ArrayList<Thread>();
+            for (final Cursor cursor : cursors) {
+                Thread reader = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        readAhead(cursor);
+                    }
+                }, "Fedora36 OID read-ahead " + (readers.size() + 1));
+                reader.setDaemon(true);
+                readers.add(reader);
+            }
+            running = readers.size();
+            for (Thread reader : readers) {
+                reader.start();
+            }
+        }
+        List<String> oids;
+        try {
+            oids = pages.take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new RuntimeException(new StorageException(
+                    "Interrupted during Fedora search", ex));
+        }
+        if (oids == lastPage) {
+            if (failure != null) {
+                close();
+                throw failure;
+            }
+            running--;
+            if (running == 0) {
+                finished = true;
+            }
+        } else {
+            page.addAll(oids);
+        }
+    }
+
+    /**
+     * Keep fetching pages from one cursor until there are no more, Fedora
+     * fails, or the iterator is closed. Runs on a reader thread.
+     *
+     * @param cursor the cursor to walk
+     */
+    private void readAhead(Cursor cursor) {
+        try {
+            try {
+                List<String> oids;
+                while ((oids = cursor.fetchPage()) != null) {
+                    pages.put(oids);
+                }
+            } catch (RuntimeException ex) {
+                failure = ex;
+            }
+            pages.put(lastPage);
+        } catch (InterruptedException ex) {
+            // Closed, nobody is waiting for the rest
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Read one row of CSV (RFC 4180), as written by the resource index.
+     * Quoted values may hold commas, doubled quotes and line breaks.
+     *
+     * @param in the CSV to read from
+     * @return List<String> The values in the row, or NULL at the end
+     * @throws IOException if the CSV could not be read
+     */
+    static List<String> readCsvRow(BufferedReader in) throws IOException {
+        List<String> row = new ArrayList<String>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        int c = in.read();
+        if (c == -1) {
+            return null;
+        }
+        while (c != -1) {
+            if (quoted) {
+                if (c == '"') {
+                    in.mark(1);
+                    int next = in.read();
+                    if (next == '"') {
+                        value.append('"');
+                    } else {
+                        quoted = false;
+                        if (next != -1) {
+                            in.reset();
+                        }
+                    }
+                } else {
+                    value.append((char) c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                row.add(value.toString());
+                value.setLength(0);
+            } else if (c == '\n') {
+                break;
+            } else if (c != '\r') {
+                value.append((char) c);
+            }
+            c = in.read();
+        }
+        row.add(value.toString());
+        return row;
+    }
+}
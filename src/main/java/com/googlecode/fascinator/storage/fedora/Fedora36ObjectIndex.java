@@ -0,0 +1,573 @@
+/*
+ * The Fascinator - Fedora Commons 3.x storage plugin
+ * Copyright (C) 2009-2011 University of Southern Queensland
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.fedora;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * A local index of every OID in storage, so listings and membership checks
+ * need not ask Fedora. It is kept in two files:
+ * <ul>
+ * <li>'oids.snapshot': every OID, sorted, one per line. It is memory mapped
+ * and searched in place; only the offset of each line is held on the heap.</li>
+ * <li>'oids.log': OIDs added ('+') and removed ('-') since the snapshot, one
+ * per line, appended as they happen and replayed on startup.</li>
+ * </ul>
+ * Compaction folds the log into a new snapshot once it grows past a
+ * threshold. OIDs are escaped so that they always fit on one line.
+ *
+ * The index only sees changes made through this plugin. It has to be rebuilt
+ * from a full listing before first use, and again if anything else writes to
+ * the same Fedora namespace. Only one index may be open on a directory at a
+ * time, so storage instances share them via
+ * {@link Fedora36#openObjectIndex(File, int)}.
+ *
+ * @author Greg Pendlebury
+ */
+class Fedora36ObjectIndex implements Closeable {
+    /** Encoding of both files */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** The directory holding the index files */
+    private File directory;
+
+    /** Sorted OIDs */
+    private File snapshotFile;
+
+    /** Changes since the snapshot */
+    private File logFile;
+
+    /** Log entries to allow before compacting */
+    private int compactAfter;
+
+    /** The mapped snapshot, NULL if it is empty */
+    private MappedByteBuffer snapshot;
+
+    /** Offset of each line in the snapshot */
+    private int[] offsets = new int[0];
+
+    /** OIDs added since the snapshot */
+    private Set<String> added = new HashSet<String>();
+
+    /** OIDs removed since the snapshot */
+    private Set<String> removed = new HashSet<String>();
+
+    /** Appends to the log */
+    private Writer log;
+
+    /** Entries in the log */
+    private int logEntries;
+
+    /** Changes seen while a rebuild lists Fedora, NULL if not rebuilding */
+    private List<String> pending;
+
+    /**
+     * Guards everything above. Held while the files are written, so it is
+     * not a monitor, which would pin a virtual thread.
+     */
+    private final Lock lock = new ReentrantLock();
+
+    /** Stops two rebuilds overlapping, whichever instance starts them */
+    private final Lock rebuildLock = new ReentrantLock();
+
+    /**
+     * Constructor. Opens the index held in a directory, if it has been built.
+     *
+     * @param directory the directory holding the index files
+     * @param compactAfter log entries to allow before compacting
+     * @throws IOException if the index could not be read
+     */
+    Fedora36ObjectIndex(File directory, int compactAfter) throws IOException {
+        FileUtils.forceMkdir(directory);
+        this.directory = directory;
+        snapshotFile = new File(directory, "oids.snapshot");
+        logFile = new File(directory, "oids.log");
+        this.compactAfter = compactAfter;
+        if (snapshotFile.exists()) {
+            load();
+        }
+    }
+
+    /**
+     * @return File The directory holding the index files
+     */
+    File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * The lock to hold while rebuilding, between checking that a rebuild is
+     * needed and finishing it.
+     *
+     * @return Lock The rebuild lock
+     */
+    Lock getRebuildLock() {
+        return rebuildLock;
+    }
+
+    /**
+     * @return boolean True if the index has been built, False if it must be
+     *         rebuilt before use
+     */
+    boolean isBuilt() {
+        lock.lock();
+        try {
+            return log != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Is an OID in storage?
+     *
+     * @param oid the Object ID
+     * @return boolean True if it is in the index
+     */
+    boolean contains(String oid) {
+        lock.lock();
+        try {
+            if (removed.contains(oid)) {
+                return false;
+            }
+            return added.contains(oid) || search(escape(oid)) >= 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Set<String> Every OID in the index
+     */
+    Set<String> getAll() {
+        lock.lock();
+        try {
+            Set<String> oids = new HashSet<String>();
+            for (int i = 0; i < offsets.length; i++) {
+                String oid = unescape(line(i));
+                if (!removed.contains(oid)) {
+                    oids.add(oid);
+                }
+            }
+            oids.addAll(added);
+            return oids;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return int The number of OIDs in the index
+     */
+    int size() {
+        lock.lock();
+        try {
+            return offsets.length - removed.size() + added.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Record a new object.
+     *
+     * @param oid the Object ID
+     * @throws IOException if the log could not be written
+     */
+    void add(String oid) throws IOException {
+        lock.lock();
+        try {
+            if (pending != null) {
+                pending.add("+" + oid);
+            }
+            if (!isBuilt()) {
+                return;
+            }
+            append('+', oid);
+            removed.remove(oid);
+            if (search(escape(oid)) < 0) {
+                added.add(oid);
+            }
+            compactIfDue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Record a removed object.
+     *
+     * @param oid the Object ID
+     * @throws IOException if the log could not be written
+     */
+    void remove(String oid) throws IOException {
+        lock.lock();
+        try {
+            if (pending != null) {
+                pending.add("-" + oid);
+            }
+            if (!isBuilt()) {
+                return;
+            }
+            append('-', oid);
+            added.remove(oid);
+            if (search(escape(oid)) >= 0) {
+                removed.add(oid);
+            }
+            compactIfDue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Start a rebuild. Changes recorded from now on are kept aside, so they
+     * still apply if the listing of Fedora that follows missed them.
+     */
+    void beginRebuild() {
+        lock.lock();
+        try {
+            pending = new ArrayList<String>();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Abandon a rebuild whose listing of Fedora failed. The changes kept
+     * aside are dropped; an index that was already built has seen them
+     * anyway.
+     */
+    void abortRebuild() {
+        lock.lock();
+        try {
+            pending = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Finish a rebuild, replacing the index with a full listing of Fedora.
+     *
+     * @param oids every OID in storage
+     * @throws IOException if the index could not be written
+     */
+    void finishRebuild(Collection<String> oids) throws IOException {
+        lock.lock();
+        try {
+            Set<String> sorted = new TreeSet<String>();
+            for (String oid : oids) {
+                sorted.add(escape(oid));
+            }
+            if (pending != null) {
+                for (String change : pending) {
+                    String oid = escape(change.substring(1));
+                    if (change.charAt(0) == '+') {
+                        sorted.add(oid);
+                    } else {
+                        sorted.remove(oid);
+                    }
+                }
+                pending = null;
+            }
+            writeSnapshot(sorted);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Fold the log into a new snapshot.
+     *
+     * @throws IOException if the index could not be written
+     */
+    void compact() throws IOException {
+        lock.lock();
+        try {
+            Set<String> sorted = new TreeSet<String>();
+            for (String oid : getAll()) {
+                sorted.add(escape(oid));
+            }
+            writeSnapshot(sorted);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forget the index, after it may have missed a change. It will need
+     * rebuilding before it is used again.
+     */
+    void invalidate() {
+        lock.lock();
+        try {
+            close();
+            snapshotFile.delete();
+            logFile.delete();
+            // Only drops our reference; the mapping itself is released
+            // when the buffer is garbage collected
+            snapshot = null;
+            offsets = new int[0];
+            added.clear();
+            removed.clear();
+            logEntries = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop writing to the log.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (log != null) {
+                Fedora36.close(log);
+                log = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Compact if the log has grown past the threshold.
+     *
+     * @throws IOException if the index could not be written
+     */
+    private void compactIfDue() throws IOException {
+        if (compactAfter > 0 && logEntries >= compactAfter) {
+            compact();
+        }
+    }
+
+    /**
+     * Append one change to the log.
+     *
+     * @param change '+' or '-'
+     * @param oid the Object ID
+     * @throws IOException if the log could not be written
+     */
+    private void append(char change, String oid) throws IOException {
+        log.write(change + escape(oid) + "\n");
+        log.flush();
+        logEntries++;
+    }
+
+    /**
+     * Write a new snapshot, replacing the old one and emptying the log.
+     *
+     * @param sorted every OID, escaped and sorted
+     * @throws IOException if the index could not be written
+     */
+    private void writeSnapshot(Set<String> sorted) throws IOException {
+        close();
+        File temp = new File(snapshotFile.getPath() + ".tmp");
+        Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(temp), UTF8));
+        try {
+            for (String oid : sorted) {
+                out.write(oid);
+                out.write('\n');
+            }
+        } finally {
+            out.close();
+        }
+        // Drop our reference to the old mapping (the JVM releases it when
+        // the buffer is garbage collected, there is no portable unmap),
+        // then replace the file and start an empty log
+        snapshot = null;
+        if (!temp.renameTo(snapshotFile)) {
+            FileUtils.copyFile(temp, snapshotFile);
+            temp.delete();
+        }
+        new FileOutputStream(logFile).close();
+        load();
+    }
+
+    /**
+     * Map the snapshot and replay the log over it.
+     *
+     * @throws IOException if the index could not be read
+     */
+    private void load() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(snapshotFile, "r");
+        try {
+            long length = file.length();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("OID index snapshot is too large: "
+                        + length + " bytes");
+            }
+            snapshot = length == 0 ? null : file.getChannel().map(
+                    FileChannel.MapMode.READ_ONLY, 0, length);
+        } finally {
+            file.close();
+        }
+
+        // Find where each line starts
+        int[] found = new int[1024];
+        int lines = 0;
+        if (snapshot != null) {
+            int start = 0;
+            for (int i = 0; i < snapshot.limit(); i++) {
+                if (snapshot.get(i) == '\n') {
+                    if (lines == found.length) {
+                        found = Arrays.copyOf(found, lines * 2);
+                    }
+                    found[lines++] = start;
+                    start = i + 1;
+                }
+            }
+        }
+        offsets = Arrays.copyOf(found, lines);
+
+        // Replay the log; a partly written last line is ignored
+        added.clear();
+        removed.clear();
+        logEntries = 0;
+        if (logFile.exists()) {
+            String changes = new String(FileUtils.readFileToByteArray(logFile),
+                    UTF8);
+            int end = changes.lastIndexOf('\n');
+            if (end > 0) {
+                for (String change : changes.substring(0, end).split("\n")) {
+                    if (change.length() < 2) {
+                        continue;
+                    }
+                    String escaped = change.substring(1);
+                    String oid = unescape(escaped);
+                    boolean inSnapshot = search(escaped) >= 0;
+                    if (change.charAt(0) == '+') {
+                        removed.remove(oid);
+                        if (!inSnapshot) {
+                            added.add(oid);
+                        }
+                    } else if (change.charAt(0) == '-') {
+                        added.remove(oid);
+                        if (inSnapshot) {
+                            removed.add(oid);
+                        }
+                    }
+                    logEntries++;
+                }
+            }
+        }
+        log = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+                logFile, true), UTF8));
+    }
+
+    /**
+     * Binary search the snapshot.
+     *
+     * @param escaped the escaped OID to look for
+     * @return int The line holding it, or a negative number if it is absent
+     */
+    private int search(String escaped) {
+        int low = 0;
+        int high = offsets.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int compared = line(middle).compareTo(escaped);
+            if (compared < 0) {
+                low = middle + 1;
+            } else if (compared > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Read one line of the snapshot.
+     *
+     * @param index the line number
+     * @return String The (escaped) OID on that line
+     */
+    private String line(int index) {
+        int start = offsets[index];
+        int end = index + 1 < offsets.length ? offsets[index + 1] - 1
+                : snapshot.limit() - 1;
+        ByteBuffer bytes = snapshot.duplicate();
+        bytes.position(start);
+        bytes.limit(end);
+        return UTF8.decode(bytes).toString();
+    }
+
+    /**
+     * Escape an OID so it fits on one line.
+     *
+     * @param oid the Object ID
+     * @return String The escaped OID
+     */
+    static String escape(String oid) {
+        return oid.replace("\\", "\\\\").replace("\n", "\\n")
+                .replace("\r", "\\r");
+    }
+
+    /**
+     * Reverse {@link #escape(String)}.
+     *
+     * @param escaped the escaped OID
+     * @return String The Object ID
+     */
+    static String unescape(String escaped) {
+        if (escaped.indexOf('\\') == -1) {
+            return escaped;
+        }
+        StringBuilder oid = new StringBuilder();
+        for (int i = 0; i < escaped.length(); i++) {
+            char c = escaped.charAt(i);
+            if (c == '\\' && i + 1 < escaped.length()) {
+                char next = escaped.charAt(++i);
+                oid.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                oid.append(c);
+            }
+        }
+        return oid.toString();
+    }
+}
@@ -21,11 +21,15 @@ package com.googlecode.fascinator.storage.fedora;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.rmi.RemoteException;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,15 +39,9 @@ import com.googlecode.fascinator.api.storage.StorageException;
 import com.googlecode.fascinator.common.MimeTypeUtil;
 import com.googlecode.fascinator.common.storage.impl.GenericPayload;
 import com.yourmediashelf.fedora.client.FedoraClient;
-import com.yourmediashelf.fedora.client.FedoraClientException;
-import com.yourmediashelf.fedora.client.request.FedoraRequest;
 import com.yourmediashelf.fedora.client.request.GetDatastream;
-import com.yourmediashelf.fedora.client.request.GetDatastreamHistory;
 import com.yourmediashelf.fedora.client.request.ModifyDatastream;
 import com.yourmediashelf.fedora.client.response.DatastreamProfileResponse;
-import com.yourmediashelf.fedora.client.response.FedoraResponse;
-import com.yourmediashelf.fedora.client.response.GetDatastreamHistoryResponse;
-import com.yourmediashelf.fedora.client.response.GetDatastreamResponse;
 import com.yourmediashelf.fedora.generated.management.DatastreamProfile;
 
 /**
@@ -69,6 +67,9 @@ public class Fedora36Payload extends GenericPayload {
 	/** Fedora DSID */
 	private String dsId;
 
+	/** The datastream as Fedora last described it, NULL until fetched */
+	private DatastreamProfile profile;
+
 	/**
 	 * Instantiate a brand new payload in Fedora
 	 *
@@ -104,6 +105,7 @@ public class Fedora36Payload extends GenericPayload {
 		// log.debug("Construct EXISTING ({},{},{})",
 		// new String[] {pid, fedoraPid, ds.getID()});
 		init(fedoraPid, ds.getDsID());
+		profile = ds;
 	}
 
 	private void init(String fedoraPid, String dsId) {
@@ -112,7 +114,9 @@ public class Fedora36Payload extends GenericPayload {
 	}
 
 	/**
-	 * Gets the input stream to access the content for this payload
+	 * Gets the input stream to access the content for this payload. The
+	 * stream holds one of the pooled Fedora clients until it is read to the
+	 * end or closed.
 	 *
 	 * @return an input stream
 	 * @throws IOException
@@ -134,6 +138,58 @@ public class Fedora36Payload extends GenericPayload {
 		}
 	}
 
+	/**
+	 * Open the content in the background, so the caller can carry on while
+	 * Fedora starts sending it.
+	 *
+	 * @return CompletableFuture<InputStream> The content, or a
+	 *         StorageException if it could not be opened
+	 */
+	public CompletableFuture<InputStream> openAsync() {
+		if (Fedora36.getHttpTransport() != null) {
+			try {
+				close();
+			} catch (StorageException ex) {
+				CompletableFuture<InputStream> failed = new CompletableFuture<InputStream>();
+				failed.completeExceptionally(ex);
+				return failed;
+			}
+			return Fedora36.getStreamAsync(fedoraPid, dsId);
+		}
+		return Fedora36.async(new Callable<InputStream>() {
+			@Override
+			public InputStream call() throws StorageException {
+				InputStream in = open();
+				if (in == null) {
+					throw new StorageException("Error opening payload '"
+							+ getId() + "'");
+				}
+				return in;
+			}
+		});
+	}
+
+	/**
+	 * Not part of the API. Stream the content as it arrives from Fedora,
+	 * without blocking any thread. Only the JDK HttpClient transport
+	 * ('httpTransport' = 'jdk') can do this.
+	 *
+	 * @return CompletableFuture<Flow.Publisher<List<ByteBuffer>>> The
+	 *         content, which must be subscribed to (it holds a pooled Fedora
+	 *         client until read or cancelled), or a StorageException if it
+	 *         could not be opened
+	 */
+	public CompletableFuture<Flow.Publisher<List<ByteBuffer>>> openPublisher() {
+		Fedora36HttpTransport transport = Fedora36.getHttpTransport();
+		if (transport == null) {
+			CompletableFuture<Flow.Publisher<List<ByteBuffer>>> failed = new CompletableFuture<Flow.Publisher<List<ByteBuffer>>>();
+			failed.completeExceptionally(new StorageException(
+					"Streaming payloads needs the 'jdk' httpTransport"));
+			return failed;
+		}
+		return transport.getDatastreamContent(fedoraPid, dsId);
+	}
+
 	/**
 	 * Close the input stream for this payload
 	 *
@@ -165,81 +221,102 @@ public class Fedora36Payload extends GenericPayload {
 		try {
 			// NULL values indicate we aren't changing that parameter
 			String[] altIds = new String[] { getType().toString(), getId() };
-			FedoraClient fedoraClient = Fedora36.getNCClient();
 			ModifyDatastream modifyDatastream = FedoraClient
 					.modifyDatastream(fedoraPid, dsId)
 					.altIDs(Arrays.asList(altIds)).dsLabel(getLabel())
 					.mimeType(getContentType()).dsLocation(null)
 					.logMessage(METADATA_LOG_MESSAGE).versionable(false);
 
-			executeFedoraRequest(fedoraClient, modifyDatastream);
+			DatastreamProfileResponse response = (DatastreamProfileResponse) Fedora36
+					.execute(modifyDatastream);
+			Fedora36.invalidateManifest(fedoraPid);
+			synchronized (this) {
+				profile = response.getDatastreamProfile();
+			}
 			setMetaChanged(false);
 		} catch (Exception ioe) {
 			throw new StorageException(ioe);
-		} finally {
-			Fedora36.releaseNCClient();
 		}
 	}
 
 	/**
-	 * Return the timestamp when the payload was last modified
+	 * Return the timestamp when the payload was last modified. Answered from
+	 * the datastream profile this payload was built with, see
+	 * {@link #refresh()}.
 	 *
 	 * @returns Long: The last modified date of the payload, or NULL if unknown
 	 */
 	@Override
 	public Long lastModified() {
 		// log.debug("lastModified({})", getId());
-		try {
-			// Grab the history of this object's payloads
-			FedoraClient fedoraClient = Fedora36.getNCClient();
-			GetDatastreamHistory getDatastreamHistory = FedoraClient
-					.getDatastreamHistory(fedoraPid, dsId);
-			List<DatastreamProfile> datastreams = ((GetDatastreamHistoryResponse) executeFedoraRequest(
-					fedoraClient, getDatastreamHistory)).getDatastreamProfile()
-					.getDatastreamProfile();
-
-			if (datastreams == null || datastreams.size() == 0) {
-				log.error("Error accessing datastream history: '{}' DS '{}'",
-						fedoraPid, dsId);
-				return null;
-			}
-			Date lastModified = datastreams.get(0).getDsCreateDate()
-					.toGregorianCalendar().getTime();
-			return lastModified.getTime();
-		} catch (Exception ex) {
-			log.error("Error in Fedora query: ", ex);
+		DatastreamProfile datastream = getProfile();
+		if (datastream == null || datastream.getDsCreateDate() == null) {
+			log.error("Error accessing datastream date: '{}' DS '{}'",
+					fedoraPid, dsId);
 			return null;
-		} finally {
-			Fedora36.releaseNCClient();
 		}
+		Date lastModified = datastream.getDsCreateDate().toGregorianCalendar()
+				.getTime();
+		return lastModified.getTime();
 	}
 
 	/**
-	 * Return the size of the payload in bytes
+	 * Return the size of the payload in bytes. Answered from the datastream
+	 * profile this payload was built with, see {@link #refresh()}.
 	 *
 	 * @returns Integer: The file size in bytes, or NULL if unknown
 	 */
 	@Override
 	public Long size() {
+		DatastreamProfile datastream = getProfile();
+		if (datastream == null || datastream.getDsSize() == null) {
+			return null;
+		}
+		return datastream.getDsSize().longValue();
+	}
+
+	/**
+	 * Not part of the API. Fetch the datastream profile from Fedora again, so
+	 * size() and lastModified() reflect changes made since this payload was
+	 * built (eg. by another DigitalObject instance or another application).
+	 *
+	 * @throws StorageException
+	 *             if there was an error
+	 */
+	public void refresh() throws StorageException {
 		try {
-			FedoraClient fedoraClient = Fedora36.getNCClient();
 			GetDatastream getDatastream = FedoraClient.getDatastream(fedoraPid,
 					dsId);
-			DatastreamProfile datastream = ((DatastreamProfileResponse) executeFedoraRequest(
-					fedoraClient, getDatastream)).getDatastreamProfile();
-
-			return datastream.getDsSize().longValue();
+			DatastreamProfile datastream = ((DatastreamProfileResponse) Fedora36
+					.execute(getDatastream)).getDatastreamProfile();
+			synchronized (this) {
+				profile = datastream;
+			}
 		} catch (Exception ex) {
-			log.error("Error in Fedora query: ", ex);
-			return null;
-		} finally {
-			Fedora36.releaseNCClient();
+			throw new StorageException(ex);
 		}
 	}
 
-	private FedoraResponse executeFedoraRequest(FedoraClient fedoraClient,
-			FedoraRequest<?> fedoraRequest) throws FedoraClientException {
-		return fedoraRequest.execute(fedoraClient);
-
+	/**
+	 * Get the datastream profile, fetching it if this payload was not built
+	 * from one.
+	 *
+	 * @return DatastreamProfile The profile, or NULL if it couldn't be read
+	 */
+	private DatastreamProfile getProfile() {
+		synchronized (this) {
+			if (profile != null) {
+				return profile;
+			}
+		}
+		try {
+			refresh();
+		} catch (StorageException ex) {
+			log.error("Error in Fedora query: ", ex);
+			return null;
+		}
+		synchronized (this) {
+			return profile;
+		}
 	}
 }
@@ -0,0 +1,424 @@
+/*
+ * The Fascinator - Fedora Commons 3.x storage plugin
+ * Copyright (C) 2009-2011 University of Southern Queensland
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.fedora;
+
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.RateLimiter;
+import com.yourmediashelf.fedora.client.FedoraClientException;
+
+/**
+ * Limits the rate of requests sent to Fedora. In fixed mode this is a plain
+ * Guava RateLimiter. In adaptive mode the rate follows an AIMD (additive
+ * increase, multiplicative decrease) policy driven by the responses Fedora
+ * sends back:
+ * <ul>
+ * <li>Latencies are collected into windows of a fixed number of requests.
+ * When a window fills and its 95th percentile is under the target latency,
+ * the rate is raised by a fixed step.</li>
+ * <li>If the 95th percentile of a window is over the target, or Fedora
+ * answers with a 5xx error or times out, the rate is multiplied by the
+ * backoff factor.</li>
+ * </ul>
+ * The rate always stays between the configured minimum and maximum.
+ *
+ * @author Greg Pendlebury
+ */
+public class Fedora36RateLimiter {
+    /** Minimum time between two cuts in the rate, in nanoseconds */
+    private static final long DECREASE_COOLDOWN = TimeUnit.SECONDS
+            .toNanos(1);
+
+    /** Logger */
+    private static Logger log = LoggerFactory
+            .getLogger(Fedora36RateLimiter.class);
+
+    /** The limiter actually handing out permits */
+    private RateLimiter limiter;
+
+    /** Time source for the decrease cooldown */
+    private Ticker ticker = Ticker.systemTicker();
+
+    /** The rate it started at, in requests per second */
+    private double startRate;
+
+    /** Is the rate allowed to change? */
+    private boolean adaptive;
+
+    /** Lowest rate allowed, in requests per second */
+    private double minRate;
+
+    /** Highest rate allowed, in requests per second */
+    private double maxRate;
+
+    /** Additive increase, in requests per second */
+    private double increaseStep;
+
+    /** Multiplicative decrease, between 0 and 1 */
+    private double backoffFactor;
+
+    /** Target 95th percentile latency, in nanoseconds */
+    private long targetLatency;
+
+    /** Latencies of the current window, in nanoseconds */
+    private long[] window;
+
+    /** Number of latencies in the current window */
+    private int windowCount;
+
+    /** 95th percentile of the last complete window, in milliseconds */
+    private long lastP95 = -1;
+
+    /** Time of the last decrease, from the ticker */
+    private long lastDecrease;
+
+    /** Has the rate ever been decreased? */
+    private boolean decreased;
+
+    /** Description of the last decision taken */
+    private String lastDecision = "none";
+
+    /** Number of times the rate was raised */
+    private long increaseCount;
+
+    /** Number of times the rate was cut */
+    private long decreaseCount;
+
+    /**
+     * Constructor for a fixed rate limiter.
+     *
+     * @param rate the rate, in requests per second
+     */
+    public Fedora36RateLimiter(double rate) {
+        this(rate, false, rate, rate, 0, 1, 0, 1);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param rate the starting rate, in requests per second
+     * @param adaptive whether the rate should adapt to Fedora's responses
+     * @param minRate the lowest rate allowed, in requests per second
+     * @param maxRate the highest rate allowed, in requests per second
+     * @param increaseStep the additive increase, in requests per second
+     * @param backoffFactor the multiplicative decrease, between 0 and 1
+     * @param targetLatency the target 95th percentile latency, in
+     *            milliseconds
+     * @param windowSize the number of requests in each latency window
+     */
+    public Fedora36RateLimiter(double rate, boolean adaptive, double minRate,
+            double maxRate, double increaseStep, double backoffFactor,
+            long targetLatency, int windowSize) {
+        if (rate <= 0 || minRate <= 0 || maxRate < minRate) {
+            throw new IllegalArgumentException("Invalid rate limits: rate="
+                    + rate + ", min=" + minRate + ", max=" + maxRate);
+        }
+        if (backoffFactor <= 0 || backoffFactor > 1 || windowSize < 1) {
+            throw new IllegalArgumentException("Invalid rate limit backoff ("
+                    + backoffFactor + ") or window (" + windowSize + ")");
+        }
+        startRate = rate;
+        this.adaptive = adaptive;
+        this.minRate = minRate;
+        this.maxRate = maxRate;
+        this.increaseStep = increaseStep;
+        this.backoffFactor = backoffFactor;
+        this.targetLatency = TimeUnit.MILLISECONDS.toNanos(targetLatency);
+        window = new long[windowSize];
+        limiter = RateLimiter.create(clamp(rate));
+    }
+
+    /**
+     * Was this limiter built with the same settings as another? The rate
+     * each has reached since is not compared.
+     *
+     * @param other the other limiter
+     * @return boolean True if the settings are the same
+     */
+    public boolean hasSettingsOf(Fedora36RateLimiter other) {
+        return other != null && startRate == other.startRate
+                && adaptive == other.adaptive && minRate == other.minRate
+                && maxRate == other.maxRate
+                && increaseStep == other.increaseStep
+                && backoffFactor == other.backoffFactor
+                && targetLatency == other.targetLatency
+                && window.length == other.window.length;
+    }
+
+    /**
+     * Replace the time source behind the decrease cooldown, for testing.
+     *
+     * @param ticker the time source
+     */
+    synchronized void setTicker(Ticker ticker) {
+        this.ticker = ticker;
+    }
+
+    /**
+     * Wait for a permit to send one request.
+     *
+     * @return double The time spent waiting, in seconds
+     */
+    public double acquire() {
+        return limiter.acquire();
+    }
+
+    /**
+     * Record a request that Fedora answered.
+     *
+     * @param latency the time the request took, in nanoseconds
+     * @param status the HTTP status Fedora returned
+     */
+    public void recordResponse(long latency, int status) {
+        if (status >= 500) {
+            recordOverload(latency, "HTTP " + status);
+        } else {
+            recordLatency(latency);
+        }
+    }
+
+    /**
+     * Record a request that failed. Server errors and timeouts cut the rate,
+     * anything else (eg. a 404) is treated as a normal response.
+     *
+     * @param latency the time the request took, in nanoseconds
+     * @param error the reason it failed
+     */
+    public void recordFailure(long latency, Throwable error) {
+        String reason = overloadReason(error);
+        if (reason != null) {
+            recordOverload(latency, reason);
+        } else {
+            recordLatency(latency);
+        }
+    }
+
+    /**
+     * Add a latency to the current window, adjusting the rate if the window
+     * is now full.
+     *
+     * @param latency the latency in nanoseconds
+     */
+    private synchronized void recordLatency(long latency) {
+        if (!adaptive) {
+            return;
+        }
+        window[windowCount++] = latency;
+        if (windowCount < window.length) {
+            return;
+        }
+
+        long[] sorted = Arrays.copyOf(window, windowCount);
+        Arrays.sort(sorted);
+        long p95 = sorted[(int) Math.ceil(sorted.length * 0.95) - 1];
+        windowCount = 0;
+        lastP95 = TimeUnit.NANOSECONDS.toMillis(p95);
+
+        if (p95 > targetLatency) {
+            decrease("p95 " + lastP95 + "ms over target "
+                    + TimeUnit.NANOSECONDS.toMillis(targetLatency) + "ms");
+        } else {
+            increase("p95 " + lastP95 + "ms within target "
+                    + TimeUnit.NANOSECONDS.toMillis(targetLatency) + "ms");
+        }
+    }
+
+    /**
+     * Fedora is overloaded; cut the rate unless we only just did.
+     *
+     * @param latency the latency in nanoseconds
+     * @param reason why we think Fedora is overloaded
+     */
+    private synchronized void recordOverload(long latency, String reason) {
+        if (!adaptive) {
+            return;
+        }
+        // Requests already in flight when we last cut the rate will
+        // often fail too, they shouldn't cut it again
+        if (decreased && ticker.read() - lastDecrease < DECREASE_COOLDOWN) {
+            return;
+        }
+        windowCount = 0;
+        decrease(reason);
+    }
+
+    /**
+     * Additive increase.
+     *
+     * @param reason the reason for logging
+     */
+    private void increase(String reason) {
+        double oldRate = limiter.getRate();
+        double newRate = clamp(oldRate + increaseStep);
+        lastDecision = "hold at " + format(oldRate) + "/s: " + reason;
+        if (newRate > oldRate) {
+            limiter.setRate(newRate);
+            increaseCount++;
+            lastDecision = "increase " + format(oldRate) + "/s to "
+                    + format(newRate) + "/s: " + reason;
+            log.info("Fedora rate limit: {}", lastDecision);
+        }
+    }
+
+    /**
+     * Multiplicative decrease.
+     *
+     * @param reason the reason for logging
+     */
+    private void decrease(String reason) {
+        double oldRate = limiter.getRate();
+        double newRate = clamp(oldRate * backoffFactor);
+        decreased = true;
+        lastDecrease = ticker.read();
+        lastDecision = "hold at " + format(oldRate) + "/s: " + reason;
+        if (newRate < oldRate) {
+            limiter.setRate(newRate);
+            decreaseCount++;
+            lastDecision = "decrease " + format(oldRate) + "/s to "
+                    + format(newRate) + "/s: " + reason;
+            log.info("Fedora rate limit: {}", lastDecision);
+        }
+    }
+
+    /**
+     * Keep a rate inside the configured limits.
+     *
+     * @param rate the desired rate
+     * @return double the rate that will be used
+     */
+    private double clamp(double rate) {
+        return Math.max(minRate, Math.min(maxRate, rate));
+    }
+
+    /**
+     * Round a rate for logging.
+     *
+     * @param rate the rate
+     * @return String the rate to two decimal places
+     */
+    private static String format(double rate) {
+        return String.valueOf(Math.round(rate * 100) / 100.0);
+    }
+
+    /**
+     * Work out whether an error means Fedora is struggling, ie. it returned
+     * a server error or a request timed out somewhere along the way.
+     *
+     * @param error the error to test
+     * @return String a short description of the overload, or NULL if the
+     *         error is not a sign of overload
+     */
+    static String overloadReason(Throwable error) {
+        for (Throwable t = error; t != null; t = t.getCause()) {
+            // Duplicate PIDs come back as a 500, but aren't Fedora's fault
+            if (t instanceof FedoraClientException
+                    && Fedora36.isObjectExists((FedoraClientException) t)) {
+                return null;
+            }
+            if (t instanceof FedoraClientException
+                    && ((FedoraClientException) t).getStatus() >= 500) {
+                return "HTTP " + ((FedoraClientException) t).getStatus();
+            }
+            if (t instanceof SocketTimeoutException
+                    || t instanceof TimeoutException) {
+                return "timeout";
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return boolean True if the rate adapts to Fedora's responses
+     */
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * @return double The current rate, in requests per second
+     */
+    public double getRate() {
+        return limiter.getRate();
+    }
+
+    /**
+     * @return double The lowest rate allowed, in requests per second
+     */
+    public double getMinRate() {
+        return minRate;
+    }
+
+    /**
+     * @return double The highest rate allowed, in requests per second
+     */
+    public double getMaxRate() {
+        return maxRate;
+    }
+
+    /**
+     * @return long The 95th percentile latency of the last complete window,
+     *         in milliseconds, or -1 if no window has completed yet
+     */
+    public synchronized long getLastP95() {
+        return lastP95;
+    }
+
+    /**
+     * @return String A description of the last decision taken
+     */
+    public synchronized String getLastDecision() {
+        return lastDecision;
+    }
+
+    /**
+     * @return long The number of times the rate was raised
+     */
+    public synchronized long getIncreaseCount() {
+        return increaseCount;
+    }
+
+    /**
+     * @return long The number of times the rate was cut
+     */
+    public synchronized long getDecreaseCount() {
+        return decreaseCount;
+    }
+
+    /**
+     * A one line summary of the limiter's state, suitable for logging.
+     *
+     * @return String The summary
+     */
+    @Override
+    public String toString() {
+        return "Fedora rate limit: rate=" + format(getRate()) + "/s"
+                + ", adaptive=" + adaptive + ", increases="
+                + getIncreaseCount() + ", decreases=" + getDecreaseCount()
+                + ", lastP95Ms=" + getLastP95() + ", lastDecision="
+                + getLastDecision();
+    }
+}
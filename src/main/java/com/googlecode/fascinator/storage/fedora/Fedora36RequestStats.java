@@ -0,0 +1,261 @@
+/*
+ * The Fascinator - Fedora Commons 3.x storage plugin
+ * Copyright (C) 2009-2011 University of Southern Queensland
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.fedora;
+
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics for every request sent to Fedora, kept per operation (the
+ * request type, eg. 'Ingest' or 'GetDatastreamDissemination'). Time spent
+ * queueing for a rate limit permit and for a pooled client is kept apart
+ * from the time Fedora took to answer, as is time spent waiting on another
+ * thread to finish creating or removing an object.
+ *
+ * @author Greg Pendlebury
+ */
+public class Fedora36RequestStats {
+    /**
+     * Statistics for a single operation.
+     */
+    public static class Operation {
+        /** Operation name */
+        private String name;
+
+        /** Time Fedora took to answer */
+        private Fedora36LatencyHistogram latency = new Fedora36LatencyHistogram();
+
+        /** Requests that failed */
+        private AtomicLong errors = new AtomicLong();
+
+        /** Bytes sent to Fedora */
+        private AtomicLong bytesSent = new AtomicLong();
+
+        /** Bytes read back from Fedora */
+        private AtomicLong bytesReceived = new AtomicLong();
+
+        /**
+         * Constructor
+         *
+         * @param name the operation name
+         */
+        private Operation(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return String The operation name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return long The number of requests sent, including failures
+         */
+        public long getCalls() {
+            return latency.getCount();
+        }
+
+        /**
+         * @return long The number of requests that failed
+         */
+        public long getErrors() {
+            return errors.get();
+        }
+
+        /**
+         * @return long The number of bytes sent to Fedora
+         */
+        public long getBytesSent() {
+            return bytesSent.get();
+        }
+
+        /**
+         * @return long The number of bytes read back from Fedora
+         */
+        public long getBytesReceived() {
+            return bytesReceived.get();
+        }
+
+        /**
+         * @return Fedora36LatencyHistogram The time Fedora took to answer
+         */
+        public Fedora36LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        /**
+         * A one line summary, suitable for logging.
+         *
+         * @return String The summary
+         */
+        @Override
+        public String toString() {
+            return name + ": errors=" + getErrors() + ", bytesSent="
+                    + getBytesSent() + ", bytesReceived="
+                    + getBytesReceived() + ", " + latency;
+        }
+    }
+
+    /** Statistics for each operation */
+    private ConcurrentMap<String, Operation> operations = new ConcurrentHashMap<String, Operation>();
+
+    /** Time spent waiting for a rate limit permit */
+    private Fedora36LatencyHistogram permitWait = new Fedora36LatencyHistogram();
+
+    /** Time spent waiting for a pooled client */
+    private Fedora36LatencyHistogram poolWait = new Fedora36LatencyHistogram();
+
+    /** Time spent waiting for an object lock */
+    private Fedora36LatencyHistogram lockWait = new Fedora36LatencyHistogram();
+
+    /**
+     * Record a completed request.
+     *
+     * @param operation the operation name
+     * @param nanos the time Fedora took to answer, in nanoseconds
+     * @param bytesSent the bytes sent with the request, if known
+     * @param error whether the request failed
+     */
+    public void record(String operation, long nanos, long bytesSent,
+            boolean error) {
+        Operation stats = getOrCreate(operation);
+        stats.latency.record(nanos);
+        stats.bytesSent.addAndGet(bytesSent);
+        if (error) {
+            stats.errors.incrementAndGet();
+        }
+    }
+
+    /**
+     * Record bytes read back from Fedora. Response bodies are usually read
+     * after the request itself completes, so this is counted separately.
+     *
+     * @param operation the operation name
+     * @param bytes the bytes read
+     */
+    public void recordReceived(String operation, long bytes) {
+        getOrCreate(operation).bytesReceived.addAndGet(bytes);
+    }
+
+    /**
+     * Record time spent waiting for a rate limit permit.
+     *
+     * @param nanos the wait in nanoseconds
+     */
+    public void recordPermitWait(long nanos) {
+        permitWait.record(nanos);
+    }
+
+    /**
+     * Record time spent waiting for a pooled client.
+     *
+     * @param nanos the wait in nanoseconds
+     */
+    public void recordPoolWait(long nanos) {
+        poolWait.record(nanos);
+    }
+
+    /**
+     * Record time spent waiting for an object lock.
+     *
+     * @param nanos the wait in nanoseconds
+     */
+    public void recordLockWait(long nanos) {
+        lockWait.record(nanos);
+    }
+
+    /**
+     * Find the statistics for an operation, creating them on first use.
+     *
+     * @param operation the operation name
+     * @return Operation The statistics
+     */
+    private Operation getOrCreate(String operation) {
+        Operation stats = operations.get(operation);
+        if (stats == null) {
+            Operation created = new Operation(operation);
+            stats = operations.putIfAbsent(operation, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * @return Set<String> The names of every operation seen so far, sorted
+     */
+    public Set<String> getOperationNames() {
+        return new TreeSet<String>(operations.keySet());
+    }
+
+    /**
+     * @param operation the operation name, eg. 'Ingest'
+     * @return Operation The statistics, or NULL if the operation has never
+     *         been seen
+     */
+    public Operation getOperation(String operation) {
+        return operations.get(operation);
+    }
+
+    /**
+     * @return Fedora36LatencyHistogram Time spent waiting for a rate limit
+     *         permit
+     */
+    public Fedora36LatencyHistogram getPermitWait() {
+        return permitWait;
+    }
+
+    /**
+     * @return Fedora36LatencyHistogram Time spent waiting for a pooled client
+     */
+    public Fedora36LatencyHistogram getPoolWait() {
+        return poolWait;
+    }
+
+    /**
+     * @return Fedora36LatencyHistogram Time spent waiting for an object lock
+     */
+    public Fedora36LatencyHistogram getLockWait() {
+        return lockWait;
+    }
+
+    /**
+     * A multi-line summary of every operation, suitable for logging.
+     *
+     * @return String The summary
+     */
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder("Fedora request statistics:");
+        out.append("\n  rate limit wait: ").append(permitWait);
+        out.append("\n  client pool wait: ").append(poolWait);
+        out.append("\n  object lock wait: ").append(lockWait);
+        for (String name : getOperationNames()) {
+            out.append("\n  ").append(operations.get(name));
+        }
+        return out.toString();
+    }
+}
@@ -25,14 +25,30 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Function;
 
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.Striped;
 import com.googlecode.fascinator.api.PluginDescription;
 import com.googlecode.fascinator.api.storage.DigitalObject;
 import com.googlecode.fascinator.api.storage.Storage;
@@ -40,13 +56,10 @@ import com.googlecode.fascinator.api.storage.StorageException;
 import com.googlecode.fascinator.common.JsonSimpleConfig;
 import com.yourmediashelf.fedora.client.FedoraClient;
 import com.yourmediashelf.fedora.client.FedoraClientException;
-import com.yourmediashelf.fedora.client.request.FedoraRequest;
-import com.yourmediashelf.fedora.client.request.FindObjects;
-import com.yourmediashelf.fedora.client.request.GetObjectXML;
+import com.yourmediashelf.fedora.client.request.GetObjectProfile;
 import com.yourmediashelf.fedora.client.request.Ingest;
 import com.yourmediashelf.fedora.client.request.PurgeObject;
 import com.yourmediashelf.fedora.client.response.FedoraResponse;
-import com.yourmediashelf.fedora.client.response.FindObjectsResponse;
 import com.yourmediashelf.fedora.client.response.IngestResponse;
 
 /**
@@ -89,8 +102,190 @@ import com.yourmediashelf.fedora.client.response.IngestResponse;
  * <td>No</td>
  * <td>uuid</td>
  * </tr>
+ * <tr>
+ * <td>poolSize</td>
+ * <td>Number of Fedora clients shared by all threads using the plugin</td>
+ * <td>No</td>
+ * <td>4</td>
+ * </tr>
+ * <tr>
+ * <td>poolTimeout</td>
+ * <td>Seconds to wait for a free Fedora client before failing</td>
+ * <td>No</td>
+ * <td>10</td>
+ * </tr>
+ * <tr>
+ * <td>rateLimit</td>
+ * <td>Requests per second sent to Fedora (the starting rate if adaptive)</td>
+ * <td>No</td>
+ * <td>15</td>
+ * </tr>
+ * <tr>
+ * <td>adaptiveRateLimit</td>
+ * <td>Adjust the rate limit to Fedora's latency and errors (AIMD)</td>
+ * <td>No</td>
+ * <td>false</td>
+ * </tr>
+ * <tr>
+ * <td>rateLimitMin</td>
+ * <td>Lowest adaptive rate, in requests per second</td>
+ * <td>No</td>
+ * <td>1</td>
+ * </tr>
+ * <tr>
+ * <td>rateLimitMax</td>
+ * <td>Highest adaptive rate, in requests per second</td>
+ * <td>No</td>
+ * <td>10 x rateLimit</td>
+ * </tr>
+ * <tr>
+ * <td>rateLimitStep</td>
+ * <td>Adaptive increase per healthy window, in requests per second</td>
+ * <td>No</td>
+ * <td>1</td>
+ * </tr>
+ * <tr>
+ * <td>rateLimitBackoff</td>
+ * <td>Adaptive rate multiplier on overload</td>
+ * <td>No</td>
+ * <td>0.5</td>
+ * </tr>
+ * <tr>
+ * <td>rateLimitTargetLatency</td>
+ * <td>Adaptive target for p95 latency, in milliseconds</td>
+ * <td>No</td>
+ * <td>1000</td>
+ * </tr>
+ * <tr>
+ * <td>rateLimitWindow</td>
+ * <td>Requests per adaptive latency window</td>
+ * <td>No</td>
+ * <td>100</td>
+ * </tr>
+ * <tr>
+ * <td>statisticsLogInterval</td>
+ * <td>Seconds between logging the request statistics, 0 to never log</td>
+ * <td>No</td>
+ * <td>0</td>
+ * </tr>
+ * <tr>
+ * <td>streamingUpload</td>
+ * <td>Stream payload content to Fedora in chunks instead of caching it in a
+ * temp file first; MIME types are then detected from the first 64KB</td>
+ * <td>No</td>
+ * <td>false</td>
+ * </tr>
+ * <tr>
+ * <td>inlineThreshold</td>
+ * <td>Payloads up to this many bytes are sent in the same request that
+ * creates or updates their datastream, skipping the separate upload; 65536
+ * suits most metadata and thumbnails. 0 always uploads</td>
+ * <td>No</td>
+ * <td>0</td>
+ * </tr>
+ * <tr>
+ * <td>optimisticCreate</td>
+ * <td>Create objects with a single ingest, relying on Fedora to refuse
+ * duplicates, instead of checking first under a lock</td>
+ * <td>No</td>
+ * <td>false</td>
+ * </tr>
+ * <tr>
+ * <td>listReadAhead</td>
+ * <td>Pages of OIDs (1000 per page) to fetch in the background while
+ * listing storage, 0 to fetch each page only when it is needed</td>
+ * <td>No</td>
+ * <td>0</td>
+ * </tr>
+ * <tr>
+ * <td>listPartitioned</td>
+ * <td>List storage with 16 searches side by side, one per leading hex
+ * digit of the (hashed) PIDs, instead of a single sequential search</td>
+ * <td>No</td>
+ * <td>false</td>
+ * </tr>
+ * <tr>
+ * <td>listBackend</td>
+ * <td>Where storage listings come from: 'findObjects', or 'risearch' to
+ * query the resource index (which must be enabled in Fedora) instead</td>
+ * <td>No</td>
+ * <td>findObjects</td>
+ * </tr>
+ * <tr>
+ * <td>objectIndex</td>
+ * <td>Directory for a local index of every OID, kept up to date as objects
+ * are created and removed, which then answers storage listings. Only safe if
+ * nothing else writes to the namespace; built on first use</td>
+ * <td>No</td>
+ * <td>None</td>
+ * </tr>
+ * <tr>
+ * <td>objectIndexCompactAfter</td>
+ * <td>Changes the OID index logs before folding them into its snapshot.
+ * Instances sharing an index directory share one index, which keeps the
+ * setting of the first to open it</td>
+ * <td>No</td>
+ * <td>100000</td>
+ * </tr>
+ * <tr>
+ * <td>manifestCacheSize</td>
+ * <td>Number of object manifests (datastream lists) to cache between
+ * calls, 0 to disable the cache</td>
+ * <td>No</td>
+ * <td>0</td>
+ * </tr>
+ * <tr>
+ * <td>manifestCacheTtl</td>
+ * <td>Seconds a cached manifest is trusted; changes made outside this
+ * plugin may go unseen for this long</td>
+ * <td>No</td>
+ * <td>60</td>
+ * </tr>
+ * <tr>
+ * <td>asyncQueueSize</td>
+ * <td>Asynchronous calls (the *Async methods) allowed to wait for one of
+ * the 'poolSize' worker threads; any more fail straight away</td>
+ * <td>No</td>
+ * <td>1000</td>
+ * </tr>
+ * <tr>
+ * <td>virtualThreads</td>
+ * <td>Run asynchronous and batch calls on virtual threads, one per call,
+ * rather than a fixed number of platform threads. Needs Java 21 or later,
+ * older JVMs log a warning and carry on with platform threads</td>
+ * <td>No</td>
+ * <td>false</td>
+ * </tr>
+ * <tr>
+ * <td>httpTransport</td>
+ * <td>'fedora-client' to send every request with the Fedora client, or
+ * 'jdk' to send object checks, ingests, purges, datastream content and
+ * resource index searches asynchronously with the JDK HttpClient,
+ * streaming their responses. Datastream uploads, changes, listings and
+ * profiles always use the Fedora client. Both share the client pool and
+ * rate limit</td>
+ * <td>No</td>
+ * <td>fedora-client</td>
+ * </tr>
+ * <tr>
+ * <td>httpThreads</td>
+ * <td>Threads completing requests for the 'jdk' transport; each can keep
+ * many requests in flight</td>
+ * <td>No</td>
+ * <td>2</td>
+ * </tr>
  * </table>
  *
+ * <p>
+ * The connection settings (url, username, password, namespace, timeout,
+ * poolSize and poolTimeout) are read by the first instance only, since the
+ * connection and client pool are shared by every instance in the JVM. The
+ * other shared settings are re-read each time an instance is initialised,
+ * and the latest one applies to all instances. The rate limiter, manifest
+ * cache, executor and transport are only rebuilt when their settings
+ * change, so instances configured alike share them as they are.
+ * </p>
+ *
  * <h3>Sample configuration</h3>
  *
  * <pre>
@@ -115,6 +310,24 @@ public class Fedora36Storage implements Storage {
     /** How many records are we ever willing to receive per result set */
     private static int SEARCH_ROW_LIMIT_PER_PAGE = 1000;
 
+    /** Resource index predicate holding an object's label, ie. its OID */
+    private static String LABEL_PREDICATE = "info:fedora/fedora-system:def/model#label";
+
+    /** Changes the OID index logs before it is compacted, by default */
+    private static int DEFAULT_INDEX_COMPACT_AFTER = 100000;
+
+    /** Locks guarding object creation and removal, striped by PID */
+    private static final Striped<Lock> OBJECT_LOCKS = Striped.lock(256);
+
+    /** Leading characters of a hashed PID, one listing partition each */
+    private static String HEX_DIGITS = "0123456789abcdef";
+
+    /** How often batches log their progress, in milliseconds */
+    private static long BATCH_LOG_INTERVAL = 10000;
+
+    /** End of the FOXML template; initial datastreams go just before it */
+    private static String FOXML_END = "</foxml:digitalObject>";
+
     /** FOXML Version String to send to Fedora */
     private static String FOXML_VERSION = "info:fedora/fedora-system:FOXML-1.1";
 
@@ -133,6 +346,21 @@ public class Fedora36Storage implements Storage {
     /** FOXML Template to use at object creation */
     private String foxmlTemplate;
 
+    /** Skip the existence check before creating objects? */
+    private boolean optimisticCreate;
+
+    /** Pages of OIDs to fetch ahead of the caller when listing */
+    private int listReadAhead;
+
+    /** List storage with a cursor per PID prefix, side by side? */
+    private boolean listPartitioned;
+
+    /** List storage from the resource index instead of FindObjects? */
+    private boolean listRiSearch;
+
+    /** Local index of every OID, NULL if not configured */
+    private Fedora36ObjectIndex objectIndex;
+
     /**
      * Return the ID of this plugin.
      *
@@ -196,8 +424,15 @@ public class Fedora36Storage implements Storage {
      */
     private void init() throws StorageException {
         // A quick connection test
-        Fedora36.getNCClient();
-        Fedora36.releaseNCClient();
+        Fedora36.releaseNCClient(Fedora36.getNCClient());
+        optimisticCreate = systemConfig.getBoolean(false, "storage",
+                "fedora36", "optimisticCreate");
+        listReadAhead = systemConfig.getInteger(0, "storage", "fedora36",
+                "listReadAhead");
+        listPartitioned = systemConfig.getBoolean(false, "storage",
+                "fedora36", "listPartitioned");
+        listRiSearch = "risearch".equals(systemConfig.getString(
+                "findObjects", "storage", "fedora36", "listBackend"));
         // Do we have a template?
         String templatePath = systemConfig.getString(null, "storage",
                 "fedora36", "foxmlTemplate");
@@ -228,6 +463,32 @@ public class Fedora36Storage implements Storage {
             throw new StorageException("Error; Unable to read new object "
                     + "template from disk: '" + templatePath + "'");
         }
+        // Checked now, rather than after a create has uploaded its payloads
+        if (foxmlTemplate.lastIndexOf(FOXML_END) == -1) {
+            throw new StorageException("Error; The new object template has"
+                    + " no closing '" + FOXML_END + "' element: '"
+                    + templatePath + "'");
+        }
+
+        String indexPath = systemConfig.getString(null, "storage",
+                "fedora36", "objectIndex");
+        // Opened before the old one is closed, so the same index stays open
+        Fedora36ObjectIndex oldIndex = objectIndex;
+        objectIndex = null;
+        try {
+            if (indexPath != null) {
+                objectIndex = Fedora36.openObjectIndex(new File(indexPath),
+                        systemConfig.getInteger(DEFAULT_INDEX_COMPACT_AFTER,
+                                "storage", "fedora36",
+                                "objectIndexCompactAfter"));
+            }
+        } catch (IOException ex) {
+            throw new StorageException("Error opening the OID index", ex);
+        } finally {
+            if (oldIndex != null) {
+                Fedora36.closeObjectIndex(oldIndex);
+            }
+        }
     }
 
     /**
@@ -240,6 +501,47 @@ public class Fedora36Storage implements Storage {
         return Fedora36.getVersion();
     }
 
+    /**
+     * Not part of the API, but useful for monitoring. Access the pool of
+     * Fedora clients to read its statistics.
+     *
+     * @return Fedora36ClientPool The client pool
+     */
+    public Fedora36ClientPool getClientPool() {
+        return Fedora36.getClientPool();
+    }
+
+    /**
+     * Not part of the API, but useful for monitoring. Access the request rate
+     * limiter to read its current rate and decisions.
+     *
+     * @return Fedora36RateLimiter The rate limiter
+     */
+    public Fedora36RateLimiter getRateLimiter() {
+        return Fedora36.getRateLimiter();
+    }
+
+    /**
+     * Not part of the API, but useful for monitoring. Read the hit and miss
+     * counts of the manifest cache.
+     *
+     * @return CacheStats The cache statistics, or NULL if the cache is
+     *         disabled
+     */
+    public CacheStats getManifestCacheStats() {
+        return Fedora36.getManifestCacheStats();
+    }
+
+    /**
+     * Not part of the API, but useful for monitoring. Access the latency,
+     * error and byte counts of every request sent to Fedora.
+     *
+     * @return Fedora36RequestStats The request statistics
+     */
+    public Fedora36RequestStats getRequestStats() {
+        return Fedora36.getRequestStats();
+    }
+
     /**
      * Initialisation occurs here
      *
@@ -247,7 +549,23 @@ public class Fedora36Storage implements Storage {
      */
     @Override
     public void shutdown() throws StorageException {
-        // Don't need to do anything on shutdown
+        Fedora36ClientPool pool = Fedora36.getClientPool();
+        if (pool != null) {
+            log.info("{}", pool);
+        }
+        Fedora36RateLimiter limiter = Fedora36.getRateLimiter();
+        if (limiter != null) {
+            log.info("{}", limiter);
+        }
+        log.info("{}", Fedora36.getRequestStats());
+        CacheStats cacheStats = Fedora36.getManifestCacheStats();
+        if (cacheStats != null) {
+            log.info("Fedora manifest cache: {}", cacheStats);
+        }
+        if (objectIndex != null) {
+            Fedora36.closeObjectIndex(objectIndex);
+            objectIndex = null;
+        }
     }
 
     /**
@@ -269,46 +587,153 @@ public class Fedora36Storage implements Storage {
      * @throws StorageException if any errors occur
      */
     @Override
-    public synchronized DigitalObject createObject(String oid)
-            throws StorageException {
-        FedoraClient fedoraClient = null;
+    public DigitalObject createObject(String oid) throws StorageException {
+        return createObject(oid, Collections.<String, InputStream> emptyMap());
+    }
 
+    /**
+     * Not part of the API. Create a new object already holding its first
+     * payloads. The payloads are written into the object's FOXML, so the
+     * whole object arrives in Fedora with one ingest, instead of an add and
+     * a lookup per payload afterwards. Payloads under 'inlineThreshold' are
+     * embedded in the FOXML, larger ones are uploaded first.
+     *
+     * @param oid the Object ID to use during creation
+     * @param payloads the content of each payload by Payload ID, in the order
+     *            they should be created (the first other than 'TF-OBJ-META'
+     *            becomes the source). Every stream is closed
+     * @return DigitalObject the instantiated DigitalObject created
+     * @throws StorageException if any errors occur
+     */
+    public DigitalObject createObject(String oid,
+            Map<String, InputStream> payloads) throws StorageException {
         if (oid == null) {
             throw new StorageException("Error; Null OID recieved");
         }
+        if (payloads == null) {
+            throw new StorageException("Error; Null parameter recieved");
+        }
         String fedoraPid = safeFedoraPid(oid);
-        String data = null;
-
-        // Can we see object?
         try {
-            fedoraClient = Fedora36.getNCClient();
-            GetObjectXML getObjectXML = FedoraClient.getObjectXML(fedoraPid);
-            FedoraResponse response = executeFedoraRequest(fedoraClient, getObjectXML);
-
-            // If response code is not in the 200 range check the response
-            if (response.getStatus() - 200 < 100) {
-                data = response.getEntity(String.class);
+            // Let Fedora tell us if it already exists
+            if (optimisticCreate) {
+                return ingestObject(oid, fedoraPid, payloads);
+            }
 
-                if (data != null && data.getBytes().length > 0) {
+            // Otherwise look first, and don't let anyone else in between
+            Lock lock = lockObject(fedoraPid);
+            try {
+                // Can we see object?
+                if (objectExists(fedoraPid)) {
                     throw new StorageException("Error; object '" + oid
                             + "' already exists in Fedora");
                 }
+                return ingestObject(oid, fedoraPid, payloads);
+            } finally {
+                lock.unlock();
             }
-        } catch (FedoraClientException ex) {
-            // Object doesn't exist continue
         } finally {
-            Fedora36.releaseNCClient();
+            for (InputStream in : payloads.values()) {
+                if (in != null) {
+                    Fedora36.close(in);
+                }
+            }
         }
+    }
 
-        // New content
+    /**
+     * Not part of the API. Create many objects at once, sending the ingests
+     * over as many connections as the client pool holds (still within the
+     * rate limit). Each object is created just as
+     * {@link #createObject(String)} would, so unless 'optimisticCreate' is
+     * set its PID is locked and checked for first. Progress is logged as the
+     * batch runs.
+     *
+     * @param oids the Object IDs to create, duplicates are ignored
+     * @return Fedora36BatchResult the created objects, and failures, by OID
+     * @throws StorageException if the batch is interrupted
+     */
+    public Fedora36BatchResult createObjects(Collection<String> oids)
+            throws StorageException {
+        final Fedora36BatchResult result = new Fedora36BatchResult();
+        Set<String> unique = new LinkedHashSet<String>(oids);
+        int threads = Math.max(1, Math.min(unique.size(), Fedora36
+                .getClientPool().getSize()));
+        ExecutorService executor = Fedora36.newExecutor(threads);
+        CompletionService<String> completion = new ExecutorCompletionService<String>(
+                executor);
+        long start = System.currentTimeMillis();
         try {
-            fedoraClient = Fedora36.getNCClient();
-            data = new String(prepareTemplate(fedoraPid, oid), "utf-8");
-            Ingest ingest = FedoraClient.ingest().content(data).format(FOXML_VERSION).logMessage(ADD_LOG_MESSAGE);
-            IngestResponse response = (IngestResponse)executeFedoraRequest(fedoraClient, ingest); 
-            Fedora36.releaseNCClient();        
+            for (final String oid : unique) {
+                completion.submit(new Callable<String>() {
+                    @Override
+                    public String call() {
+                        try {
+                            result.addObject(oid, createObject(oid));
+                        } catch (StorageException ex) {
+                            result.addFailure(oid, ex);
+                        } catch (RuntimeException ex) {
+                            result.addFailure(oid, new StorageException(ex));
+                        }
+                        return oid;
+                    }
+                });
+            }
 
-            String responsePid = response.getPid();
+            // Wait for them all, reporting progress as we go
+            long lastLog = start;
+            for (int done = 1; done <= unique.size(); done++) {
+                completion.take();
+                long now = System.currentTimeMillis();
+                if (now - lastLog >= BATCH_LOG_INTERVAL) {
+                    lastLog = now;
+                    log.info("Batch create: {}/{} objects, {}/s",
+                            new Object[] { done, unique.size(),
+                                    done * 1000L / Math.max(1, now - start) });
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("Batch creation interrupted", ex);
+        } finally {
+            executor.shutdownNow();
+            result.setElapsed(System.currentTimeMillis() - start);
+        }
+        log.info("{}", result);
+        return result;
+    }
+
+    /**
+     * Ingest a new object built from the FOXML template.
+     *
+     * @param oid the Object ID to use during creation
+     * @param fedoraPid the Fedora PID to use
+     * @param payloads the content of any payloads to ingest with the object
+     * @return DigitalObject the instantiated DigitalObject created
+     * @throws StorageException if the object already exists, or any other
+     *             errors occur
+     */
+    private DigitalObject ingestObject(String oid, String fedoraPid,
+            Map<String, InputStream> payloads) throws StorageException {
+        Fedora36DigitalObject object = new Fedora36DigitalObject(oid,
+                fedoraPid);
+        String datastreams = object.prepareDatastreams(payloads);
+
+        // New content
+        try {
+            byte[] foxml = prepareTemplate(fedoraPid, oid, datastreams);
+            String responsePid;
+            Fedora36HttpTransport transport = Fedora36.getHttpTransport();
+            if (transport != null) {
+                responsePid = Fedora36.await(transport.ingest(foxml,
+                        FOXML_VERSION, ADD_LOG_MESSAGE));
+            } else {
+                String data = new String(foxml, "utf-8");
+                Ingest ingest = FedoraClient.ingest().content(data).format(FOXML_VERSION).logMessage(ADD_LOG_MESSAGE);
+                IngestResponse response = (IngestResponse) Fedora36.execute(
+                        ingest, foxml.length);
+                responsePid = response.getPid();
+            }
             if (!fedoraPid.equals(responsePid)) {
                 log.error("Error; PID Mismatch during creation. We sent '{}'"
                         + " but Fedora used '{}'", fedoraPid, responsePid);
@@ -316,13 +741,19 @@ public class Fedora36Storage implements Storage {
                 throw new StorageException("Error with Fedora PIDs. Please"
                         + " check your system logs and configuration!");
             }
-            
-            // Instantiate and return
-            return new Fedora36DigitalObject(oid, fedoraPid);
+
+            indexAdd(oid);
+            return object;
+        } catch (StorageException ex) {
+            throw ex;
+        } catch (FedoraClientException ex) {
+            if (Fedora36.isObjectExists(ex)) {
+                throw new StorageException("Error; object '" + oid
+                        + "' already exists in Fedora");
+            }
+            throw new StorageException("Error during Fedora search", ex);
         } catch (Exception ex) {
             throw new StorageException("Error during Fedora search", ex);
-        } finally {
-            Fedora36.releaseNCClient();
         }
     }
 
@@ -340,24 +771,107 @@ public class Fedora36Storage implements Storage {
             throw new StorageException("Error; Null OID recieved");
         }
         String fedoraPid = safeFedoraPid(oid);
+        // Confirm we can see the object in Fedora
+        if (!objectExists(fedoraPid)) {
+            throw new StorageException("Error; could not find object '"
+                    + oid + "' in Fedora");
+        }
+        // Instantiate and return
+        return new Fedora36DigitalObject(oid, fedoraPid);
+    }
+
+    /**
+     * Create a new object in the background.
+     *
+     * @param oid the Object ID to use
+     * @return CompletableFuture<DigitalObject> The new object, or the
+     *         StorageException that prevented it
+     */
+    public CompletableFuture<DigitalObject> createObjectAsync(final String oid) {
+        return Fedora36.async(new Callable<DigitalObject>() {
+            @Override
+            public DigitalObject call() throws StorageException {
+                return createObject(oid);
+            }
+        });
+    }
+
+    /**
+     * Retrieve an object in the background. With the JDK HttpClient
+     * transport no thread waits for Fedora to answer.
+     *
+     * @param oid the Object ID to retrieve
+     * @return CompletableFuture<DigitalObject> The object, or the
+     *         StorageException that prevented it
+     */
+    public CompletableFuture<DigitalObject> getObjectAsync(final String oid) {
+        Fedora36HttpTransport transport = Fedora36.getHttpTransport();
+        if (transport != null && oid != null) {
+            final String fedoraPid = safeFedoraPid(oid);
+            return transport.objectExists(fedoraPid).thenApply(
+                    new Function<Boolean, DigitalObject>() {
+                        @Override
+                        public DigitalObject apply(Boolean exists) {
+                            if (!exists) {
+                                throw new CompletionException(
+                                        new StorageException(
+                                                "Error; could not find object '"
+                                                        + oid + "' in Fedora"));
+                            }
+                            return new Fedora36DigitalObject(oid, fedoraPid);
+                        }
+                    });
+        }
+        return Fedora36.async(new Callable<DigitalObject>() {
+            @Override
+            public DigitalObject call() throws StorageException {
+                return getObject(oid);
+            }
+        });
+    }
+
+    /**
+     * Remove an object in the background.
+     *
+     * @param oid the Object ID to remove
+     * @return CompletableFuture<Void> Completes once the object is gone, or
+     *         with the StorageException that prevented it
+     */
+    public CompletableFuture<Void> removeObjectAsync(final String oid) {
+        return Fedora36.async(new Callable<Void>() {
+            @Override
+            public Void call() throws StorageException {
+                removeObject(oid);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Check if an object exists in Fedora. Only the status of an object
+     * profile request is looked at; the FOXML is never downloaded.
+     *
+     * @param fedoraPid the Fedora PID to look for
+     * @return boolean True if the object exists, False if not
+     * @throws StorageException if Fedora could not answer
+     */
+    private boolean objectExists(String fedoraPid) throws StorageException {
         try {
-            FedoraClient fedoraClient = Fedora36.getNCClient();
-            GetObjectXML getObjectXML =FedoraClient.getObjectXML(fedoraPid); 
-            FedoraResponse response = executeFedoraRequest(fedoraClient, getObjectXML);
-            Fedora36.releaseNCClient();
-            String data = response.getEntity(String.class);
-            // Confirm we can see the object in Fedora
-            // byte[] data = Fedora3.getApiM().getObjectXML(fedoraPid);
-            if (data == null || data.getBytes().length == 0) {
-                throw new StorageException("Error; could not find object '"
-                        + oid + "' in Fedora");
+            Fedora36HttpTransport transport = Fedora36.getHttpTransport();
+            if (transport != null) {
+                return Fedora36.await(transport.objectExists(fedoraPid));
+            }
+            GetObjectProfile getObjectProfile = FedoraClient
+                    .getObjectProfile(fedoraPid);
+            FedoraResponse response = Fedora36.execute(getObjectProfile);
+            // We don't want the body, just free the connection
+            response.close();
+            return response.getStatus() == 200;
+        } catch (FedoraClientException ex) {
+            if (ex.getStatus() == 404) {
+                return false;
             }
-            // Instantiate and return
-            return new Fedora36DigitalObject(oid, fedoraPid);
-        } catch (Exception ex) {
             throw new StorageException("Error accessing Fedora", ex);
-        } finally {
-        	Fedora36.releaseNCClient();
         }
     }
 
@@ -368,12 +882,34 @@ public class Fedora36Storage implements Storage {
      * @throws StorageException if any errors occur
      */
     @Override
-    public synchronized void removeObject(String oid) throws StorageException {
+    public void removeObject(String oid) throws StorageException {
         if (oid == null) {
             throw new StorageException("Error; Null OID recieved");
         }
         String fedoraPid = safeFedoraPid(oid);
-        removeFedoraObject(fedoraPid);
+        Lock lock = lockObject(fedoraPid);
+        try {
+            removeFedoraObject(fedoraPid);
+            indexRemove(oid);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Lock an object against being created or removed by another thread.
+     * Locks are striped by PID, so unrelated objects rarely share one; the
+     * wait for each is recorded in the request statistics.
+     *
+     * @param fedoraPid the Fedora PID to lock
+     * @return Lock The lock now held, which the caller must unlock
+     */
+    private Lock lockObject(String fedoraPid) {
+        Lock lock = OBJECT_LOCKS.get(fedoraPid);
+        long start = System.nanoTime();
+        lock.lock();
+        Fedora36.getRequestStats().recordLockWait(System.nanoTime() - start);
+        return lock;
     }
 
     /**
@@ -384,13 +920,17 @@ public class Fedora36Storage implements Storage {
      */
     private void removeFedoraObject(String fedoraPid) throws StorageException {
         try {
-            FedoraClient fedoraClient = Fedora36.getNCClient();
-            PurgeObject purgeObject = FedoraClient.purgeObject(fedoraPid).logMessage(DELETE_LOG_MESSAGE);
-            executeFedoraRequest(fedoraClient, purgeObject);
+            Fedora36HttpTransport transport = Fedora36.getHttpTransport();
+            if (transport != null) {
+                Fedora36.await(transport.purgeObject(fedoraPid,
+                        DELETE_LOG_MESSAGE));
+            } else {
+                PurgeObject purgeObject = FedoraClient.purgeObject(fedoraPid).logMessage(DELETE_LOG_MESSAGE);
+                Fedora36.execute(purgeObject);
+            }
+            Fedora36.invalidateManifest(fedoraPid);
         } catch (Exception ex) {
             throw new StorageException("Error during Fedora search", ex);
-        } finally {
-            Fedora36.releaseNCClient();
         }
     }
 
@@ -402,36 +942,217 @@ public class Fedora36Storage implements Storage {
     @Override
     public Set<String> getObjectIdList() {
         log.info("Complete storage OID list requested...");
-        Set<String> objectList = new HashSet<String>();
         try {
-            FedoraClient fedoraClient = Fedora36.getNCClient();
-            FindObjects findObjects = FedoraClient.findObjects()
-                    .terms(Fedora36.namespace() + ":*")
-                    .maxResults(SEARCH_ROW_LIMIT_PER_PAGE);
-            FindObjectsResponse response = (FindObjectsResponse)executeFedoraRequest(fedoraClient, findObjects);
-
-            if (response.getStatus() == 200) {
-                while (true) {
-                    for (String pid : response.getPids()) {
-                        objectList.add(response.getObjectField(pid, "label")
-                                .get(0));
+            // Answer locally if we can
+            if (objectIndex != null) {
+                if (!objectIndex.isBuilt()) {
+                    Lock rebuildLock = objectIndex.getRebuildLock();
+                    rebuildLock.lock();
+                    try {
+                        // Another caller may have just built it
+                        if (!objectIndex.isBuilt()) {
+                            rebuildIndex();
+                        }
+                    } finally {
+                        rebuildLock.unlock();
                     }
-                    if (!response.hasNext()) {
-                        break;
-                    }
-                    findObjects = FedoraClient.findObjects().sessionToken(response.getToken());
-                    response = (FindObjectsResponse)executeFedoraRequest(fedoraClient, findObjects);
                 }
+                return objectIndex.getAll();
             }
+            return listFedora();
         } catch (Exception e) {
             log.error("Error during Fedora search: ", e);
             return null;
+        }
+    }
+
+    /**
+     * List every OID in Fedora.
+     *
+     * @return Set<String> A Set containing all the OIDs in storage
+     * @throws StorageException if the listing fails partway through
+     */
+    private Set<String> listFedora() throws StorageException {
+        Set<String> objectList = new HashSet<String>();
+        Fedora36ObjectIdIterator oids = getObjectIdIterator();
+        try {
+            while (oids.hasNext()) {
+                objectList.add(oids.next());
+            }
+        } catch (RuntimeException ex) {
+            throw new StorageException("Error during Fedora search", ex);
         } finally {
-        	Fedora36.releaseNCClient();
+            oids.close();
         }
         return objectList;
     }
 
+    /**
+     * Not part of the API. Check whether an object exists, from the local
+     * OID index if there is one.
+     *
+     * @param oid the Object ID to look for
+     * @return boolean True if the object exists, False if not
+     * @throws StorageException if Fedora could not answer
+     */
+    public boolean hasObject(String oid) throws StorageException {
+        if (oid == null) {
+            throw new StorageException("Error; Null OID recieved");
+        }
+        if (objectIndex != null && objectIndex.isBuilt()) {
+            return objectIndex.contains(oid);
+        }
+        return objectExists(safeFedoraPid(oid));
+    }
+
+    /**
+     * Not part of the API. Rebuild the local OID index from a full listing
+     * of Fedora. Objects created or removed while the listing runs are
+     * still accounted for.
+     *
+     * @throws StorageException if there is no index, or it could not be
+     *             rebuilt
+     */
+    public void rebuildObjectIndex() throws StorageException {
+        if (objectIndex == null) {
+            throw new StorageException("Error; no 'objectIndex' configured");
+        }
+        Lock rebuildLock = objectIndex.getRebuildLock();
+        rebuildLock.lock();
+        try {
+            rebuildIndex();
+        } finally {
+            rebuildLock.unlock();
+        }
+    }
+
+    /**
+     * Rebuild the local OID index, while holding the rebuild lock. If the
+     * listing fails the rebuild is abandoned, so the index does not keep
+     * collecting changes for a rebuild that will never finish.
+     *
+     * @throws StorageException if it could not be rebuilt
+     */
+    private void rebuildIndex() throws StorageException {
+        log.info("Rebuilding the local OID index...");
+        objectIndex.beginRebuild();
+        boolean finished = false;
+        try {
+            Set<String> oids = listFedora();
+            objectIndex.finishRebuild(oids);
+            finished = true;
+            log.info("Local OID index rebuilt: {} objects", oids.size());
+        } catch (IOException ex) {
+            objectIndex.invalidate();
+            throw new StorageException("Error writing the OID index", ex);
+        } finally {
+            if (!finished) {
+                objectIndex.abortRebuild();
+            }
+        }
+    }
+
+    /**
+     * Record a new object in the local OID index, if there is one. An index
+     * that can't be written is dropped, to be rebuilt when next needed.
+     *
+     * @param oid the Object ID
+     */
+    private void indexAdd(String oid) {
+        if (objectIndex != null) {
+            try {
+                objectIndex.add(oid);
+            } catch (IOException ex) {
+                log.error("Error writing the OID index, it will be rebuilt: ",
+                        ex);
+                objectIndex.invalidate();
+            }
+        }
+    }
+
+    /**
+     * Record a removed object in the local OID index, if there is one.
+     *
+     * @param oid the Object ID
+     */
+    private void indexRemove(String oid) {
+        if (objectIndex != null) {
+            try {
+                objectIndex.remove(oid);
+            } catch (IOException ex) {
+                log.error("Error writing the OID index, it will be rebuilt: ",
+                        ex);
+                objectIndex.invalidate();
+            }
+        }
+    }
+
+    /**
+     * Not part of the API. Walk the Object IDs currently in storage without
+     * holding them all in memory; pages are only fetched from Fedora as the
+     * iterator reaches them, or up to 'listReadAhead' pages before. Close it
+     * if you stop early.
+     *
+     * With 'listPartitioned', PIDs being hashed means the search splits
+     * evenly by the first hex digit after the namespace, so sixteen PID
+     * searches are walked side by side and their OIDs arrive in no particular
+     * order.
+     * With 'listBackend' set to 'risearch', a single resource index query is
+     * streamed instead.
+     *
+     * @return Fedora36ObjectIdIterator An iterator over all the OIDs in
+     *         storage
+     */
+    public Fedora36ObjectIdIterator getObjectIdIterator() {
+        if (listRiSearch) {
+            return Fedora36ObjectIdIterator.riSearch(objectQuery(),
+                    SEARCH_ROW_LIMIT_PER_PAGE, listReadAhead);
+        }
+        if (!listPartitioned) {
+            return new Fedora36ObjectIdIterator(Fedora36.namespace() + ":",
+                    SEARCH_ROW_LIMIT_PER_PAGE, listReadAhead);
+        }
+        List<String> partitions = new ArrayList<String>();
+        for (char digit : HEX_DIGITS.toCharArray()) {
+            partitions.add(Fedora36.namespace() + ":" + digit);
+        }
+        return new Fedora36ObjectIdIterator(partitions,
+                SEARCH_ROW_LIMIT_PER_PAGE, listReadAhead);
+    }
+
+    /**
+     * Not part of the API. Count the objects currently in storage. The
+     * resource index does the counting, so no OIDs are sent back.
+     *
+     * @return long The number of objects in storage
+     * @throws StorageException if Fedora could not answer
+     */
+    public long countObjects() throws StorageException {
+        try {
+            InputStream in = Fedora36.riSearch(objectQuery(), "count");
+            try {
+                return Long.parseLong(IOUtils.toString(in, "UTF-8").trim());
+            } finally {
+                Fedora36.close(in);
+            }
+        } catch (Exception ex) {
+            throw new StorageException("Error counting objects in Fedora",
+                    ex);
+        }
+    }
+
+    /**
+     * A resource index query for the OID (label) of every object in our
+     * namespace.
+     *
+     * @return String The SPARQL query
+     */
+    private String objectQuery() {
+        return "SELECT ?label FROM <#ri> WHERE { ?object <" + LABEL_PREDICATE
+                + "> ?label . FILTER regex(str(?object), \"^info:fedora/"
+                + Fedora36.namespace() + ":\") }";
+    }
+
     /**
      * Translate a Fascinator OID into a hashed Fedora ID with namespace. Should
      * prevent any issues related to special characters being used in IDs
@@ -495,21 +1216,30 @@ public class Fedora36Storage implements Storage {
      * Prepare a FOXML Template for Fedora, including the provided PID.
      *
      * @param pid The desired Fedora PID
+     * @param oid The Object ID, used as the object's label
+     * @param datastreams FOXML datastream elements to add to the object
      * @return byte[] The evaluated template as a byte array to send to Fedora
+     * @throws StorageException if the template has nowhere to put the
+     *             datastreams, or can't be encoded
      */
-    private byte[] prepareTemplate(String pid, String oid) {
+    private byte[] prepareTemplate(String pid, String oid, String datastreams)
+            throws StorageException {
         String output = foxmlTemplate.replace("[[PID]]", pid);
         output = output.replace("[[OID]]", oid);
+        if (datastreams.length() > 0) {
+            int end = output.lastIndexOf(FOXML_END);
+            if (end == -1) {
+                throw new StorageException("Error; The new object template"
+                        + " has no closing '" + FOXML_END + "' element");
+            }
+            output = output.substring(0, end) + datastreams
+                    + output.substring(end);
+        }
         try {
             return output.getBytes("UTF-8");
         } catch (Exception ex) {
-            log.error("Encoding error in template: ", ex);
-            return null;
+            throw new StorageException("Error; Unable to encode the new"
+                    + " object template", ex);
         }
     }
-    
-    private FedoraResponse executeFedoraRequest(FedoraClient fedoraClient,
-			FedoraRequest<?> fedoraRequest) throws FedoraClientException {
-				return fedoraRequest.execute(fedoraClient);
-    }
 }
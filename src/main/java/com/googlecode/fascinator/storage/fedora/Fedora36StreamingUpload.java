@@ -0,0 +1,187 @@
+/*
+ * The Fascinator - Fedora Commons 3.x storage plugin
+ * Copyright (C) 2009-2011 University of Southern Queensland
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.fedora;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+import org.apache.commons.httpclient.methods.RequestEntity;
+import org.apache.commons.io.FilenameUtils;
+
+import com.googlecode.fascinator.common.MimeTypeUtil;
+
+/**
+ * A multipart form for Fedora's upload endpoint, streamed (chunked) straight
+ * from the caller's InputStream. Only a small prefix of the content is held
+ * in memory, which is also all that MIME type detection gets to see.
+ *
+ * The entity can only be written once.
+ *
+ * @author Greg Pendlebury
+ */
+class Fedora36StreamingUpload implements RequestEntity {
+    /** Bytes of content read up front for MIME type detection */
+    static final int SNIFF_SIZE = 64 * 1024;
+
+    /** Copy buffer size */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Line ending for multipart forms */
+    private static final String CRLF = "\r\n";
+
+    /** Multipart boundary */
+    private String boundary = "fascinator-" + UUID.randomUUID();
+
+    /** File name reported to Fedora */
+    private String filename;
+
+    /** The rest of the content, after the prefix */
+    private InputStream in;
+
+    /** The start of the content */
+    private byte[] prefix;
+
+    /** Bytes of content in the prefix */
+    private int prefixLength;
+
+    /** Is the prefix all of the content? */
+    private boolean complete;
+
+    /** MIME type detected from the prefix */
+    private String mimeType;
+
+    /** Bytes of content written so far */
+    private long bytesWritten;
+
+    /**
+     * Constructor. Reads the prefix and detects the MIME type, the rest of
+     * the stream is left until the request is sent.
+     *
+     * @param filename the file name, used for MIME type detection and
+     *            reported to Fedora
+     * @param in the content
+     * @throws IOException if the prefix could not be read
+     */
+    Fedora36StreamingUpload(String filename, InputStream in)
+            throws IOException {
+        this.filename = filename;
+        this.in = in;
+        prefix = new byte[SNIFF_SIZE];
+        while (prefixLength < prefix.length) {
+            int read = in.read(prefix, prefixLength, prefix.length
+                    - prefixLength);
+            if (read < 0) {
+                complete = true;
+                break;
+            }
+            prefixLength += read;
+        }
+        mimeType = sniff(filename, prefix, prefixLength);
+    }
+
+    /**
+     * Detect the MIME type of the start of some content. MimeTypeUtil only
+     * accepts Files, so the sample is written to a short-lived temp file
+     * carrying the payload's extension.
+     *
+     * @param filename the file name, for its extension
+     * @param data the start of the content
+     * @param length the bytes of data to use, at most SNIFF_SIZE are
+     * @return String The MIME type
+     * @throws IOException if the temp file could not be written
+     */
+    static String sniff(String filename, byte[] data, int length)
+            throws IOException {
+        String extension = FilenameUtils.getExtension(filename);
+        String suffix = "".equals(extension) ? null : "." + extension;
+        File sample = File.createTempFile("sniff", suffix);
+        try {
+            OutputStream out = new FileOutputStream(sample);
+            try {
+                out.write(data, 0, Math.min(length, SNIFF_SIZE));
+            } finally {
+                out.close();
+            }
+            return MimeTypeUtil.getMimeType(sample);
+        } finally {
+            sample.delete();
+        }
+    }
+
+    /**
+     * @return String The MIME type detected from the start of the content
+     */
+    String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * @return long The bytes of content sent to Fedora so far
+     */
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return false;
+    }
+
+    @Override
+    public long getContentLength() {
+        // Unknown, the request will be chunked
+        return -1;
+    }
+
+    @Override
+    public String getContentType() {
+        return "multipart/form-data; boundary=" + boundary;
+    }
+
+    @Override
+    public void writeRequest(OutputStream out) throws IOException {
+        try {
+            out.write(("--" + boundary + CRLF
+                    + "Content-Disposition: form-data; name=\"file\";"
+                    + " filename=\"" + filename.replace("\"", "") + "\""
+                    + CRLF + "Content-Type: " + mimeType + CRLF + CRLF)
+                    .getBytes("UTF-8"));
+            out.write(prefix, 0, prefixLength);
+            bytesWritten = prefixLength;
+            if (!complete) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                    bytesWritten += read;
+                }
+            }
+            out.write((CRLF + "--" + boundary + "--" + CRLF)
+                    .getBytes("UTF-8"));
+            out.flush();
+        } finally {
+            Fedora36.close(in);
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * The Fascinator - Plugin - Storage - Fedora 3
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.fedora;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.googlecode.fascinator.api.storage.StorageException;
+import com.yourmediashelf.fedora.client.FedoraClient;
+import com.yourmediashelf.fedora.client.FedoraCredentials;
+
+/**
+ * Unit tests of the client pool. The clients are never used to send
+ * anything, so no server is needed.
+ */
+public class Fedora36ClientPoolTest {
+    /**
+     * Test that a borrower gives up with a StorageException once the
+     * timeout passes, and the pool carries on afterwards
+     *
+     * @throws Exception
+     */
+    @Test
+    public void borrowTimeout() throws Exception {
+        Fedora36ClientPool pool = new Fedora36ClientPool(clients(1), 50);
+        FedoraClient client = pool.borrow();
+
+        long start = System.nanoTime();
+        try {
+            pool.borrow();
+            Assert.fail("Borrowed from an empty pool");
+        } catch (StorageException ex) {
+            // This is what should occur
+        }
+        Assert.assertTrue(System.nanoTime() - start >= 40000000L);
+        Assert.assertEquals(1, pool.getWaitCount());
+        Assert.assertEquals(1, pool.getTimeoutCount());
+        Assert.assertTrue(pool.getMaxWaitMillis() >= 40);
+
+        Assert.assertTrue(pool.release(client));
+        Assert.assertSame(client, pool.borrow());
+        Assert.assertEquals(2, pool.getBorrowCount());
+    }
+
+    /**
+     * Test that a borrower interrupted while waiting gives up with a
+     * StorageException, and stays interrupted
+     *
+     * @throws Exception
+     */
+    @Test
+    public void borrowInterrupted() throws Exception {
+        Fedora36ClientPool pool = new Fedora36ClientPool(clients(1), 10000);
+        pool.borrow();
+
+        Thread.currentThread().interrupt();
+        try {
+            pool.borrow();
+            Assert.fail("Borrowed from an empty pool");
+        } catch (StorageException ex) {
+            Assert.assertTrue(ex.getCause() instanceof InterruptedException);
+        }
+        // Clears the flag too, for the next test
+        Assert.assertTrue(Thread.interrupted());
+        Assert.assertEquals(0, pool.getTimeoutCount());
+    }
+
+    /**
+     * Test that clients the pool did not lend, or has already had back, are
+     * ignored rather than added to it
+     *
+     * @throws Exception
+     */
+    @Test
+    public void strayRelease() throws Exception {
+        Fedora36ClientPool pool = new Fedora36ClientPool(clients(2), 50);
+        FedoraClient stranger = clients(1).get(0);
+
+        Assert.assertFalse(pool.release(null));
+        Assert.assertFalse(pool.release(stranger));
+        Assert.assertEquals(1, pool.getStrayReleaseCount());
+        Assert.assertEquals(2, pool.getIdleCount());
+
+        FedoraClient client = pool.borrow();
+        Assert.assertTrue(pool.release(client));
+        Assert.assertFalse(pool.release(client));
+        Assert.assertEquals(2, pool.getStrayReleaseCount());
+        Assert.assertEquals(2, pool.getIdleCount());
+        Assert.assertEquals(0, pool.getActiveCount());
+
+        // The stranger never gets lent out
+        Assert.assertNotSame(stranger, pool.borrow());
+        Assert.assertNotSame(stranger, pool.borrow());
+    }
+
+    /**
+     * Test many threads sharing a small pool: no client is ever lent to two
+     * of them at once, and the counts add up afterwards
+     *
+     * @throws Exception
+     */
+    @Test
+    public void concurrentBorrowers() throws Exception {
+        final int size = 3;
+        final int threads = 12;
+        final int rounds = 50;
+        final Fedora36ClientPool pool = new Fedora36ClientPool(clients(size),
+                10000);
+        final Set<FedoraClient> onLoan = Collections
+                .newSetFromMap(new ConcurrentHashMap<FedoraClient, Boolean>());
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger maxActive = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch go = new CountDownLatch(1);
+
+        List<Thread> borrowers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        go.await();
+                        for (int j = 0; j < rounds; j++) {
+                            FedoraClient client = pool.borrow();
+                            try {
+                                if (!onLoan.add(client)) {
+                                    throw new IllegalStateException(
+                                            "Client lent twice");
+                                }
+                                int now = active.incrementAndGet();
+                                int max = maxActive.get();
+                                while (now > max
+                                        && !maxActive.compareAndSet(max, now)) {
+                                    max = maxActive.get();
+                                }
+                                Thread.yield();
+                                active.decrementAndGet();
+                                onLoan.remove(client);
+                            } finally {
+                                pool.release(client);
+                            }
+                        }
+                    } catch (Throwable ex) {
+                        failure.compareAndSet(null, ex);
+                    }
+                }
+            });
+            borrowers.add(thread);
+            thread.start();
+        }
+        go.countDown();
+        for (Thread thread : borrowers) {
+            thread.join();
+        }
+
+        Assert.assertNull(failure.get());
+        Assert.assertTrue(maxActive.get() <= size);
+        Assert.assertTrue(pool.getPeakActiveCount() >= 1);
+        Assert.assertTrue(pool.getPeakActiveCount() <= size);
+        Assert.assertEquals(threads * rounds, pool.getBorrowCount());
+        Assert.assertEquals(0, pool.getTimeoutCount());
+        Assert.assertEquals(0, pool.getStrayReleaseCount());
+        Assert.assertEquals(0, pool.getActiveCount());
+        Assert.assertEquals(size, pool.getIdleCount());
+    }
+
+    /**
+     * Test that a client kept longer than the timeout is reported, once, the
+     * next time a borrower has to wait
+     *
+     * @throws Exception
+     */
+    @Test
+    public void overdueLoan() throws Exception {
+        Fedora36ClientPool pool = new Fedora36ClientPool(clients(2), 50);
+        FedoraClient kept = pool.borrow();
+        Thread.sleep(60);
+
+        // Nobody waits, so nobody looks
+        FedoraClient client = pool.borrow();
+        Assert.assertEquals(0, pool.getOverdueCount());
+        Thread.sleep(60);
+
+        try {
+            pool.borrow();
+            Assert.fail("Borrowed from an empty pool");
+        } catch (StorageException ex) {
+            // This is what should occur
+        }
+        // Both, but each only once
+        Assert.assertEquals(2, pool.getOverdueCount());
+        try {
+            pool.borrow();
+            Assert.fail("Borrowed from an empty pool");
+        } catch (StorageException ex) {
+            // This is what should occur
+        }
+        Assert.assertEquals(2, pool.getOverdueCount());
+
+        // Returned late, but returned
+        Assert.assertTrue(pool.release(client));
+        Assert.assertTrue(pool.release(kept));
+        Assert.assertEquals(2, pool.getIdleCount());
+    }
+
+    /**
+     * Test that a pool needs at least one client
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyPool() throws Exception {
+        new Fedora36ClientPool(clients(0), 50);
+    }
+
+    /**
+     * Some clients that are never connected.
+     *
+     * @param count how many
+     * @return List<FedoraClient> The clients
+     */
+    private List<FedoraClient> clients(int count) throws Exception {
+        List<FedoraClient> clients = new ArrayList<FedoraClient>();
+        for (int i = 0; i < count; i++) {
+            clients.add(new FedoraClient(new FedoraCredentials(
+                    "http://localhost:8080/fedora", "fedoraAdmin",
+                    "fedoraAdmin")));
+        }
+        return clients;
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * The Fascinator - Plugin - Storage - Fedora 3
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.fedora;
+
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+import com.yourmediashelf.fedora.client.FedoraClientException;
+
+/**
+ * Unit tests of the adaptive (AIMD) rate limit policy. No requests are sent;
+ * latencies and failures are fed in directly, on a clock the tests move.
+ */
+public class Fedora36RateLimiterTest {
+    /** A fast response, well within the target */
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /** A slow response, over the target */
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(2000);
+
+    /**
+     * A clock that only moves when told to.
+     */
+    private static class ManualTicker extends Ticker {
+        private long now;
+
+        @Override
+        public long read() {
+            return now;
+        }
+
+        void advance(long millis) {
+            now += TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+    }
+
+    private ManualTicker ticker;
+
+    /** Starts at 10/s, between 1/s and 20/s, +2/s or x0.5, 1s target */
+    private Fedora36RateLimiter limiter;
+
+    @Before
+    public void init() {
+        ticker = new ManualTicker();
+        limiter = newLimiter(10, 10);
+    }
+
+    /**
+     * Test that each window within the target raises the rate by one step,
+     * up to the maximum
+     */
+    @Test
+    public void additiveIncrease() {
+        // Nothing changes until the window fills
+        record(limiter, FAST, 9);
+        Assert.assertEquals(10.0, limiter.getRate(), 0.001);
+        Assert.assertEquals(-1, limiter.getLastP95());
+
+        record(limiter, FAST, 1);
+        Assert.assertEquals(12.0, limiter.getRate(), 0.001);
+        Assert.assertEquals(100, limiter.getLastP95());
+        Assert.assertEquals(1, limiter.getIncreaseCount());
+
+        record(limiter, FAST, 10);
+        Assert.assertEquals(14.0, limiter.getRate(), 0.001);
+
+        // Capped at the maximum
+        record(limiter, FAST, 100);
+        Assert.assertEquals(20.0, limiter.getRate(), 0.001);
+        Assert.assertEquals(5, limiter.getIncreaseCount());
+        Assert.assertEquals(0, limiter.getDecreaseCount());
+    }
+
+    /**
+     * Test that the decision follows the 95th percentile of each window, not
+     * its mean or worst case
+     */
+    @Test
+    public void percentileWindow() {
+        Fedora36RateLimiter twenty = newLimiter(10, 20);
+
+        // 1 slow in 20 is the top 5%, so the p95 is still fast
+        record(twenty, FAST, 19);
+        record(twenty, SLOW, 1);
+        Assert.assertEquals(100, twenty.getLastP95());
+        Assert.assertEquals(12.0, twenty.getRate(), 0.001);
+
+        // 2 slow in 20 puts the p95 over the target
+        record(twenty, SLOW, 2);
+        record(twenty, FAST, 18);
+        Assert.assertEquals(2000, twenty.getLastP95());
+        Assert.assertEquals(6.0, twenty.getRate(), 0.001);
+        Assert.assertEquals(1, twenty.getDecreaseCount());
+    }
+
+    /**
+     * Test that server errors and timeouts cut the rate straight away, and
+     * other failures count as ordinary responses
+     */
+    @Test
+    public void multiplicativeDecrease() {
+        limiter.recordResponse(FAST, 503);
+        Assert.assertEquals(5.0, limiter.getRate(), 0.001);
+
+        ticker.advance(1001);
+        limiter.recordFailure(SLOW, new SocketTimeoutException());
+        Assert.assertEquals(2.5, limiter.getRate(), 0.001);
+
+        ticker.advance(1001);
+        limiter.recordFailure(SLOW, new RuntimeException(
+                new TimeoutException()));
+        Assert.assertEquals(1.25, limiter.getRate(), 0.001);
+
+        // Never below the minimum
+        ticker.advance(1001);
+        limiter.recordFailure(FAST, new FedoraClientException(500, "HTTP 500"));
+        Assert.assertEquals(1.0, limiter.getRate(), 0.001);
+        Assert.assertEquals(4, limiter.getDecreaseCount());
+
+        // Not Fedora's fault
+        ticker.advance(1001);
+        Fedora36RateLimiter other = newLimiter(10, 10);
+        other.recordFailure(FAST, new FedoraClientException(404, "HTTP 404"));
+        other.recordFailure(FAST, new FedoraClientException(500,
+                "ObjectExistsException: The PID is in use"));
+        other.recordResponse(FAST, 404);
+        Assert.assertEquals(10.0, other.getRate(), 0.001);
+        Assert.assertEquals(0, other.getDecreaseCount());
+    }
+
+    /**
+     * Test that failures within a second of a cut don't cut the rate again,
+     * since they were most likely already in flight
+     */
+    @Test
+    public void decreaseCooldown() {
+        limiter.recordResponse(FAST, 503);
+        Assert.assertEquals(5.0, limiter.getRate(), 0.001);
+
+        ticker.advance(999);
+        limiter.recordResponse(FAST, 503);
+        limiter.recordFailure(SLOW, new SocketTimeoutException());
+        Assert.assertEquals(5.0, limiter.getRate(), 0.001);
+        Assert.assertEquals(1, limiter.getDecreaseCount());
+
+        ticker.advance(1);
+        limiter.recordResponse(FAST, 503);
+        Assert.assertEquals(2.5, limiter.getRate(), 0.001);
+        Assert.assertEquals(2, limiter.getDecreaseCount());
+    }
+
+    /**
+     * Test that an overload empties the current window, so latencies from
+     * before the cut are not judged against the new rate
+     */
+    @Test
+    public void overloadResetsWindow() {
+        record(limiter, SLOW, 9);
+        limiter.recordResponse(FAST, 503);
+        Assert.assertEquals(5.0, limiter.getRate(), 0.001);
+
+        record(limiter, FAST, 9);
+        Assert.assertEquals(-1, limiter.getLastP95());
+        record(limiter, FAST, 1);
+        Assert.assertEquals(100, limiter.getLastP95());
+        Assert.assertEquals(7.0, limiter.getRate(), 0.001);
+    }
+
+    /**
+     * Test that a fixed limiter ignores everything it is told
+     */
+    @Test
+    public void fixedRate() {
+        Fedora36RateLimiter fixed = new Fedora36RateLimiter(10);
+        record(fixed, SLOW, 100);
+        fixed.recordResponse(FAST, 503);
+        fixed.recordFailure(SLOW, new SocketTimeoutException());
+        Assert.assertFalse(fixed.isAdaptive());
+        Assert.assertEquals(10.0, fixed.getRate(), 0.001);
+        Assert.assertEquals(0, fixed.getDecreaseCount());
+        Assert.assertEquals(0, fixed.getIncreaseCount());
+    }
+
+    /**
+     * Test that limiters are matched on their settings, whatever rate they
+     * have reached since
+     */
+    @Test
+    public void sameSettings() {
+        Fedora36RateLimiter other = newLimiter(10, 10);
+        record(limiter, FAST, 10);
+        Assert.assertEquals(12.0, limiter.getRate(), 0.001);
+        Assert.assertTrue(other.hasSettingsOf(limiter));
+        Assert.assertTrue(limiter.hasSettingsOf(other));
+
+        Assert.assertFalse(other.hasSettingsOf(null));
+        Assert.assertFalse(other.hasSettingsOf(newLimiter(10, 20)));
+        Assert.assertFalse(other.hasSettingsOf(newLimiter(12, 10)));
+        Assert.assertFalse(other.hasSettingsOf(new Fedora36RateLimiter(10)));
+    }
+
+    /**
+     * An adaptive limiter on the test clock.
+     *
+     * @param rate the starting rate
+     * @param windowSize requests per latency window
+     */
+    private Fedora36RateLimiter newLimiter(double rate, int windowSize) {
+        Fedora36RateLimiter adaptive = new Fedora36RateLimiter(rate, true, 1,
+                20, 2, 0.5, 1000, windowSize);
+        adaptive.setTicker(ticker);
+        return adaptive;
+    }
+
+    /**
+     * Record a number of successful responses of the same latency.
+     */
+    private void record(Fedora36RateLimiter target, long latency, int count) {
+        for (int i = 0; i < count; i++) {
+            target.recordResponse(latency, 200);
+        }
+    }
+}
@@ -18,33 +18,63 @@
  */
 package com.googlecode.fascinator.storage.fedora;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 import junit.framework.Assert;
 
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
 import org.junit.After;
 import org.junit.Before;
-import org.junit.Ignore;
+import org.junit.BeforeClass;
 import org.junit.Test;
 
 import com.googlecode.fascinator.api.storage.DigitalObject;
 import com.googlecode.fascinator.api.storage.Payload;
 import com.googlecode.fascinator.api.storage.PayloadType;
 import com.googlecode.fascinator.api.storage.StorageException;
+import com.yourmediashelf.fedora.client.FedoraClientException;
 
+/**
+ * Runs against an embedded {@link FedoraStandIn} by default. Set the system
+ * property 'fedora3.live' to run against the server configured in
+ * 'fedora3-config.json' instead.
+ */
 @SuppressWarnings("unused")
-@Ignore
 public class Fedora3StorageTest {
+    private static FedoraStandIn standIn;
     private Fedora36Storage storage;
     private String fedoraVersion;
 
+    @BeforeClass
+    public static void startStandIn() throws Exception {
+        if (System.getProperty("fedora3.live") == null) {
+            standIn = FedoraStandIn.shared();
+        }
+    }
+
     @Before
     public void init() throws Exception {
-        storage = new Fedora36Storage();
-        storage.init(new File(getClass().getResource("/fedora3-config.json")
-                .toURI()));
+        storage = newStorage();
         fedoraVersion = storage.fedoraVersion();
         // Make sure it always starts empty
         sizeTest(0);
@@ -482,6 +512,49 @@ public class Fedora3StorageTest {
         sizeTest(0);
     }
 
+    /**
+     * Test that an open payload stream keeps its pooled client until it is
+     * closed or read to the end
+     *
+     * @throws Exception
+     */
+    @Test
+    public void payloadStreamClient() throws Exception {
+        System.out.println("\n==========\n TEST => payloadStreamClient()\n");
+        DigitalObject object = storage.createObject("testObject1");
+        object.createStoredPayload("file1.txt", in("testPayload1.txt"));
+        Payload payload = storage.getObject("testObject1").getPayload(
+                "file1.txt");
+        Fedora36ClientPool pool = Fedora36.getClientPool();
+        long strays = pool.getStrayReleaseCount();
+        Assert.assertEquals(0, pool.getActiveCount());
+
+        InputStream in = payload.open();
+        try {
+            Assert.assertEquals(1, pool.getActiveCount());
+            Assert.assertEquals(84, in.read()); // 'T'
+        } finally {
+            // Closed early, before the rest is read
+            in.close();
+            payload.close();
+        }
+        Assert.assertEquals(0, pool.getActiveCount());
+        Assert.assertEquals(strays, pool.getStrayReleaseCount());
+
+        // Read to the end, but never closed
+        in = payload.open();
+        Assert.assertEquals(1, pool.getActiveCount());
+        Assert.assertTrue(Arrays.equals(
+                IOUtils.toByteArray(in("testPayload1.txt")),
+                IOUtils.toByteArray(in)));
+        Assert.assertEquals(0, pool.getActiveCount());
+        Assert.assertEquals(strays, pool.getStrayReleaseCount());
+        payload.close();
+
+        // Cleanup
+        storage.removeObject("testObject1");
+    }
+
     /**
      * Test all Payload methods
      * 
@@ -669,9 +742,7 @@ public class Fedora3StorageTest {
         // Reset our storage object for genuine persistence testing
         storage.shutdown();
         storage = null;
-        storage = new Fedora36Storage();
-        storage.init(new File(getClass().getResource("/fedora3-config.json")
-                .toURI()));
+        storage = newStorage();
 
         // Testing
         for (int i = 0; i < objectLimit; i++) {
@@ -727,6 +798,1085 @@ public class Fedora3StorageTest {
         }
     }
 
+    /**
+     * Test that the manifest is only read from Fedora when it is needed
+     *
+     * @throws Exception
+     */
+    @Test
+    public void lazyManifest() throws Exception {
+        System.out.println("\n==========\n TEST => lazyManifest()\n");
+        if (standIn == null) {
+            return;
+        }
+        DigitalObject object = storage.createObject("testObject1");
+        object.createStoredPayload("file1.txt", in("testPayload1.txt"));
+        object.createStoredPayload("file2.txt", in("testPayload2.xml"));
+
+        // A known payload needs no listing
+        standIn.resetRequestCounts();
+        object = storage.getObject("testObject1");
+        Assert.assertEquals("testObject1", object.getId());
+        Payload payload = object.getPayload("file2.txt");
+        Assert.assertEquals("file2.txt", payload.getId());
+        Assert.assertEquals(0, standIn.getRequestCount("getDatastreams"));
+        Assert.assertEquals(0, standIn.getRequestCount("getObjectXML"));
+        try {
+            object.getPayload("file3.txt");
+            Assert.fail();
+        } catch (StorageException ex) {
+            // This is what should occur
+        }
+
+        // The listing happens once, on first use
+        Assert.assertEquals("file1.txt", object.getSourceId());
+        Assert.assertEquals(2, object.getPayloadIdList().size());
+        Assert.assertEquals(1, standIn.getRequestCount("getDatastreams"));
+
+        // Cleanup
+        storage.removeObject("testObject1");
+    }
+
+    /**
+     * Test the manifest cache, and that changes made through the plugin
+     * invalidate it. Fedora36's shared settings follow the latest instance,
+     * so 'storage' caches too until init() restores the defaults.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void manifestCache() throws Exception {
+        System.out.println("\n==========\n TEST => manifestCache()\n");
+        if (standIn == null) {
+            return;
+        }
+        Fedora36Storage cached = newStorage(", \"manifestCacheSize\": 100");
+        try {
+            DigitalObject object = cached.createObject("testObject1");
+            object.createStoredPayload("file1.txt", in("testPayload1.txt"));
+
+            // Listed once, then answered from the cache
+            standIn.resetRequestCounts();
+            long hits = Fedora36.getManifestCacheStats().hitCount();
+            Assert.assertEquals(1, cached.getObject("testObject1")
+                    .getPayloadIdList().size());
+            Assert.assertEquals(1, cached.getObject("testObject1")
+                    .getPayloadIdList().size());
+            Assert.assertEquals(1, standIn.getRequestCount("getDatastreams"));
+            Assert.assertEquals(hits + 1, Fedora36.getManifestCacheStats()
+                    .hitCount());
+
+            // Adding a payload forgets the old listing
+            cached.getObject("testObject1").createStoredPayload("file2.txt",
+                    in("testPayload2.xml"));
+            standIn.resetRequestCounts();
+            Set<String> pids = cached.getObject("testObject1")
+                    .getPayloadIdList();
+            Assert.assertTrue(pids.contains("file2.txt"));
+            Assert.assertEquals(1, standIn.getRequestCount("getDatastreams"));
+
+            // As does removing the object, so a new one starts empty
+            cached.removeObject("testObject1");
+            cached.createObject("testObject1");
+            standIn.resetRequestCounts();
+            pids = cached.getObject("testObject1").getPayloadIdList();
+            Assert.assertFalse(pids.contains("file1.txt"));
+            Assert.assertFalse(pids.contains("file2.txt"));
+            Assert.assertEquals(1, standIn.getRequestCount("getDatastreams"));
+        } finally {
+            cached.shutdown();
+        }
+
+        // Cleanup
+        storage.removeObject("testObject1");
+    }
+
+    /**
+     * Test that another instance configured alike keeps the shared rate
+     * limiter and cached manifests, and that only a changed setting
+     * replaces them
+     *
+     * @throws Exception
+     */
+    @Test
+    public void sharedSettings() throws Exception {
+        System.out.println("\n==========\n TEST => sharedSettings()\n");
+        if (standIn == null) {
+            return;
+        }
+        String extra = ", \"manifestCacheSize\": 100";
+        Fedora36Storage first = newStorage(extra);
+        Fedora36Storage second = null;
+        try {
+            Fedora36RateLimiter limiter = Fedora36.getRateLimiter();
+            Fedora36HttpTransport transport = Fedora36.getHttpTransport();
+            first.createObject("testObject1");
+            first.getObject("testObject1").getPayloadIdList();
+            String fedoraPid = Fedora36.namespace() + ":"
+                    + DigestUtils.md5Hex("testObject1");
+            Assert.assertNotNull(Fedora36.getCachedManifest(fedoraPid));
+
+            second = newStorage(extra);
+            Assert.assertSame(limiter, Fedora36.getRateLimiter());
+            Assert.assertSame(transport, Fedora36.getHttpTransport());
+            Assert.assertNotNull(Fedora36.getCachedManifest(fedoraPid));
+
+            // A new rate limit replaces the limiter, but not the cache
+            second.shutdown();
+            second = newStorage(extra + ", \"rateLimit\": 20");
+            Assert.assertNotSame(limiter, Fedora36.getRateLimiter());
+            Assert.assertEquals(20.0, Fedora36.getRateLimiter().getRate(),
+                    0.001);
+            Assert.assertNotNull(Fedora36.getCachedManifest(fedoraPid));
+        } finally {
+            first.shutdown();
+            if (second != null) {
+                second.shutdown();
+            }
+        }
+
+        // Back to the defaults, without a cache
+        Fedora36Storage plain = newStorage();
+        try {
+            Assert.assertNull(Fedora36.getManifestCacheStats());
+        } finally {
+            plain.shutdown();
+        }
+
+        // Cleanup
+        storage.removeObject("testObject1");
+    }
+
+    /**
+     * Test that payload size and date come from the datastream profile
+     *
+     * @throws Exception
+     */
+    @Test
+    public void payloadProfile() throws Exception {
+        System.out.println("\n==========\n TEST => payloadProfile()\n");
+        DigitalObject object = storage.createObject("testObject1");
+        object.createStoredPayload("testPayload1", in("testPayload1.txt"));
+        object.createStoredPayload("testPayload2", in("testPayload2.xml"));
+        long expected = new File(path("testPayload1.txt")).length();
+
+        object = storage.getObject("testObject1");
+        Payload payload = object.getPayload("testPayload1");
+        if (standIn != null) {
+            standIn.resetRequestCounts();
+        }
+        for (Payload listed : object.getManifest().values()) {
+            Assert.assertNotNull(listed.size());
+            Assert.assertNotNull(listed.lastModified());
+        }
+        Assert.assertEquals(expected, payload.size().longValue());
+        if (standIn != null) {
+            Assert.assertEquals(0, standIn.getRequestCount("getDatastream"));
+            Assert.assertEquals(0,
+                    standIn.getRequestCount("getDatastreamHistory"));
+        }
+
+        // Refresh picks up changes made through another instance
+        Long modified = payload.lastModified();
+        storage.getObject("testObject1").updatePayload("testPayload1",
+                in("testPayload2.xml"));
+        Assert.assertEquals(expected, payload.size().longValue());
+        ((Fedora36Payload) payload).refresh();
+        Assert.assertEquals(new File(path("testPayload2.xml")).length(),
+                payload.size().longValue());
+        Assert.assertTrue(payload.lastModified() > modified);
+
+        // Cleanup
+        storage.removeObject("testObject1");
+    }
+
+    /**
+     * Test that writes build their payload from Fedora's response
+     *
+     * @throws Exception
+     */
+    @Test
+    public void payloadWriteResponse() throws Exception {
+        System.out.println("\n==========\n TEST => payloadWriteResponse()\n");
+        DigitalObject object = storage.createObject("testObject1");
+        if (standIn != null) {
+            standIn.resetRequestCounts();
+        }
+        Payload created = object.createStoredPayload("testPayload1",
+                in("testPayload1.txt"));
+        Assert.assertEquals(PayloadType.Source, created.getType());
+        Assert.assertEquals(new File(path("testPayload1.txt")).length(),
+                created.size().longValue());
+        Payload updated = object.updatePayload("testPayload1",
+                in("testPayload2.xml"));
+        Assert.assertEquals(PayloadType.Source, updated.getType());
+        Assert.assertEquals(new File(path("testPayload2.xml")).length(),
+                updated.size().longValue());
+        Assert.assertSame(updated, object.getManifest().get("testPayload1"));
+        if (standIn != null) {
+            Assert.assertEquals(0, standIn.getRequestCount("getDatastream"));
+        }
+
+        // Cleanup
+        storage.removeObject("testObject1");
+    }
+
+    /**
+     * Test that requests are recorded in the statistics by operation
+     *
+     * @throws Exception
+     */
+    @Test
+    public void requestStatistics() throws Exception {
+        System.out.println("\n==========\n TEST => requestStatistics()\n");
+        Fedora36RequestStats stats = storage.getRequestStats();
+        long ingests = calls(stats, "Ingest");
+        long uploads = calls(stats, "Upload");
+        long poolWaits = stats.getPoolWait().getCount();
+        long lockWaits = stats.getLockWait().getCount();
+
+        DigitalObject object = storage.createObject("testObject1");
+        object.createStoredPayload("file1.txt", in("testPayload1.txt"));
+
+        Assert.assertEquals(ingests + 1, calls(stats, "Ingest"));
+        Assert.assertEquals(uploads + 1, calls(stats, "Upload"));
+        Assert.assertTrue(stats.getOperation("Upload").getBytesSent() > 0);
+        Assert.assertTrue(stats.getPoolWait().getCount() > poolWaits + 1);
+
+        // A missing object is recorded as an error
+        long errors = stats.getOperation("GetObjectProfile").getErrors();
+        try {
+            storage.getObject("testObject2");
+            Assert.fail();
+        } catch (StorageException ex) {
+            // This is what should occur
+        }
+        Assert.assertEquals(errors + 1, stats.getOperation("GetObjectProfile")
+                .getErrors());
+        Fedora36LatencyHistogram latency = stats.getOperation("GetObjectProfile")
+                .getLatency();
+        Assert.assertTrue(latency.getPercentile(50) <= latency.getMax());
+
+        // Cleanup
+        storage.removeObject("testObject1");
+        Assert.assertTrue(stats.getLockWait().getCount() > lockWaits);
+    }
+
+    private long calls(Fedora36RequestStats stats, String operation) {
+        Fedora36RequestStats.Operation stat = stats.getOperation(operation);
+        return stat == null ? 0 : stat.getCalls();
+    }
+
+    /**
+     * Test creating an object and its first payloads in a single ingest
+     *
+     * @throws Exception
+     */
+    @Test
+    public void initialPayloads() throws Exception {
+        System.out.println("\n==========\n TEST => initialPayloads()\n");
+        Map<String, InputStream> payloads = new LinkedHashMap<String, InputStream>();
+        payloads.put("TF-OBJ-META", in("testPayload2.xml"));
+        payloads.put("file 1.txt", in("testPayload1.txt"));
+        if (standIn != null) {
+            standIn.resetRequestCounts();
+        }
+        DigitalObject object = storage.createObject("testObject1", payloads);
+        if (standIn != null) {
+            Assert.assertEquals(1, standIn.getRequestCount("ingest"));
+            Assert.assertEquals(0, standIn.getRequestCount("addDatastream"));
+        }
+
+        object = storage.getObject("testObject1");
+        Assert.assertEquals("file_1.txt", object.getSourceId());
+        Assert.assertEquals(2, object.getPayloadIdList().size());
+        Payload payload = object.getPayload("file_1.txt");
+        Assert.assertEquals(PayloadType.Source, payload.getType());
+        Assert.assertEquals(new File(path("testPayload1.txt")).length(),
+                payload.size().longValue());
+        payload = object.getPayload("TF-OBJ-META");
+        Assert.assertEquals(PayloadType.Enrichment, payload.getType());
+
+        // Existing objects are still refused
+        try {
+            storage.createObject("testObject1", payloads);
+            Assert.fail();
+        } catch (StorageException ex) {
+            // This is what should occur
+        }
+
+        // Cleanup
+        storage.removeObject("testObject1");
+    }
+
+    /**
+     * Test that a template with nowhere to put initial datastreams is
+     * refused by init(), before any object is created with it
+     *
+     * @throws Exception
+     */
+    @Test
+    public void unclosedTemplate() throws Exception {
+        System.out.println("\n==========\n TEST => unclosedTemplate()\n");
+        if (standIn == null) {
+            return;
+        }
+        String template = path("testTemplateUnclosed.xml").replace("\\",
+                "/");
+        try {
+            newStorage(", \"foxmlTemplate\": \"" + template + "\"");
+            Assert.fail("Template without a closing element was accepted");
+        } catch (StorageException ex) {
+            Assert.assertTrue(ex.getMessage().contains(
+                    "</foxml:digitalObject>"));
+        }
+    }
+
+    /**
+     * Test that content under 'inlineThreshold' is sent with the request
+     * that stores it, and anything larger is uploaded first
+     *
+     * @throws Exception
+     */
+    @Test
+    public void inlineContent() throws Exception {
+        System.out.println("\n==========\n TEST => inlineContent()\n");
+        if (standIn == null) {
+            return;
+        }
+        byte[] small = IOUtils.toByteArray(in("testPayload1.txt"));
+        byte[] large = IOUtils.toByteArray(in("testPayload4.png"));
+        Fedora36Storage inline = newStorage(", \"inlineThreshold\": 1024");
+        try {
+            DigitalObject object = inline.createObject("testObject1");
+            standIn.resetRequestCounts();
+            object.createStoredPayload("file1.txt", new ByteArrayInputStream(
+                    small));
+            Assert.assertEquals(0, standIn.getRequestCount("upload"));
+            object.createStoredPayload("file4.png", new ByteArrayInputStream(
+                    large));
+            Assert.assertEquals(1, standIn.getRequestCount("upload"));
+
+            // Embedded in the FOXML of a single ingest
+            Map<String, InputStream> payloads = new LinkedHashMap<String, InputStream>();
+            payloads.put("file1.txt", new ByteArrayInputStream(small));
+            standIn.resetRequestCounts();
+            inline.createObject("testObject2", payloads);
+            Assert.assertEquals(0, standIn.getRequestCount("upload"));
+            Assert.assertEquals(1, standIn.getRequestCount("ingest"));
+
+            // The content arrives intact either way
+            object = inline.getObject("testObject1");
+            Payload payload = object.getPayload("file1.txt");
+            Assert.assertEquals("text/plain", payload.getContentType());
+            Assert.assertTrue(Arrays.equals(small, content(payload)));
+            payload = object.getPayload("file4.png");
+            Assert.assertEquals("image/png", payload.getContentType());
+            Assert.assertTrue(Arrays.equals(large, content(payload)));
+            payload = inline.getObject("testObject2").getPayload("file1.txt");
+            Assert.assertEquals("text/plain", payload.getContentType());
+            Assert.assertTrue(Arrays.equals(small, content(payload)));
+        } finally {
+            inline.shutdown();
+        }
+
+        // Cleanup
+        storage.removeObject("testObject1");
+        storage.removeObject("testObject2");
+    }
+
+    /**
+     * Test streaming content larger than the MIME type sniffing prefix
+     * straight to Fedora's upload endpoint
+     *
+     * @throws Exception
+     */
+    @Test
+    public void streamingUpload() throws Exception {
+        System.out.println("\n==========\n TEST => streamingUpload()\n");
+        if (standIn == null) {
+            return;
+        }
+        // A PNG, padded well past the prefix sniffed for its MIME type
+        byte[] png = IOUtils.toByteArray(in("testPayload4.png"));
+        byte[] large = Arrays.copyOf(png,
+                Fedora36StreamingUpload.SNIFF_SIZE * 2 + 123);
+        for (int i = png.length; i < large.length; i++) {
+            large[i] = (byte) i;
+        }
+        Fedora36Storage streaming = newStorage(
+                ", \"streamingUpload\": true");
+        try {
+            DigitalObject object = streaming.createObject("testObject1");
+            standIn.resetRequestCounts();
+            object.createStoredPayload("file4.png", new ByteArrayInputStream(
+                    large));
+            Assert.assertEquals(1, standIn.getRequestCount("upload"));
+            Assert.assertEquals(0, Fedora36.getClientPool().getActiveCount());
+
+            Payload payload = streaming.getObject("testObject1").getPayload(
+                    "file4.png");
+            Assert.assertEquals("image/png", payload.getContentType());
+            Assert.assertEquals(large.length, payload.size().longValue());
+            Assert.assertTrue(Arrays.equals(large, content(payload)));
+        } finally {
+            streaming.shutdown();
+        }
+
+        // Cleanup
+        storage.removeObject("testObject1");
+    }
+
+    /**
+     * Test that 'optimisticCreate' leaves Fedora to refuse existing objects,
+     * whichever way it says so
+     *
+     * @throws Exception
+     */
+    @Test
+    public void optimisticCreate() throws Exception {
+        System.out.println("\n==========\n TEST => optimisticCreate()\n");
+        if (standIn == null) {
+            return;
+        }
+        Fedora36Storage optimistic = newStorage(
+                ", \"optimisticCreate\": true");
+        try {
+            standIn.resetRequestCounts();
+            optimistic.createObject("testObject1");
+            Assert.assertEquals(1, standIn.getRequestCount("ingest"));
+
+            // Fedora 3 answers with a 500 naming ObjectExistsException
+            try {
+                optimistic.createObject("testObject1");
+                Assert.fail("Created an existing object");
+            } catch (StorageException ex) {
+                Assert.assertTrue(ex.getMessage().contains("already exists"));
+            }
+
+            // Later versions, and some proxies, with a 409
+            standIn.setConflictStatus(409);
+            try {
+                optimistic.createObject("testObject1");
+                Assert.fail("Created an existing object");
+            } catch (StorageException ex) {
+                Assert.assertTrue(ex.getMessage().contains("already exists"));
+            } finally {
+                standIn.setConflictStatus(500);
+            }
+
+            // Nothing was looked up first, and nothing was duplicated
+            Assert.assertEquals(3, standIn.getRequestCount("ingest"));
+            Assert.assertEquals(0, standIn.getRequestCount("getObjectProfile"));
+            Assert.assertEquals(1, standIn.getObjectCount());
+        } finally {
+            optimistic.shutdown();
+        }
+
+        // Cleanup
+        storage.removeObject("testObject1");
+    }
+
+    /**
+     * Test walking the OID list lazily, and stopping early
+     *
+     * @throws Exception
+     */
+    @Test
+    public void objectIdIterator() throws Exception {
+        System.out.println("\n==========\n TEST => objectIdIterator()\n");
+        storage.createObject("testObject1");
+        storage.createObject("testObject2");
+        storage.createObject("testObject3");
+
+        if (standIn != null) {
+            standIn.resetRequestCounts();
+        }
+        Fedora36ObjectIdIterator oids = storage.getObjectIdIterator();
+        if (standIn != null) {
+            Assert.assertEquals(0, standIn.getRequestCount("findObjects"));
+        }
+        Set<String> found = new HashSet<String>();
+        while (oids.hasNext()) {
+            found.add(oids.next());
+        }
+        oids.close();
+        Assert.assertEquals(storage.getObjectIdList(), found);
+        Assert.assertEquals(3, found.size());
+
+        // Stop early
+        oids = storage.getObjectIdIterator();
+        Assert.assertTrue(found.contains(oids.next()));
+        oids.close();
+        Assert.assertFalse(oids.hasNext());
+
+        // One OID per page, read two pages ahead
+        oids = new Fedora36ObjectIdIterator(Fedora36.namespace() + ":", 1, 2);
+        Set<String> readAhead = new HashSet<String>();
+        while (oids.hasNext()) {
+            readAhead.add(oids.next());
+        }
+        oids.close();
+        Assert.assertEquals(found, readAhead);
+
+        // One cursor per leading hex digit, side by side
+        List<String> partitions = new ArrayList<String>();
+        for (char digit : "0123456789abcdef".toCharArray()) {
+            partitions.add(Fedora36.namespace() + ":" + digit);
+        }
+        oids = new Fedora36ObjectIdIterator(partitions, 1, 0);
+        Set<String> partitioned = new HashSet<String>();
+        while (oids.hasNext()) {
+            partitioned.add(oids.next());
+        }
+        oids.close();
+        Assert.assertEquals(found, partitioned);
+
+        // Cleanup
+        storage.removeObject("testObject1");
+        storage.removeObject("testObject2");
+        storage.removeObject("testObject3");
+    }
+
+    /**
+     * Test that a partitioned listing finds each object exactly once, even
+     * when an OID looks like the PIDs of another partition
+     *
+     * @throws Exception
+     */
+    @Test
+    public void partitionedListing() throws Exception {
+        System.out.println("\n==========\n TEST => partitionedListing()\n");
+        if (standIn == null) {
+            return;
+        }
+        // Stored as the label of a PID outside the '0' partition
+        String lookalike = Fedora36.namespace() + ":0lookalike";
+        storage.createObject("testObject1");
+        storage.createObject("testObject2");
+        storage.createObject("testObject3");
+        storage.createObject(lookalike);
+
+        Fedora36Storage partitioned = newStorage(", \"listPartitioned\": true");
+        try {
+            Set<String> expected = storage.getObjectIdList();
+            Assert.assertEquals(4, expected.size());
+            Assert.assertEquals(expected, partitioned.getObjectIdList());
+
+            List<String> listed = new ArrayList<String>();
+            Fedora36ObjectIdIterator oids = partitioned.getObjectIdIterator();
+            while (oids.hasNext()) {
+                listed.add(oids.next());
+            }
+            oids.close();
+            Assert.assertEquals(expected.size(), listed.size());
+            Assert.assertEquals(expected, new HashSet<String>(listed));
+        } finally {
+            partitioned.shutdown();
+        }
+
+        // Cleanup
+        storage.removeObject("testObject1");
+        storage.removeObject("testObject2");
+        storage.removeObject("testObject3");
+        storage.removeObject(lookalike);
+    }
+
+    /**
+     * Test listing and counting objects through the resource index
+     *
+     * @throws Exception
+     */
+    @Test
+    public void riSearchListing() throws Exception {
+        System.out.println("\n==========\n TEST => riSearchListing()\n");
+        storage.createObject("testObject1");
+        storage.createObject("test \"Object\", 2");
+        Assert.assertEquals(2, storage.countObjects());
+
+        // One row per page, read ahead
+        Fedora36ObjectIdIterator oids = Fedora36ObjectIdIterator.riSearch(
+                "SELECT ?label FROM <#ri> WHERE { ?object"
+                        + " <info:fedora/fedora-system:def/model#label> ?label"
+                        + " . FILTER regex(str(?object), \"^info:fedora/"
+                        + Fedora36.namespace() + ":\") }", 1, 1);
+        Set<String> found = new HashSet<String>();
+        while (oids.hasNext()) {
+            found.add(oids.next());
+        }
+        oids.close();
+        Assert.assertEquals(storage.getObjectIdList(), found);
+        Assert.assertTrue(found.contains("test \"Object\", 2"));
+
+        // Quoted values may span lines
+        BufferedReader csv = new BufferedReader(new StringReader(
+                "a,\"b,\"\"c\"\"\r\nd\"\r\ne"));
+        Assert.assertEquals(Arrays.asList("a", "b,\"c\"\r\nd"),
+                Fedora36ObjectIdIterator.readCsvRow(csv));
+        Assert.assertEquals(Arrays.asList("e"),
+                Fedora36ObjectIdIterator.readCsvRow(csv));
+        Assert.assertNull(Fedora36ObjectIdIterator.readCsvRow(csv));
+
+        // Cleanup
+        storage.removeObject("testObject1");
+        storage.removeObject("test \"Object\", 2");
+    }
+
+    /**
+     * Test the local OID index survives a restart, and compacts its log
+     *
+     * @throws Exception
+     */
+    @Test
+    public void objectIndex() throws Exception {
+        System.out.println("\n==========\n TEST => objectIndex()\n");
+        File dir = new File(System.getProperty("java.io.tmpdir"),
+                "fedora36-index-" + System.nanoTime());
+        Fedora36ObjectIndex index = new Fedora36ObjectIndex(dir, 3);
+        Assert.assertFalse(index.isBuilt());
+
+        // Changes seen by an abandoned rebuild are not carried into the next
+        index.beginRebuild();
+        index.add("testObject9");
+        index.abortRebuild();
+        Assert.assertFalse(index.isBuilt());
+
+        // Changes during a rebuild are kept
+        index.beginRebuild();
+        index.add("testObject3");
+        index.finishRebuild(Arrays.asList("testObject1", "testObject2"));
+        Assert.assertTrue(index.isBuilt());
+        Assert.assertEquals(3, index.size());
+
+        index.add("test\nObject4");
+        index.remove("testObject1");
+        Assert.assertTrue(index.contains("test\nObject4"));
+        Assert.assertFalse(index.contains("testObject1"));
+        Assert.assertTrue(index.contains("testObject2"));
+        index.close();
+
+        // The log is replayed on startup
+        index = new Fedora36ObjectIndex(dir, 3);
+        Set<String> expected = new HashSet<String>(Arrays.asList(
+                "testObject2", "testObject3", "test\nObject4"));
+        Assert.assertEquals(expected, index.getAll());
+
+        // A third change compacts it into the snapshot
+        index.add("testObject5");
+        Assert.assertEquals(0, new File(dir, "oids.log").length());
+        expected.add("testObject5");
+        Assert.assertEquals(expected, index.getAll());
+        index.close();
+        Assert.assertEquals(expected, new Fedora36ObjectIndex(dir, 3).getAll());
+
+        // Cleanup
+        index.invalidate();
+        dir.delete();
+    }
+
+    /**
+     * Test that callers racing to list storage build the local OID index
+     * only once
+     *
+     * @throws Exception
+     */
+    @Test
+    public void objectIndexLazyRebuild() throws Exception {
+        System.out.println("\n==========\n TEST => objectIndexLazyRebuild()\n");
+        if (standIn == null) {
+            return;
+        }
+        storage.createObject("testObject1");
+        storage.createObject("testObject2");
+        storage.createObject("testObject3");
+        File dir = new File(System.getProperty("java.io.tmpdir"),
+                "fedora36-index-" + System.nanoTime());
+        final Fedora36Storage indexed = newStorage(", \"objectIndex\": \""
+                + dir.getPath().replace("\\", "/") + "\"");
+        try {
+            standIn.resetRequestCounts();
+            final List<Set<String>> results = new ArrayList<Set<String>>();
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int i = 0; i < 4; i++) {
+                threads.add(new Thread() {
+                    @Override
+                    public void run() {
+                        Set<String> oids = indexed.getObjectIdList();
+                        synchronized (results) {
+                            results.add(oids);
+                        }
+                    }
+                });
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            Set<String> expected = new HashSet<String>(Arrays.asList(
+                    "testObject1", "testObject2", "testObject3"));
+            Assert.assertEquals(4, results.size());
+            for (Set<String> oids : results) {
+                Assert.assertEquals(expected, oids);
+            }
+            // One listing (of a single page) for all four callers
+            Assert.assertEquals(1, standIn.getRequestCount("findObjects"));
+        } finally {
+            indexed.shutdown();
+            new Fedora36ObjectIndex(dir, 0).invalidate();
+            dir.delete();
+        }
+
+        // Cleanup
+        storage.removeObject("testObject1");
+        storage.removeObject("testObject2");
+        storage.removeObject("testObject3");
+    }
+
+    /**
+     * Test two storage instances, and a re-initialised one, sharing a local
+     * OID index: each sees the other's changes, and compacting through one
+     * loses nothing the other logged
+     *
+     * @throws Exception
+     */
+    @Test
+    public void sharedObjectIndex() throws Exception {
+        System.out.println("\n==========\n TEST => sharedObjectIndex()\n");
+        if (standIn == null) {
+            return;
+        }
+        File dir = new File(System.getProperty("java.io.tmpdir"),
+                "fedora36-index-" + System.nanoTime());
+        String path = dir.getPath().replace("\\", "/");
+        String extra = ", \"objectIndex\": \"" + path + "\","
+                + " \"objectIndexCompactAfter\": 2";
+        Fedora36Storage first = newStorage(extra);
+        // The same directory, named differently
+        Fedora36Storage second = newStorage(", \"objectIndex\": \"" + path
+                + "/.\"");
+        Set<String> expected = new HashSet<String>();
+        try {
+            first.rebuildObjectIndex();
+            for (int i = 1; i <= 5; i++) {
+                (i % 2 == 0 ? first : second).createObject("testObject" + i);
+                expected.add("testObject" + i);
+            }
+            second.removeObject("testObject5");
+            expected.remove("testObject5");
+            Assert.assertEquals(expected, first.getObjectIdList());
+            Assert.assertEquals(expected, second.getObjectIdList());
+
+            // Still built, and shared, after a re-init
+            standIn.resetRequestCounts();
+            second.init(config(extra));
+            first.createObject("testObject6");
+            expected.add("testObject6");
+            Assert.assertEquals(expected, second.getObjectIdList());
+            Assert.assertEquals(0, standIn.getRequestCount("findObjects"));
+        } finally {
+            first.shutdown();
+            second.shutdown();
+        }
+
+        // Closed once both are done, with everything on disk
+        Fedora36ObjectIndex index = Fedora36.openObjectIndex(dir, 0);
+        try {
+            Assert.assertTrue(index.isBuilt());
+            Assert.assertEquals(expected, index.getAll());
+        } finally {
+            Fedora36.closeObjectIndex(index);
+        }
+
+        // Cleanup
+        new Fedora36ObjectIndex(dir, 0).invalidate();
+        dir.delete();
+        for (String oid : expected) {
+            storage.removeObject(oid);
+        }
+    }
+
+    /**
+     * Test payloads of one object being written from many threads at once
+     *
+     * @throws Exception
+     */
+    @Test
+    public void concurrentPayloads() throws Exception {
+        System.out.println("\n==========\n TEST => concurrentPayloads()\n");
+        final DigitalObject object = storage.createObject("testObject1");
+        final AtomicInteger created = new AtomicInteger();
+        final AtomicInteger refused = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            // Four distinct payloads, each attempted twice
+            final String pid = "file" + (i % 4) + ".txt";
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        object.createStoredPayload(pid, in("testPayload1.txt"));
+                        created.incrementAndGet();
+                    } catch (StorageException ex) {
+                        refused.incrementAndGet();
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(4, created.get());
+        Assert.assertEquals(4, refused.get());
+        Assert.assertEquals(4, object.getPayloadIdList().size());
+
+        // Exactly one of them became the source
+        int sources = 0;
+        for (Payload payload : object.getManifest().values()) {
+            if (PayloadType.Source.equals(payload.getType())) {
+                sources++;
+            }
+        }
+        Assert.assertEquals(1, sources);
+
+        // Cleanup
+        storage.removeObject("testObject1");
+    }
+
+    /**
+     * Test creating and removing the same object from many threads at once:
+     * each change only succeeds against the state the one before it left,
+     * so exactly one of a set of racing creates (or removes) wins
+     *
+     * @throws Exception
+     */
+    @Test
+    public void objectContention() throws Exception {
+        System.out.println("\n==========\n TEST => objectContention()\n");
+        int[] won = contend(storage, "testObject1", 8, 0);
+        Assert.assertEquals(1, won[0]);
+        sizeTest(1);
+
+        won = contend(storage, "testObject1", 0, 8);
+        Assert.assertEquals(1, won[1]);
+        sizeTest(0);
+
+        // Mixed, the successes have to alternate
+        int before = 0;
+        for (int round = 0; round < 5; round++) {
+            won = contend(storage, "testObject1", 4, 4);
+            int after = storage.getObjectIdList().size();
+            Assert.assertTrue(after == 0 || after == 1);
+            Assert.assertTrue(won[0] + won[1] >= 1);
+            Assert.assertEquals(after - before, won[0] - won[1]);
+            before = after;
+        }
+        if (before == 1) {
+            storage.removeObject("testObject1");
+        }
+
+        // Without the lock, Fedora still only lets one create through
+        if (standIn != null) {
+            Fedora36Storage optimistic = newStorage(
+                    ", \"optimisticCreate\": true");
+            try {
+                won = contend(optimistic, "testObject1", 8, 0);
+                Assert.assertEquals(1, won[0]);
+                Assert.assertEquals(1, standIn.getObjectCount());
+            } finally {
+                optimistic.shutdown();
+            }
+            storage.removeObject("testObject1");
+        }
+        sizeTest(0);
+    }
+
+    /**
+     * Test the asynchronous API, including a failure arriving through the
+     * future rather than being thrown
+     *
+     * @throws Exception
+     */
+    @Test
+    public void asyncOperations() throws Exception {
+        System.out.println("\n==========\n TEST => asyncOperations()\n");
+        List<CompletableFuture<DigitalObject>> futures = new ArrayList<CompletableFuture<DigitalObject>>();
+        for (int i = 1; i <= 3; i++) {
+            futures.add(storage.createObjectAsync("testObject" + i));
+        }
+        for (CompletableFuture<DigitalObject> future : futures) {
+            Assert.assertNotNull(future.get());
+        }
+        sizeTest(3);
+
+        Fedora36DigitalObject object = (Fedora36DigitalObject) storage
+                .getObjectAsync("testObject1").get();
+        Fedora36Payload payload = (Fedora36Payload) object
+                .createStoredPayloadAsync("file1.txt", in("testPayload1.txt"))
+                .get();
+        Assert.assertEquals("file1.txt", payload.getId());
+        InputStream content = payload.openAsync().get();
+        Assert.assertNotNull(content);
+        payload.close();
+
+        try {
+            storage.getObjectAsync("testObject4").get();
+            Assert.fail("Missing object was found");
+        } catch (ExecutionException ex) {
+            Assert.assertTrue(ex.getCause() instanceof StorageException);
+        }
+
+        // Cleanup
+        for (int i = 1; i <= 3; i++) {
+            storage.removeObjectAsync("testObject" + i).get();
+        }
+    }
+
+    /**
+     * Test the JDK HttpClient transport against the same objects the Fedora
+     * client sees
+     *
+     * @throws Exception
+     */
+    @Test
+    public void jdkTransport() throws Exception {
+        System.out.println("\n==========\n TEST => jdkTransport()\n");
+        if (standIn == null) {
+            return;
+        }
+        Fedora36RequestStats stats = new Fedora36RequestStats();
+        Fedora36HttpTransport transport = new Fedora36HttpTransport(
+                standIn.getUrl(), "fedoraAdmin", "fedoraAdmin", 15, 2, 2,
+                new Fedora36RateLimiter(1000), stats);
+        Fedora36ClientPool pool = Fedora36.getClientPool();
+        try {
+            DigitalObject object = storage.createObject("testObject1");
+            object.createStoredPayload("file1.txt", in("testPayload1.txt"));
+            String fedoraPid = Fedora36.namespace() + ":"
+                    + DigestUtils.md5Hex("testObject1");
+            String dsId = "DS" + DigestUtils.md5Hex("file1.txt");
+
+            long borrowed = pool.getBorrowCount();
+            Assert.assertTrue(transport.objectExists(fedoraPid).get());
+            Assert.assertEquals(borrowed + 1, pool.getBorrowCount());
+            InputStream content = transport
+                    .getDatastreamContent(fedoraPid, dsId)
+                    .thenCompose(
+                            new Function<Flow.Publisher<List<ByteBuffer>>, CompletableFuture<InputStream>>() {
+                                @Override
+                                public CompletableFuture<InputStream> apply(
+                                        Flow.Publisher<List<ByteBuffer>> body) {
+                                    return Fedora36HttpTransport
+                                            .toInputStream(body);
+                                }
+                            }).get();
+            try {
+                Assert.assertTrue(Arrays.equals(
+                        IOUtils.toByteArray(in("testPayload1.txt")),
+                        IOUtils.toByteArray(content)));
+            } finally {
+                content.close();
+            }
+            // Reading the content took a pooled client of its own
+            Assert.assertEquals(borrowed + 2, pool.getBorrowCount());
+
+            transport.purgeObject(fedoraPid, "test").get();
+            Assert.assertFalse(transport.objectExists(fedoraPid).get());
+            sizeTest(0);
+
+            // Errors carry Fedora's status, as they do from the Fedora client
+            try {
+                transport.purgeObject(fedoraPid, "test").get();
+                Assert.fail("Purged a missing object");
+            } catch (ExecutionException ex) {
+                Assert.assertTrue(ex.getCause() instanceof FedoraClientException);
+            }
+            Assert.assertTrue(stats.toString().contains("PurgeObject"));
+        } finally {
+            transport.close();
+        }
+    }
+
+    /**
+     * Test batch creation, including OIDs that are repeated or already exist
+     *
+     * @throws Exception
+     */
+    @Test
+    public void batchCreation() throws Exception {
+        System.out.println("\n==========\n TEST => batchCreation()\n");
+        storage.createObject("testObject1");
+        if (standIn != null) {
+            standIn.resetRequestCounts();
+        }
+        Fedora36BatchResult result = storage.createObjects(Arrays.asList(
+                "testObject1", "testObject2", "testObject3", "testObject2"));
+        if (standIn != null) {
+            // Checked first, as createObject() would, so the existing object
+            // is never sent to Fedora
+            Assert.assertEquals(3, standIn.getRequestCount("getObjectProfile"));
+            Assert.assertEquals(2, standIn.getRequestCount("ingest"));
+        }
+        Assert.assertEquals(2, result.getObjects().size());
+        Assert.assertEquals("testObject2", result.getObjects().get("testObject2")
+                .getId());
+        Assert.assertEquals(1, result.getFailures().size());
+        Assert.assertTrue(result.getFailures().containsKey("testObject1"));
+        sizeTest(3);
+
+        // Cleanup
+        storage.removeObject("testObject1");
+        storage.removeObject("testObject2");
+        storage.removeObject("testObject3");
+    }
+
+    /**
+     * Test a batch many times the size of the client pool against a slow
+     * server. Calls beyond the pool size must queue, on virtual threads as
+     * on platform threads, rather than time out waiting for a client.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void slowBatchCreation() throws Exception {
+        System.out.println("\n==========\n TEST => slowBatchCreation()\n");
+        if (standIn == null) {
+            return;
+        }
+        // Enough work to outlast the 10s pool timeout, at 2 requests each
+        int size = 100;
+        List<String> oids = new ArrayList<String>();
+        for (int i = 0; i < size; i++) {
+            oids.add("batchObject" + i);
+        }
+        Fedora36Storage batchStorage = newStorage(", \"rateLimit\": 1000,"
+                + " \"virtualThreads\": true");
+        Fedora36ClientPool pool = Fedora36.getClientPool();
+        Assert.assertTrue(size > pool.getSize() * 10);
+        long timeouts = pool.getTimeoutCount();
+        standIn.setResponseDelay(250);
+        try {
+            Fedora36BatchResult result = batchStorage.createObjects(oids);
+            Assert.assertEquals(0, result.getFailures().size());
+            Assert.assertEquals(size, result.getObjects().size());
+            Assert.assertEquals(timeouts, pool.getTimeoutCount());
+            Assert.assertTrue(pool.getPeakActiveCount() <= pool.getSize());
+        } finally {
+            standIn.setResponseDelay(0);
+            batchStorage.shutdown();
+        }
+        sizeTest(size);
+
+        // Cleanup
+        for (String oid : oids) {
+            storage.removeObject(oid);
+        }
+    }
+
     /**
      * This test doesn't really do anything, but running it last does confirm
      * that all previous tests cleaned up properly.
@@ -738,6 +1888,44 @@ public class Fedora3StorageTest {
         sizeTest(0);
     }
 
+    /**
+     * Instantiate and initialise storage against either the stand-in or the
+     * live server.
+     * 
+     * @throws Exception
+     */
+    private Fedora36Storage newStorage() throws Exception {
+        return newStorage("");
+    }
+
+    /**
+     * As {@link #newStorage()}, with extra 'storage.fedora36' settings. They
+     * are only applied against the stand-in.
+     *
+     * @param extra JSON fields to add, each starting with a comma
+     */
+    private Fedora36Storage newStorage(String extra) throws Exception {
+        Fedora36Storage newStorage = new Fedora36Storage();
+        if (standIn != null) {
+            newStorage.init(config(extra));
+            return newStorage;
+        }
+        newStorage.init(new File(getClass().getResource(
+                "/fedora3-config.json").toURI()));
+        return newStorage;
+    }
+
+    /**
+     * The stand-in's configuration, with extra 'storage.fedora36' settings.
+     *
+     * @param extra JSON fields to add, each starting with a comma
+     */
+    private String config(String extra) {
+        String config = standIn.getConfig();
+        return config.substring(0, config.lastIndexOf("}}}")) + extra
+                + "}}}";
+    }
+
     /**
      * Wrapper for resource retrieval as InputStreams, simply to reduce call
      * complexity to just 'in("file.name")',
@@ -762,6 +1950,72 @@ public class Fedora3StorageTest {
         return file.getAbsolutePath();
     }
 
+    /**
+     * Read the whole of a payload's content.
+     *
+     * @param payload The payload to read
+     * @return byte[] The content
+     * @throws Exception
+     */
+    private byte[] content(Payload payload) throws Exception {
+        InputStream in = payload.open();
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+            payload.close();
+        }
+    }
+
+    /**
+     * Race creates and removes of one object against each other, all
+     * released at the same moment.
+     *
+     * @param target The storage to use
+     * @param oid The object to fight over
+     * @param creates How many threads should try to create it
+     * @param removes How many threads should try to remove it
+     * @return int[] The creates, then the removes, that succeeded
+     * @throws Exception
+     */
+    private int[] contend(final Fedora36Storage target, final String oid,
+            int creates, int removes) throws Exception {
+        final CountDownLatch go = new CountDownLatch(1);
+        final AtomicInteger created = new AtomicInteger();
+        final AtomicInteger removed = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < creates + removes; i++) {
+            final boolean create = i < creates;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        go.await();
+                        if (create) {
+                            target.createObject(oid);
+                            created.incrementAndGet();
+                        } else {
+                            target.removeObject(oid);
+                            removed.incrementAndGet();
+                        }
+                    } catch (StorageException ex) {
+                        // Lost the race
+                    } catch (InterruptedException ex) {
+                        // Never started
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        go.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return new int[] { created.get(), removed.get() };
+    }
+
     /**
      * Confirm that the number of objects in Storage is as expected. This method
      * simply wraps up the storage request, JUnit assertion and common message
@@ -0,0 +1,1438 @@
+/*
+ * The Fascinator - Plugin - Storage - Fedora 3
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.fedora;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.IOUtils;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An embedded, in-memory stand-in for the parts of the Fedora 3.6 REST API
+ * this plugin uses, so the test suite and benchmarks can run without a real
+ * Fedora server. Supported calls are:
+ * <ul>
+ * <li>describe</li>
+ * <li>findObjects (with session tokens), getObjectProfile, getObjectXML,
+ * ingest and purgeObject</li>
+ * <li>listDatastreams, getDatastream, getDatastreamHistory, addDatastream,
+ * modifyDatastream, purgeDatastream and datastream dissemination</li>
+ * <li>upload</li>
+ * <li>risearch, answering only the plugin's own object listing query, as
+ * CSV or a count</li>
+ * </ul>
+ * Responses follow the XML formats of a real 3.6 server closely enough for
+ * the Fedora client to parse them. Authentication is accepted but ignored.
+ *
+ * @author Greg Pendlebury
+ */
+public class FedoraStandIn {
+    /** Fedora version we claim to be */
+    public static final String VERSION = "3.6.2";
+
+    /** Namespace for the access API */
+    private static final String ACCESS_NS = "http://www.fedora.info/definitions/1/0/access/";
+
+    /** Namespace for the management API */
+    private static final String MANAGEMENT_NS = "http://www.fedora.info/definitions/1/0/management/";
+
+    /** Namespace for search results */
+    private static final String TYPES_NS = "http://www.fedora.info/definitions/1/0/types/";
+
+    /** Namespace for FOXML */
+    private static final String FOXML_NS = "info:fedora/fedora-system:def/foxml#";
+
+    /** Object property holding the label */
+    private static final String LABEL_PROPERTY = "info:fedora/fedora-system:def/model#label";
+
+    /** The system object the plugin checks access against */
+    private static final String SYSTEM_PID = "fedora-system:FedoraObject-3.0";
+
+    /** Namespace filter in a risearch query */
+    private static final Pattern RI_NAMESPACE = Pattern
+            .compile("\\^info:fedora/([^:\"]+):");
+
+    /** Default page size for findObjects, as per Fedora */
+    private static final int DEFAULT_MAX_RESULTS = 25;
+
+    /** The shared instance */
+    private static FedoraStandIn shared;
+
+    /** The HTTP server */
+    private HttpServer server;
+
+    /** Threads serving requests */
+    private ExecutorService threads;
+
+    /** Objects, by PID */
+    private Map<String, StoredObject> objects = new ConcurrentHashMap<String, StoredObject>();
+
+    /** Uploaded content waiting to be used, by upload URI */
+    private Map<String, byte[]> uploads = new ConcurrentHashMap<String, byte[]>();
+
+    /** Open findObjects sessions, by token */
+    private Map<String, SearchSession> sessions = new ConcurrentHashMap<String, SearchSession>();
+
+    /** Request counters, by operation */
+    private Map<String, AtomicLong> requestCounts = new ConcurrentHashMap<String, AtomicLong>();
+
+    /** Upload ID sequence */
+    private AtomicLong uploadSequence = new AtomicLong();
+
+    /** PID sequence for Fedora generated PIDs */
+    private AtomicLong pidSequence = new AtomicLong();
+
+    /** The last timestamp handed out */
+    private long lastTime;
+
+    /** Status sent when an ingest reuses a PID */
+    private volatile int conflictStatus = 500;
+
+    /** Time taken to answer every request, in milliseconds */
+    private volatile long responseDelay;
+
+    /**
+     * Access a stand-in shared by everything in this JVM, starting it on
+     * first use. The plugin keeps its Fedora connection in static fields, so
+     * tests in the same JVM need to agree on one server.
+     *
+     * @return FedoraStandIn The shared stand-in
+     * @throws IOException if the server cannot be started
+     */
+    public static synchronized FedoraStandIn shared() throws IOException {
+        if (shared == null) {
+            shared = new FedoraStandIn();
+            shared.start(0);
+        }
+        return shared;
+    }
+
+    /**
+     * Constructor
+     */
+    public FedoraStandIn() {
+        reset();
+    }
+
+    /**
+     * Start serving on the given port.
+     *
+     * @param port the port, or 0 for any free port
+     * @throws IOException if the server cannot be started
+     */
+    public void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", port),
+                0);
+        server.createContext("/fedora/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    if (responseDelay > 0) {
+                        Thread.sleep(responseDelay);
+                    }
+                    route(exchange);
+                } catch (Exception ex) {
+                    send(exchange, 500, "text/plain", ex.toString());
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        threads = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "fedora-stand-in");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        server.setExecutor(threads);
+        server.start();
+    }
+
+    /**
+     * Stop serving.
+     */
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+            threads.shutdownNow();
+            server = null;
+        }
+    }
+
+    /**
+     * @return String The base URL of the stand-in, ending in '/'
+     */
+    public String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort()
+                + "/fedora/";
+    }
+
+    /**
+     * A minimal plugin configuration pointing at this stand-in.
+     *
+     * @return String JSON configuration
+     */
+    public String getConfig() {
+        return "{\"storage\": {\"type\": \"fedora36\", \"fedora36\": {"
+                + "\"url\": \"" + getUrl() + "\","
+                + "\"username\": \"fedoraAdmin\","
+                + "\"password\": \"fedoraAdmin\"}}}";
+    }
+
+    /**
+     * Forget every object, upload and counter, leaving only the system
+     * object in place.
+     */
+    public synchronized void reset() {
+        objects.clear();
+        uploads.clear();
+        sessions.clear();
+        requestCounts.clear();
+        conflictStatus = 500;
+        responseDelay = 0;
+        StoredObject system = new StoredObject(SYSTEM_PID, "Fedora Object");
+        addDublinCore(system);
+        objects.put(SYSTEM_PID, system);
+    }
+
+    /**
+     * Choose how an ingest of an existing PID is refused: 500 with an
+     * ObjectExistsException, as Fedora 3 does, or 409, as later versions
+     * and some proxies do. Reset sets it back to 500.
+     *
+     * @param status 500 or 409
+     */
+    public void setConflictStatus(int status) {
+        conflictStatus = status;
+    }
+
+    /**
+     * Make every request take at least this long to answer, as a busy
+     * server would. Reset sets it back to 0.
+     *
+     * @param millis the delay, in milliseconds
+     */
+    public void setResponseDelay(long millis) {
+        responseDelay = millis;
+    }
+
+    /**
+     * @return int The number of objects held, excluding the system object
+     */
+    public int getObjectCount() {
+        return objects.size() - 1;
+    }
+
+    /**
+     * How many times an operation has been requested since the last reset.
+     * Operations are named after the Fedora REST API methods, eg.
+     * 'getDatastreams' or 'upload'.
+     *
+     * @param operation the operation name
+     * @return long The number of requests
+     */
+    public long getRequestCount(String operation) {
+        AtomicLong count = requestCounts.get(operation);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * Zero every request counter, keeping all content.
+     */
+    public void resetRequestCounts() {
+        requestCounts.clear();
+    }
+
+    /**
+     * Count a request for an operation.
+     *
+     * @param operation the operation name
+     */
+    private void count(String operation) {
+        AtomicLong count = requestCounts.get(operation);
+        if (count == null) {
+            synchronized (requestCounts) {
+                count = requestCounts.get(operation);
+                if (count == null) {
+                    count = new AtomicLong();
+                    requestCounts.put(operation, count);
+                }
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * Work out which API call a request is, and handle it.
+     *
+     * @param exchange the HTTP exchange
+     * @throws Exception if anything goes wrong, becomes a 500 response
+     */
+    private void route(HttpExchange exchange) throws Exception {
+        String method = exchange.getRequestMethod();
+        if ("HEAD".equals(method)) {
+            method = "GET";
+        }
+        Map<String, List<String>> params = parseQuery(exchange
+                .getRequestURI().getRawQuery());
+        String path = exchange.getRequestURI().getRawPath()
+                .substring("/fedora/".length());
+        List<String> parts = new ArrayList<String>();
+        for (String part : path.split("/")) {
+            if (part.length() > 0) {
+                parts.add(URLDecoder.decode(part, "UTF-8"));
+            }
+        }
+
+        if (parts.size() == 1 && "describe".equals(parts.get(0))) {
+            count("describe");
+            describe(exchange);
+        } else if (parts.size() == 1 && "upload".equals(parts.get(0))
+                && "POST".equals(method)) {
+            count("upload");
+            upload(exchange);
+        } else if (parts.size() == 1 && "risearch".equals(parts.get(0))) {
+            count("riSearch");
+            riSearch(exchange, params);
+        } else if (parts.size() >= 1 && "objects".equals(parts.get(0))) {
+            routeObjects(exchange, method, parts, params);
+        } else {
+            send(exchange, 404, "text/plain", "Not found: " + path);
+        }
+    }
+
+    /**
+     * Route requests under '/objects'.
+     *
+     * @param exchange the HTTP exchange
+     * @param method the HTTP method
+     * @param parts the decoded path segments
+     * @param params the query parameters
+     * @throws Exception if anything goes wrong
+     */
+    private void routeObjects(HttpExchange exchange, String method,
+            List<String> parts, Map<String, List<String>> params)
+            throws Exception {
+        int size = parts.size();
+        if (size == 1 && "GET".equals(method)) {
+            count("findObjects");
+            findObjects(exchange, params);
+            return;
+        }
+
+        String pid = parts.get(1);
+        if (size == 2) {
+            if ("GET".equals(method)) {
+                count("getObjectProfile");
+                objectProfile(exchange, pid);
+            } else if ("POST".equals(method)) {
+                count("ingest");
+                ingest(exchange, pid, params);
+            } else if ("DELETE".equals(method)) {
+                count("purgeObject");
+                purgeObject(exchange, pid);
+            } else {
+                send(exchange, 405, "text/plain", method);
+            }
+            return;
+        }
+
+        if (size == 3 && "objectXML".equals(parts.get(2))) {
+            count("getObjectXML");
+            objectXml(exchange, pid);
+            return;
+        }
+        if (!"datastreams".equals(parts.get(2))) {
+            send(exchange, 404, "text/plain", "Not found");
+            return;
+        }
+        if (size == 3) {
+            count("getDatastreams");
+            listDatastreams(exchange, pid, params);
+            return;
+        }
+
+        String dsId = parts.get(3);
+        if (size == 4) {
+            if ("GET".equals(method)) {
+                count("getDatastream");
+                getDatastream(exchange, pid, dsId);
+            } else if ("POST".equals(method)) {
+                count("addDatastream");
+                addDatastream(exchange, pid, dsId, params);
+            } else if ("PUT".equals(method)) {
+                count("modifyDatastream");
+                modifyDatastream(exchange, pid, dsId, params);
+            } else if ("DELETE".equals(method)) {
+                count("purgeDatastream");
+                purgeDatastream(exchange, pid, dsId);
+            } else {
+                send(exchange, 405, "text/plain", method);
+            }
+        } else if (size == 5 && "history".equals(parts.get(4))) {
+            count("getDatastreamHistory");
+            datastreamHistory(exchange, pid, dsId);
+        } else if (size == 5 && "content".equals(parts.get(4))) {
+            count("getDatastreamDissemination");
+            dissemination(exchange, pid, dsId);
+        } else {
+            send(exchange, 404, "text/plain", "Not found");
+        }
+    }
+
+    /*
+     * ===== Repository and object level API calls =====
+     */
+
+    /**
+     * describe
+     */
+    private void describe(HttpExchange exchange) throws IOException {
+        StringBuilder xml = xmlHeader();
+        xml.append("<fedoraRepository xmlns=\"").append(ACCESS_NS)
+                .append("\">");
+        element(xml, "repositoryName", "Fedora Stand-In");
+        element(xml, "repositoryBaseURL",
+                getUrl().substring(0, getUrl().length() - 1));
+        element(xml, "repositoryVersion", VERSION);
+        xml.append("<repositoryPID>");
+        element(xml, "PID-namespaceIdentifier", "changeme");
+        element(xml, "PID-delimiter", ":");
+        element(xml, "PID-sample", "changeme:100");
+        element(xml, "retainPID", "*");
+        xml.append("</repositoryPID>");
+        element(xml, "adminEmail", "bob@example.org");
+        xml.append("</fedoraRepository>");
+        sendXml(exchange, 200, xml);
+    }
+
+    /**
+     * risearch. There is no triplestore here, so any query asking for the
+     * labels of objects whose URI starts with 'info:fedora/namespace:' gets
+     * a canned answer built from the objects held; anything else is refused.
+     */
+    private void riSearch(HttpExchange exchange,
+            Map<String, List<String>> params) throws IOException {
+        String query = first(params, "query");
+        Matcher matcher = query == null ? null : RI_NAMESPACE
+                .matcher(query);
+        if (matcher == null || !query.contains(LABEL_PROPERTY)
+                || !matcher.find()) {
+            send(exchange, 400, "text/plain", "Unsupported query: " + query);
+            return;
+        }
+        String prefix = matcher.group(1) + ":";
+        List<String> labels = new ArrayList<String>();
+        for (StoredObject object : objects.values()) {
+            if (object.pid.startsWith(prefix)) {
+                labels.add(object.label);
+            }
+        }
+
+        if ("count".equalsIgnoreCase(first(params, "format"))) {
+            send(exchange, 200, "text/plain", String.valueOf(labels.size()));
+            return;
+        }
+        StringBuilder csv = new StringBuilder("\"label\"\r\n");
+        for (String label : labels) {
+            csv.append('"').append(label.replace("\"", "\"\""))
+                    .append("\"\r\n");
+        }
+        send(exchange, 200, "text/plain", csv.toString());
+    }
+
+    /**
+     * findObjects, with paging through session tokens
+     */
+    private void findObjects(HttpExchange exchange,
+            Map<String, List<String>> params) throws IOException {
+        SearchSession session;
+        String token = first(params, "sessionToken");
+        if (token != null) {
+            session = sessions.get(token);
+            if (session == null) {
+                send(exchange, 500, "text/plain",
+                        "UnknownSessionTokenException: " + token);
+                return;
+            }
+        } else {
+            String maxResults = first(params, "maxResults");
+            session = new SearchSession(maxResults == null
+                    ? DEFAULT_MAX_RESULTS : Integer.parseInt(maxResults));
+            String terms = first(params, "terms");
+            String query = first(params, "query");
+            List<String> pids = new ArrayList<String>(objects.keySet());
+            Collections.sort(pids);
+            for (String pid : pids) {
+                StoredObject object = objects.get(pid);
+                if (object != null && matches(object, terms, query)) {
+                    session.results.add(new String[] { pid, object.label });
+                }
+            }
+        }
+
+        List<String[]> page = session.nextPage();
+        StringBuilder xml = xmlHeader();
+        xml.append("<result xmlns=\"").append(TYPES_NS)
+                .append("\" xmlns:types=\"").append(TYPES_NS).append("\">");
+        if (session.hasMore()) {
+            if (session.token == null) {
+                session.token = UUID.randomUUID().toString();
+                sessions.put(session.token, session);
+            }
+            xml.append("<listSession>");
+            element(xml, "token", session.token);
+            element(xml, "cursor", String.valueOf(session.cursor));
+            element(xml, "completeListSize",
+                    String.valueOf(session.results.size()));
+            element(xml, "expirationDate",
+                    format(new Date(System.currentTimeMillis() + 300000)));
+            xml.append("</listSession>");
+        } else if (session.token != null) {
+            sessions.remove(session.token);
+        }
+        xml.append("<resultList>");
+        for (String[] result : page) {
+            xml.append("<objectFields>");
+            element(xml, "pid", result[0]);
+            element(xml, "label", result[1]);
+            xml.append("</objectFields>");
+        }
+        xml.append("</resultList></result>");
+        sendXml(exchange, 200, xml);
+    }
+
+    /**
+     * getObjectProfile
+     */
+    private void objectProfile(HttpExchange exchange, String pid)
+            throws IOException {
+        StoredObject object = objects.get(pid);
+        if (object == null) {
+            notFound(exchange, pid);
+            return;
+        }
+        StringBuilder xml = xmlHeader();
+        xml.append("<objectProfile xmlns=\"").append(ACCESS_NS)
+                .append("\" pid=\"").append(escape(pid)).append("\">");
+        element(xml, "objLabel", object.label);
+        element(xml, "objOwnerId", "fedoraAdmin");
+        xml.append("<objModels><model>info:fedora/fedora-system:"
+                + "FedoraObject-3.0</model></objModels>");
+        element(xml, "objCreateDate", format(object.created));
+        element(xml, "objLastModDate", format(object.modified));
+        element(xml, "objState", object.state);
+        xml.append("</objectProfile>");
+        sendXml(exchange, 200, xml);
+    }
+
+    /**
+     * ingest, from FOXML if any was sent
+     */
+    private void ingest(HttpExchange exchange, String pid,
+            Map<String, List<String>> params) throws Exception {
+        byte[] body = IOUtils.toByteArray(exchange.getRequestBody());
+        StoredObject object;
+        if (body.length > 0) {
+            object = parseFoxml(body, pid);
+        } else {
+            if ("new".equals(pid)) {
+                pid = "changeme:" + pidSequence.incrementAndGet();
+            }
+            String label = first(params, "label");
+            object = new StoredObject(pid, label == null ? "" : label);
+        }
+        if (object == null) {
+            send(exchange, 500, "text/plain", "ObjectValidityException:"
+                    + " FOXML could not be parsed");
+            return;
+        }
+        if (!object.datastreams.containsKey("DC")) {
+            addDublinCore(object);
+        }
+        synchronized (this) {
+            if (objects.containsKey(object.pid) && conflictStatus == 409) {
+                send(exchange, 409, "text/plain", "Conflict: the PID '"
+                        + object.pid + "' is in use");
+                return;
+            }
+            if (objects.containsKey(object.pid)) {
+                send(exchange, 500, "text/plain",
+                        "org.fcrepo.server.errors.ObjectExistsException:"
+                                + " The PID '" + object.pid
+                                + "' already exists in the registry;"
+                                + " the object can't be re-created.");
+                return;
+            }
+            objects.put(object.pid, object);
+        }
+        exchange.getResponseHeaders().add("Location",
+                getUrl() + "objects/" + object.pid);
+        send(exchange, 201, "text/plain", object.pid);
+    }
+
+    /**
+     * purgeObject
+     */
+    private void purgeObject(HttpExchange exchange, String pid)
+            throws IOException {
+        if (objects.remove(pid) == null) {
+            notFound(exchange, pid);
+            return;
+        }
+        send(exchange, 200, "text/plain", format(now()));
+    }
+
+    /**
+     * getObjectXML
+     */
+    private void objectXml(HttpExchange exchange, String pid)
+            throws IOException {
+        StoredObject object = objects.get(pid);
+        if (object == null) {
+            notFound(exchange, pid);
+            return;
+        }
+        StringBuilder xml = xmlHeader();
+        xml.append("<foxml:digitalObject VERSION=\"1.1\" PID=\"")
+                .append(escape(pid)).append("\" xmlns:foxml=\"")
+                .append(FOXML_NS).append("\">");
+        xml.append("<foxml:objectProperties>");
+        xml.append("<foxml:property NAME=\"info:fedora/fedora-system:def/"
+                + "model#state\" VALUE=\"Active\"/>");
+        xml.append("<foxml:property NAME=\"").append(LABEL_PROPERTY)
+                .append("\" VALUE=\"").append(escape(object.label))
+                .append("\"/>");
+        xml.append("</foxml:objectProperties>");
+        synchronized (object) {
+            for (List<Version> versions : object.datastreams.values()) {
+                Version current = versions.get(0);
+                xml.append("<foxml:datastream ID=\"")
+                        .append(escape(current.dsId))
+                        .append("\" STATE=\"").append(current.state)
+                        .append("\" CONTROL_GROUP=\"")
+                        .append(current.controlGroup)
+                        .append("\" VERSIONABLE=\"")
+                        .append(current.versionable).append("\">");
+                for (Version version : versions) {
+                    xml.append("<foxml:datastreamVersion ID=\"")
+                            .append(escape(version.versionId))
+                            .append("\" LABEL=\"")
+                            .append(escape(version.label))
+                            .append("\" CREATED=\"")
+                            .append(format(version.created))
+                            .append("\" MIMETYPE=\"")
+                            .append(escape(version.mimeType))
+                            .append("\" SIZE=\"")
+                            .append(version.content.length).append("\">");
+                    xml.append("<foxml:binaryContent>")
+                            .append(Base64.encodeBase64String(version.content))
+                            .append("</foxml:binaryContent>");
+                    xml.append("</foxml:datastreamVersion>");
+                }
+                xml.append("</foxml:datastream>");
+            }
+        }
+        xml.append("</foxml:digitalObject>");
+        sendXml(exchange, 200, xml);
+    }
+
+    /*
+     * ===== Datastream level API calls =====
+     */
+
+    /**
+     * listDatastreams, with or without profiles
+     */
+    private void listDatastreams(HttpExchange exchange, String pid,
+            Map<String, List<String>> params) throws IOException {
+        StoredObject object = objects.get(pid);
+        if (object == null) {
+            notFound(exchange, pid);
+            return;
+        }
+        boolean profiles = !"false".equals(first(params, "profiles"));
+        StringBuilder xml = xmlHeader();
+        xml.append("<objectDatastreams xmlns=\"").append(ACCESS_NS)
+                .append("\" xmlns:apim=\"").append(MANAGEMENT_NS)
+                .append("\" pid=\"").append(escape(pid))
+                .append("\" baseURL=\"").append(escape(getUrl()))
+                .append("\">");
+        synchronized (object) {
+            for (List<Version> versions : object.datastreams.values()) {
+                Version current = versions.get(0);
+                if (profiles) {
+                    profile(xml, "datastreamProfile", "apim:", pid, current);
+                } else {
+                    xml.append("<datastream dsid=\"")
+                            .append(escape(current.dsId))
+                            .append("\" label=\"")
+                            .append(escape(current.label))
+                            .append("\" mimeType=\"")
+                            .append(escape(current.mimeType))
+                            .append("\"/>");
+                }
+            }
+        }
+        xml.append("</objectDatastreams>");
+        sendXml(exchange, 200, xml);
+    }
+
+    /**
+     * getDatastream
+     */
+    private void getDatastream(HttpExchange exchange, String pid,
+            String dsId) throws IOException {
+        Version current = currentVersion(pid, dsId);
+        if (current == null) {
+            notFound(exchange, pid + "/" + dsId);
+            return;
+        }
+        StringBuilder xml = xmlHeader();
+        profile(xml, "datastreamProfile xmlns=\"" + MANAGEMENT_NS + "\"",
+                "", pid, current);
+        sendXml(exchange, 200, xml);
+    }
+
+    /**
+     * getDatastreamHistory, newest version first
+     */
+    private void datastreamHistory(HttpExchange exchange, String pid,
+            String dsId) throws IOException {
+        StoredObject object = objects.get(pid);
+        List<Version> versions = object == null ? null : object.datastreams
+                .get(dsId);
+        if (versions == null) {
+            notFound(exchange, pid + "/" + dsId);
+            return;
+        }
+        StringBuilder xml = xmlHeader();
+        xml.append("<datastreamHistory xmlns=\"").append(MANAGEMENT_NS)
+                .append("\" pid=\"").append(escape(pid))
+                .append("\" dsID=\"").append(escape(dsId)).append("\">");
+        synchronized (object) {
+            for (Version version : versions) {
+                profile(xml, "datastreamProfile", "", pid, version);
+            }
+        }
+        xml.append("</datastreamHistory>");
+        sendXml(exchange, 200, xml);
+    }
+
+    /**
+     * addDatastream, with content from the body or an upload
+     */
+    private void addDatastream(HttpExchange exchange, String pid,
+            String dsId, Map<String, List<String>> params) throws IOException {
+        StoredObject object = objects.get(pid);
+        if (object == null) {
+            notFound(exchange, pid);
+            return;
+        }
+        byte[] content = content(exchange, params);
+        if (content == null) {
+            send(exchange, 500, "text/plain", "GeneralException:"
+                    + " Unknown dsLocation");
+            return;
+        }
+        Version version = new Version(dsId, 0);
+        version.label = orDefault(first(params, "dsLabel"), "");
+        version.mimeType = orDefault(first(params, "mimeType"),
+                "application/octet-stream");
+        version.controlGroup = orDefault(first(params, "controlGroup"), "M");
+        version.state = orDefault(first(params, "dsState"), "A");
+        version.versionable = !"false".equals(first(params, "versionable"));
+        version.formatUri = first(params, "formatURI");
+        version.altIds = altIds(params);
+        version.content = content;
+        version.created = now();
+        synchronized (object) {
+            if (object.datastreams.containsKey(dsId)) {
+                send(exchange, 500, "text/plain", "GeneralException:"
+                        + " A datastream already exists with ID " + dsId);
+                return;
+            }
+            List<Version> versions = new ArrayList<Version>();
+            versions.add(version);
+            object.datastreams.put(dsId, versions);
+            object.modified = version.created;
+        }
+        StringBuilder xml = xmlHeader();
+        profile(xml, "datastreamProfile xmlns=\"" + MANAGEMENT_NS + "\"",
+                "", pid, version);
+        exchange.getResponseHeaders().add("Location",
+                getUrl() + "objects/" + pid + "/datastreams/" + dsId);
+        sendXml(exchange, 201, xml);
+    }
+
+    /**
+     * modifyDatastream, leaving anything not sent unchanged
+     */
+    private void modifyDatastream(HttpExchange exchange, String pid,
+            String dsId, Map<String, List<String>> params) throws IOException {
+        StoredObject object = objects.get(pid);
+        if (object == null || !object.datastreams.containsKey(dsId)) {
+            notFound(exchange, pid + "/" + dsId);
+            return;
+        }
+        byte[] content = content(exchange, params);
+        Version version;
+        synchronized (object) {
+            List<Version> versions = object.datastreams.get(dsId);
+            Version current = versions.get(0);
+            version = new Version(dsId, current.number + 1);
+            version.label = orDefault(first(params, "dsLabel"), current.label);
+            version.mimeType = orDefault(first(params, "mimeType"),
+                    current.mimeType);
+            version.controlGroup = current.controlGroup;
+            version.state = orDefault(first(params, "dsState"),
+                    current.state);
+            String versionable = first(params, "versionable");
+            version.versionable = versionable == null ? current.versionable
+                    : !"false".equals(versionable);
+            version.formatUri = orDefault(first(params, "formatURI"),
+                    current.formatUri);
+            List<String> altIds = altIds(params);
+            version.altIds = altIds.isEmpty() ? current.altIds : altIds;
+            version.content = content == null ? current.content : content;
+            version.created = now();
+            if (!current.versionable) {
+                versions.remove(0);
+            }
+            versions.add(0, version);
+            object.modified = version.created;
+        }
+        StringBuilder xml = xmlHeader();
+        profile(xml, "datastreamProfile xmlns=\"" + MANAGEMENT_NS + "\"",
+                "", pid, version);
+        sendXml(exchange, 200, xml);
+    }
+
+    /**
+     * purgeDatastream
+     */
+    private void purgeDatastream(HttpExchange exchange, String pid,
+            String dsId) throws IOException {
+        StoredObject object = objects.get(pid);
+        List<Version> removed = null;
+        if (object != null) {
+            synchronized (object) {
+                removed = object.datastreams.remove(dsId);
+            }
+        }
+        if (removed == null) {
+            notFound(exchange, pid + "/" + dsId);
+            return;
+        }
+        send(exchange, 200, "application/json", "[\"" + format(now())
+                + "\"]");
+    }
+
+    /**
+     * Datastream dissemination, ie. the content of the current version
+     */
+    private void dissemination(HttpExchange exchange, String pid, String dsId)
+            throws IOException {
+        Version current = currentVersion(pid, dsId);
+        if (current == null) {
+            notFound(exchange, pid + "/" + dsId);
+            return;
+        }
+        send(exchange, 200, current.mimeType, current.content);
+    }
+
+    /**
+     * upload, a multipart form with a 'file' part
+     */
+    private void upload(HttpExchange exchange) throws IOException {
+        String contentType = exchange.getRequestHeaders().getFirst(
+                "Content-Type");
+        byte[] body = IOUtils.toByteArray(exchange.getRequestBody());
+        byte[] file = multipartFile(contentType, body);
+        if (file == null) {
+            send(exchange, 400, "text/plain", "No file part in upload");
+            return;
+        }
+        String location = "uploaded://" + uploadSequence.incrementAndGet();
+        uploads.put(location, file);
+        send(exchange, 202, "text/plain", location);
+    }
+
+    /*
+     * ===== Helpers =====
+     */
+
+    /**
+     * Find the content for an add or modify: the request body if there is
+     * one, otherwise whatever 'dsLocation' points at.
+     *
+     * @return byte[] the content, or NULL if none was sent or the location
+     *         is unknown
+     */
+    private byte[] content(HttpExchange exchange,
+            Map<String, List<String>> params) throws IOException {
+        String location = first(params, "dsLocation");
+        if (location != null) {
+            return uploads.remove(location);
+        }
+        byte[] body = IOUtils.toByteArray(exchange.getRequestBody());
+        String contentType = exchange.getRequestHeaders().getFirst(
+                "Content-Type");
+        if (contentType != null
+                && contentType.startsWith("multipart/form-data")) {
+            return multipartFile(contentType, body);
+        }
+        return body.length == 0 ? null : body;
+    }
+
+    /**
+     * Alternate IDs may be sent as repeated parameters, or space separated.
+     */
+    private List<String> altIds(Map<String, List<String>> params) {
+        List<String> result = new ArrayList<String>();
+        List<String> values = params.get("altIDs");
+        if (values != null) {
+            for (String value : values) {
+                for (String altId : value.trim().split("\\s+")) {
+                    if (altId.length() > 0) {
+                        result.add(altId);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The current version of a datastream, or NULL if it does not exist.
+     */
+    private Version currentVersion(String pid, String dsId) {
+        StoredObject object = objects.get(pid);
+        if (object == null) {
+            return null;
+        }
+        synchronized (object) {
+            List<Version> versions = object.datastreams.get(dsId);
+            return versions == null ? null : versions.get(0);
+        }
+    }
+
+    /**
+     * Test an object against findObjects 'terms' and 'query' parameters.
+     * Terms match the PID or label, and the query supports 'field~pattern'
+     * and 'field=value' conditions on 'pid', 'label' and 'state'.
+     */
+    private boolean matches(StoredObject object, String terms, String query) {
+        if (terms != null && !glob(terms).matcher(object.pid).matches()
+                && !glob(terms).matcher(object.label).matches()) {
+            return false;
+        }
+        if (query != null) {
+            for (String condition : query.trim().split("\\s+")) {
+                int split = condition.indexOf('~');
+                boolean like = split > 0;
+                if (!like) {
+                    split = condition.indexOf('=');
+                }
+                if (split <= 0) {
+                    continue;
+                }
+                String field = condition.substring(0, split);
+                String value = condition.substring(split + 1);
+                String actual = "pid".equals(field) ? object.pid : "label"
+                        .equals(field) ? object.label : "state".equals(field)
+                        ? object.state : null;
+                if (actual == null) {
+                    continue;
+                }
+                if (like ? !glob(value).matcher(actual).matches() : !value
+                        .equals(actual)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Turn a Fedora wildcard pattern ('*' and '?') into a regex.
+     */
+    private static Pattern glob(String pattern) {
+        StringBuilder regex = new StringBuilder();
+        for (char c : pattern.toCharArray()) {
+            if (c == '*') {
+                regex.append(".*");
+            } else if (c == '?') {
+                regex.append('.');
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE);
+    }
+
+    /**
+     * Build an object from FOXML, taking the PID from the URL unless it is
+     * 'new'. Datastream content may be inline base64, inline XML or a
+     * reference to an earlier upload.
+     *
+     * @return StoredObject the object, or NULL if the FOXML is invalid
+     */
+    private StoredObject parseFoxml(byte[] foxml, String pid) {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory
+                    .newInstance();
+            factory.setNamespaceAware(true);
+            Document doc = factory.newDocumentBuilder().parse(
+                    new ByteArrayInputStream(foxml));
+            Element root = doc.getDocumentElement();
+            if ("new".equals(pid)) {
+                pid = root.getAttribute("PID");
+                if (pid.length() == 0) {
+                    pid = "changeme:" + pidSequence.incrementAndGet();
+                }
+            }
+            String label = "";
+            NodeList properties = root.getElementsByTagNameNS(FOXML_NS,
+                    "property");
+            for (int i = 0; i < properties.getLength(); i++) {
+                Element property = (Element) properties.item(i);
+                if (LABEL_PROPERTY.equals(property.getAttribute("NAME"))) {
+                    label = property.getAttribute("VALUE");
+                }
+            }
+            StoredObject object = new StoredObject(pid, label);
+
+            NodeList datastreams = root.getElementsByTagNameNS(FOXML_NS,
+                    "datastream");
+            for (int i = 0; i < datastreams.getLength(); i++) {
+                Element datastream = (Element) datastreams.item(i);
+                String dsId = datastream.getAttribute("ID");
+                List<Version> versions = new ArrayList<Version>();
+                NodeList dsVersions = datastream.getElementsByTagNameNS(
+                        FOXML_NS, "datastreamVersion");
+                for (int j = 0; j < dsVersions.getLength(); j++) {
+                    Element dsVersion = (Element) dsVersions.item(j);
+                    Version version = new Version(dsId, j);
+                    version.controlGroup = orDefault(
+                            datastream.getAttribute("CONTROL_GROUP"), "M");
+                    version.state = orDefault(
+                            datastream.getAttribute("STATE"), "A");
+                    version.versionable = !"false".equals(datastream
+                            .getAttribute("VERSIONABLE"));
+                    version.label = dsVersion.getAttribute("LABEL");
+                    version.mimeType = orDefault(
+                            dsVersion.getAttribute("MIMETYPE"),
+                            "application/octet-stream");
+                    String formatUri = dsVersion.getAttribute("FORMAT_URI");
+                    version.formatUri = formatUri.length() == 0 ? null
+                            : formatUri;
+                    String altIds = dsVersion.getAttribute("ALT_IDS").trim();
+                    if (altIds.length() > 0) {
+                        version.altIds = Arrays.asList(altIds.split("\\s+"));
+                    }
+                    version.content = foxmlContent(dsVersion);
+                    if (version.content == null) {
+                        return null;
+                    }
+                    version.created = now();
+                    versions.add(0, version);
+                }
+                if (!versions.isEmpty()) {
+                    object.datastreams.put(dsId, versions);
+                }
+            }
+            return object;
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+
+    /**
+     * The content of one FOXML datastream version.
+     */
+    private byte[] foxmlContent(Element dsVersion) throws Exception {
+        NodeList binary = dsVersion.getElementsByTagNameNS(FOXML_NS,
+                "binaryContent");
+        if (binary.getLength() > 0) {
+            return Base64.decodeBase64(binary.item(0).getTextContent()
+                    .replaceAll("\\s", ""));
+        }
+        NodeList location = dsVersion.getElementsByTagNameNS(FOXML_NS,
+                "contentLocation");
+        if (location.getLength() > 0) {
+            String ref = ((Element) location.item(0)).getAttribute("REF");
+            return uploads.remove(ref);
+        }
+        NodeList inline = dsVersion.getElementsByTagNameNS(FOXML_NS,
+                "xmlContent");
+        if (inline.getLength() > 0) {
+            Node child = inline.item(0).getFirstChild();
+            while (child != null && child.getNodeType() != Node.ELEMENT_NODE) {
+                child = child.getNextSibling();
+            }
+            if (child == null) {
+                return new byte[0];
+            }
+            Transformer transformer = TransformerFactory.newInstance()
+                    .newTransformer();
+            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION,
+                    "yes");
+            StringWriter writer = new StringWriter();
+            transformer.transform(new DOMSource(child), new StreamResult(
+                    writer));
+            return writer.toString().getBytes("UTF-8");
+        }
+        return new byte[0];
+    }
+
+    /**
+     * Fedora gives every object a DC datastream.
+     */
+    private void addDublinCore(StoredObject object) {
+        Version dc = new Version("DC", 0);
+        dc.label = "Dublin Core Record for this object";
+        dc.mimeType = "text/xml";
+        dc.controlGroup = "X";
+        dc.formatUri = "http://www.openarchives.org/OAI/2.0/oai_dc/";
+        dc.created = object.created;
+        try {
+            dc.content = ("<oai_dc:dc xmlns:oai_dc=\"http://www.openarchives"
+                    + ".org/OAI/2.0/oai_dc/\" xmlns:dc=\"http://purl.org/dc/"
+                    + "elements/1.1/\"><dc:title>" + escape(object.label)
+                    + "</dc:title><dc:identifier>" + escape(object.pid)
+                    + "</dc:identifier></oai_dc:dc>").getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+        List<Version> versions = new ArrayList<Version>();
+        versions.add(dc);
+        object.datastreams.put("DC", versions);
+    }
+
+    /**
+     * Extract the 'file' part of a multipart form.
+     *
+     * @return byte[] the file's content, or NULL if there is no such part
+     */
+    static byte[] multipartFile(String contentType, byte[] body)
+            throws UnsupportedEncodingException {
+        if (contentType == null || !contentType.contains("boundary=")) {
+            return null;
+        }
+        String boundary = contentType.substring(contentType
+                .indexOf("boundary=") + "boundary=".length());
+        if (boundary.contains(";")) {
+            boundary = boundary.substring(0, boundary.indexOf(';'));
+        }
+        boundary = boundary.replace("\"", "").trim();
+        byte[] delimiter = ("--" + boundary).getBytes("ISO-8859-1");
+        byte[] headerEnd = "\r\n\r\n".getBytes("ISO-8859-1");
+
+        int start = indexOf(body, delimiter, 0);
+        while (start >= 0) {
+            int headersStart = start + delimiter.length;
+            int contentStart = indexOf(body, headerEnd, headersStart);
+            if (contentStart < 0) {
+                return null;
+            }
+            String headers = new String(body, headersStart, contentStart
+                    - headersStart, "ISO-8859-1");
+            contentStart += headerEnd.length;
+            int next = indexOf(body, delimiter, contentStart);
+            if (next < 0) {
+                return null;
+            }
+            if (headers.contains("name=\"file\"")) {
+                // Content ends with the CRLF before the next delimiter
+                return Arrays.copyOfRange(body, contentStart, next - 2);
+            }
+            start = next;
+        }
+        return null;
+    }
+
+    /**
+     * Find a byte sequence in a byte array.
+     */
+    private static int indexOf(byte[] data, byte[] target, int from) {
+        outer: for (int i = from; i <= data.length - target.length; i++) {
+            for (int j = 0; j < target.length; j++) {
+                if (data[i + j] != target[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Write a datastream profile. The element name may carry namespace
+     * declarations, and the prefix applies to child elements.
+     */
+    private void profile(StringBuilder xml, String elementName,
+            String prefix, String pid, Version version) {
+        String name = elementName.contains(" ") ? elementName.substring(0,
+                elementName.indexOf(' ')) : elementName;
+        xml.append('<').append(elementName).append(" pid=\"")
+                .append(escape(pid)).append("\" dsID=\"")
+                .append(escape(version.dsId)).append("\">");
+        element(xml, prefix + "dsLabel", version.label);
+        element(xml, prefix + "dsVersionID", version.versionId);
+        element(xml, prefix + "dsCreateDate", format(version.created));
+        element(xml, prefix + "dsState", version.state);
+        element(xml, prefix + "dsMIME", version.mimeType);
+        element(xml, prefix + "dsFormatURI", version.formatUri);
+        element(xml, prefix + "dsControlGroup", version.controlGroup);
+        element(xml, prefix + "dsSize", String.valueOf(version.content.length));
+        element(xml, prefix + "dsVersionable",
+                String.valueOf(version.versionable));
+        element(xml, prefix + "dsInfoType", "");
+        element(xml, prefix + "dsLocation", pid + "+" + version.dsId + "+"
+                + version.versionId);
+        element(xml, prefix + "dsLocationType", "INTERNAL_ID");
+        element(xml, prefix + "dsChecksumType", "DISABLED");
+        element(xml, prefix + "dsChecksum", "none");
+        if (version.altIds.isEmpty()) {
+            element(xml, prefix + "dsAltID", "");
+        }
+        for (String altId : version.altIds) {
+            element(xml, prefix + "dsAltID", altId);
+        }
+        xml.append("</").append(name).append('>');
+    }
+
+    private static StringBuilder xmlHeader() {
+        return new StringBuilder(
+                "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+    }
+
+    private static void element(StringBuilder xml, String name, String value) {
+        xml.append('<').append(name).append('>');
+        if (value != null) {
+            xml.append(escape(value));
+        }
+        xml.append("</").append(name).append('>');
+    }
+
+    private static String escape(String value) {
+        if (value == null) {
+            return "";
+        }
+        return value.replace("&", "&amp;").replace("<", "&lt;")
+                .replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    private static String orDefault(String value, String defaultValue) {
+        return value == null || value.length() == 0 ? defaultValue : value;
+    }
+
+    private static String first(Map<String, List<String>> params, String key) {
+        List<String> values = params.get(key);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    private static Map<String, List<String>> parseQuery(String query)
+            throws UnsupportedEncodingException {
+        Map<String, List<String>> params = new HashMap<String, List<String>>();
+        if (query == null) {
+            return params;
+        }
+        for (String pair : query.split("&")) {
+            if (pair.length() == 0) {
+                continue;
+            }
+            int split = pair.indexOf('=');
+            String key = URLDecoder.decode(split < 0 ? pair : pair.substring(
+                    0, split), "UTF-8");
+            String value = split < 0 ? "" : URLDecoder.decode(
+                    pair.substring(split + 1), "UTF-8");
+            List<String> values = params.get(key);
+            if (values == null) {
+                values = new ArrayList<String>();
+                params.put(key, values);
+            }
+            values.add(value);
+        }
+        return params;
+    }
+
+    /**
+     * A timestamp strictly later than every previous one, so that versions
+     * created in the same millisecond still have distinct dates.
+     */
+    private synchronized Date now() {
+        long time = Math.max(System.currentTimeMillis(), lastTime + 1);
+        lastTime = time;
+        return new Date(time);
+    }
+
+    private static String format(Date date) {
+        SimpleDateFormat formatter = new SimpleDateFormat(
+                "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        formatter.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return formatter.format(date);
+    }
+
+    private void notFound(HttpExchange exchange, String what)
+            throws IOException {
+        send(exchange, 404, "text/plain", "No path in db registry for ["
+                + what + "]");
+    }
+
+    private void sendXml(HttpExchange exchange, int status, StringBuilder xml)
+            throws IOException {
+        send(exchange, status, "text/xml; charset=UTF-8", xml.toString());
+    }
+
+    private void send(HttpExchange exchange, int status, String contentType,
+            String body) throws IOException {
+        send(exchange, status, contentType, body.getBytes("UTF-8"));
+    }
+
+    private void send(HttpExchange exchange, int status, String contentType,
+            byte[] body) throws IOException {
+        // Drain anything the client sent that we didn't need
+        InputStream in = exchange.getRequestBody();
+        IOUtils.copy(in, new ByteArrayOutputStream());
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1
+                : body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    /**
+     * A Fedora object.
+     */
+    private class StoredObject {
+        private String pid;
+        private String label;
+        private String state = "A";
+        private Date created;
+        private Date modified;
+        private Map<String, List<Version>> datastreams = new LinkedHashMap<String, List<Version>>();
+
+        private StoredObject(String pid, String label) {
+            this.pid = pid;
+            this.label = label;
+            created = now();
+            modified = created;
+        }
+    }
+
+    /**
+     * One version of a datastream.
+     */
+    private static class Version {
+        private String dsId;
+        private int number;
+        private String versionId;
+        private String label = "";
+        private String mimeType;
+        private String controlGroup;
+        private String state = "A";
+        private boolean versionable = true;
+        private String formatUri;
+        private List<String> altIds = new ArrayList<String>();
+        private byte[] content = new byte[0];
+        private Date created;
+
+        private Version(String dsId, int number) {
+            this.dsId = dsId;
+            this.number = number;
+            versionId = dsId + "." + number;
+        }
+    }
+
+    /**
+     * A findObjects result set being paged through.
+     */
+    private static class SearchSession {
+        private String token;
+        private int pageSize;
+        private int cursor;
+        private List<String[]> results = new ArrayList<String[]>();
+
+        private SearchSession(int pageSize) {
+            this.pageSize = Math.max(1, pageSize);
+        }
+
+        private synchronized List<String[]> nextPage() {
+            int end = Math.min(results.size(), cursor + pageSize);
+            List<String[]> page = new ArrayList<String[]>(results.subList(
+                    cursor, end));
+            cursor = end;
+            return page;
+        }
+
+        private synchronized boolean hasMore() {
+            return cursor < results.size();
+        }
+    }
+}